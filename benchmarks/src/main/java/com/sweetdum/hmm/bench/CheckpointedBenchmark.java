@@ -0,0 +1,104 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package com.sweetdum.hmm.bench;
+
+import com.sweetdum.hmm.HMMBaumWelchTrainer;
+import com.sweetdum.hmm.HMMCheckpointedForwardBackward;
+import com.sweetdum.hmm.HMMRepresentation;
+import com.sweetdum.hmm.HMMSolver;
+import com.sweetdum.hmm.HMMSufficientStatistics;
+import com.sweetdum.hmm.HMMWorkspace;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full-table versus checkpointed E-step and Viterbi on long sequences,
+ * the price of the O(sqrt(T)*N) memory in recomputation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CheckpointedBenchmark {
+    @Param({"16", "64"})
+    int stateCount;
+    @Param({"100000"})
+    int length;
+    @Param({"true", "false"})
+    boolean checkpointed;
+
+    int corpus[][];
+    int states[];
+    HMMRepresentation model;
+    HMMBaumWelchTrainer trainer;
+    HMMSolver solver;
+    HMMCheckpointedForwardBackward engine;
+    ExecutorService executor;
+
+    @Setup
+    public void setUp() {
+        model = new HMMRepresentation(stateCount, 16);
+        model.uniformParameter();
+        corpus = new int[][]{model.produceObservations(length)};
+        states = new int[length + 1];
+        executor = Executors.newSingleThreadExecutor();
+        trainer = new HMMBaumWelchTrainer(model, executor);
+        trainer.setTaskCount(1);
+        trainer.setCheckpointed(checkpointed);
+        HMMWorkspace workspace = new HMMWorkspace(model);
+        solver = new HMMSolver(model, corpus[0], true, workspace);
+        engine = new HMMCheckpointedForwardBackward(model, workspace);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public HMMSufficientStatistics expectation() {
+        return trainer.expectation(corpus);
+    }
+
+    @Benchmark
+    public int[] bestStateSequence() {
+        if (checkpointed) return engine.getBestStateSequence(corpus[0], length, states);
+        return solver.getBestStateSequence(states);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package com.sweetdum.hmm.bench;
+
+import com.sweetdum.hmm.HMMFloatForwardBackwardManipulator;
+import com.sweetdum.hmm.HMMForwardBackwardManipulator;
+import com.sweetdum.hmm.HMMRepresentation;
+import com.sweetdum.hmm.HMMScaledForwardBackwardManipulator;
+import com.sweetdum.hmm.HMMSolver;
+import com.sweetdum.hmm.HMMWorkspace;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the forward-backward, Viterbi and re-estimation paths,
+ * swept over the model size, the sequence length and the engine.
+ * The plain engine underflows after a few hundred symbols, so it is left out of the sweep
+ * and runs on short sequences only: -p engine=plain -p length=100.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ForwardBackwardBenchmark {
+    @Param({"2", "16", "64"})
+    int stateCount;
+    @Param({"4", "64"})
+    int observationCount;
+    @Param({"100", "10000"})
+    int length;
+    /**
+     * scaled, float or plain
+     */
+    @Param({"scaled", "float"})
+    String engine;
+
+    /**
+     * the longest sequence the plain engine decodes without underflow at every swept size
+     */
+    static final int PLAIN_MAX_LENGTH = 100;
+
+    HMMRepresentation model;
+    HMMRepresentation trained;
+    int observations[];
+    int states[];
+    HMMWorkspace workspace;
+    HMMSolver solver;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if (!scaled() && length > PLAIN_MAX_LENGTH) {
+            throw new IllegalArgumentException("the plain engine underflows on " + length
+                    + " symbols, run it with length <= " + PLAIN_MAX_LENGTH);
+        }
+        model = new HMMRepresentation(stateCount, observationCount);
+        model.uniformParameter();
+        model.setFloatPrecision(isFloat());
+        observations = model.produceObservations(length);
+        states = new int[length + 1];
+        workspace = new HMMWorkspace(model);
+        solver = new HMMSolver(model, observations, scaled(), workspace);
+    }
+
+    /**
+     * estimateParameter() changes the model, so it trains a fresh copy every iteration
+     */
+    @Setup(Level.Iteration)
+    public void resetTrained() {
+        trained = (HMMRepresentation) model.clone();
+    }
+
+    private boolean scaled() {
+        return !"plain".equals(engine);
+    }
+
+    private boolean isFloat() {
+        return "float".equals(engine);
+    }
+
+    @Benchmark
+    public HMMForwardBackwardManipulator newManipulator() {
+        if (isFloat()) return new HMMFloatForwardBackwardManipulator(model, observations);
+        if (scaled()) return new HMMScaledForwardBackwardManipulator(model, observations);
+        return new HMMForwardBackwardManipulator(model, observations);
+    }
+
+    @Benchmark
+    public double readNewObservation() {
+        solver.readNewObservation(observations);
+        return solver.getLogObservationProbability();
+    }
+
+    @Benchmark
+    public double observationProbability() {
+        return solver.getObservationProbability();
+    }
+
+    @Benchmark
+    public int[] bestStateSequence() {
+        return solver.getBestStateSequence(states);
+    }
+
+    @Benchmark
+    public HMMRepresentation estimateParameter() {
+        HMMSolver trainer = new HMMSolver(trained, observations, scaled(), workspace);
+        trainer.estimateParameter();
+        return trained;
+    }
+}
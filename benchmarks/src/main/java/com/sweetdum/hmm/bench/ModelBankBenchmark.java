@@ -0,0 +1,101 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package com.sweetdum.hmm.bench;
+
+import com.sweetdum.hmm.HMMBeamSearch;
+import com.sweetdum.hmm.HMMModelBank;
+import com.sweetdum.hmm.HMMRepresentation;
+import com.sweetdum.hmm.HMMWorkspace;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scoring one sequence against a bank of class models: the fused forward pass of
+ * HMMModelBank, with and without the top-k cut, versus a scaled forward pass per model.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModelBankBenchmark {
+    @Param({"4", "16"})
+    int stateCount;
+    @Param({"256"})
+    int modelCount;
+    @Param({"1000"})
+    int length;
+
+    HMMRepresentation models[];
+    HMMModelBank bank;
+    HMMBeamSearch forward[];
+    int o[];
+    double scores[];
+
+    @Setup
+    public void setUp() {
+        models = new HMMRepresentation[modelCount];
+        for (int n = 0; n < modelCount; ++n) {
+            models[n] = new HMMRepresentation(stateCount, 32);
+            models[n].uniformParameter();
+        }
+        bank = new HMMModelBank(models);
+        HMMWorkspace workspace = new HMMWorkspace(models[0]);
+        forward = new HMMBeamSearch[modelCount];
+        for (int n = 0; n < modelCount; ++n) {
+            forward[n] = new HMMBeamSearch(models[n], stateCount, Double.POSITIVE_INFINITY, workspace);
+        }
+        o = models[0].produceObservations(length);
+        scores = new double[modelCount];
+    }
+
+    @Benchmark
+    public double[] bank() {
+        return bank.score(o, length, scores);
+    }
+
+    @Benchmark
+    public double[] bankTop5() {
+        return bank.score(o, length, 5, 20, scores);
+    }
+
+    @Benchmark
+    public double[] perModel() {
+        for (int n = 0; n < modelCount; ++n) {
+            scores[n] = forward[n].getLogObservationProbability(o);
+        }
+        return scores;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package com.sweetdum.hmm.bench;
+
+import com.sweetdum.hmm.HMMRepresentation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the model-level operations: sampling, copying and comparing.
+ * Only sampling depends on the sequence length, so copying and comparing run on a state
+ * without it instead of repeating every run for each length.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModelBenchmark {
+    @State(Scope.Thread)
+    public static class Models {
+        @Param({"2", "16", "64"})
+        int stateCount;
+        @Param({"4", "64"})
+        int observationCount;
+
+        HMMRepresentation model;
+        HMMRepresentation other;
+
+        @Setup
+        public void setUp() {
+            model = new HMMRepresentation(stateCount, observationCount);
+            model.uniformParameter();
+            other = new HMMRepresentation(stateCount, observationCount);
+            other.uniformParameter();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Sampling extends Models {
+        @Param({"100", "10000"})
+        int length;
+    }
+
+    @Benchmark
+    public int[] produceObservations(Sampling state) {
+        return state.model.produceObservations(state.length);
+    }
+
+    @Benchmark
+    public Object cloneModel(Models state) {
+        return state.model.clone();
+    }
+
+    @Benchmark
+    public double diffWithOtherHMM(Models state) {
+        return state.model.diffWithOtherHMM(state.other);
+    }
+}
@@ -1,3 +1,5 @@
+import com.sweetdum.hmm.HMMBaumWelchTrainer;
+import com.sweetdum.hmm.HMMMetrics;
 import com.sweetdum.hmm.HMMRepresentation;
 import com.sweetdum.hmm.HMMSolver;
 
@@ -29,13 +31,10 @@ public class Tester {
         HMMRepresentation hmm2=new HMMRepresentation(2,4);
         hmm2.uniformParameter();
         HMMRepresentation oldHmm;
+        HMMBaumWelchTrainer trainer=new HMMBaumWelchTrainer(hmm2);
         for (int iter=0;iter<1000;++iter){
             oldHmm=(HMMRepresentation)hmm2.clone();
-            HMMSolver solver = new HMMSolver(hmm2, observations[0]);
-            for (int i=0;i<100;++i){
-                solver.readNewObservation(observations[i]);
-                solver.estimateParameter();
-            }
+            trainer.iterate(observations);
             double error=oldHmm.diffWithOtherHMM(hmm2);
             System.out.println("Iter "+iter+": ERROR="+error);
             if (error<1e-4) break;
@@ -62,5 +61,6 @@ public class Tester {
             System.out.println();
             System.out.println();
         }
+        if (HMMMetrics.isEnabled()) System.out.print(HMMMetrics.summary());
     }
 }
@@ -0,0 +1,323 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package com.sweetdum.hmm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * HMMBaumWelchTrainer re-estimates a hmm from a whole corpus of observation sequences.
+ * Every iteration runs the E-step of all sequences in parallel, each task collecting
+ * its own HMMSufficientStatistics, then merges them and applies one M-step, so the
+ * result is the batch EM update and does not depend on the order of the sequences.
+ */
+public class HMMBaumWelchTrainer {
+    private final double EPS=1e-15;
+    /**
+     * the hmm representation to train, updated in place by every iteration
+     */
+    final HMMRepresentation hmm;
+    /**
+     * the executor running the E-step tasks
+     */
+    final ExecutorService executor;
+    /**
+     * the count of tasks one E-step is split into
+     */
+    int taskCount;
+    /**
+     * whether the scaled engine is used, required for long sequences
+     */
+    boolean scaled=true;
+    /**
+     * whether the E-step runs HMMCheckpointedForwardBackward, O(sqrt(T)*N) memory per sequence
+     */
+    boolean checkpointed;
+    /**
+     * receives a snapshot after every M-step, null for none
+     */
+    HMMModelStore store;
+    /**
+     * the count of iterations run, for the flight recorder events
+     */
+    private long iterationCount;
+    /**
+     * one workspace per worker thread, kept between iterations
+     */
+    private final ThreadLocal<HMMWorkspace> workspaces;
+    /**
+     * one checkpointed engine per worker thread, sharing the workspace of the thread
+     */
+    private final ThreadLocal<HMMCheckpointedForwardBackward> checkpointedEngines;
+
+    /**
+     * create a trainer running on the common fork-join pool
+     * @param hmm the hmm representation to train
+     */
+    public HMMBaumWelchTrainer(HMMRepresentation hmm){
+        this(hmm,ForkJoinPool.commonPool());
+    }
+
+    /**
+     * create a trainer running on the given executor
+     * @param hmm the hmm representation to train
+     * @param executor the executor running the E-step, it is not shut down by the trainer
+     */
+    public HMMBaumWelchTrainer(final HMMRepresentation hmm,ExecutorService executor){
+        this.hmm=hmm;
+        this.executor=executor;
+        this.taskCount=Runtime.getRuntime().availableProcessors()*4;
+        this.workspaces=new ThreadLocal<HMMWorkspace>(){
+            @Override
+            protected HMMWorkspace initialValue() {
+                return new HMMWorkspace(hmm);
+            }
+        };
+        this.checkpointedEngines=new ThreadLocal<HMMCheckpointedForwardBackward>(){
+            @Override
+            protected HMMCheckpointedForwardBackward initialValue() {
+                return new HMMCheckpointedForwardBackward(hmm,workspaces.get());
+            }
+        };
+    }
+
+    public void setTaskCount(int taskCount) {
+        if (taskCount<1) throw new IllegalArgumentException("taskCount must be positive");
+        this.taskCount = taskCount;
+    }
+
+    public void setScaled(boolean scaled) {
+        this.scaled = scaled;
+    }
+
+    /**
+     * keep only O(sqrt(T)*N) of the forward pass per sequence, for sequences whose
+     * alpha/beta tables do not fit in memory; it implies the scaled engine
+     */
+    public void setCheckpointed(boolean checkpointed) {
+        this.checkpointed = checkpointed;
+    }
+
+    /**
+     * publish the parameters into the store after every M-step, so decoders reading
+     * the store follow the training without locking
+     * @param store the store to publish to, null to stop publishing
+     */
+    public void setModelStore(HMMModelStore store) {
+        this.store = store;
+    }
+
+    /**
+     * run the E-step over the corpus with the current parameters
+     * @param corpus the observation sequences
+     * @return the merged statistics of all the sequences
+     */
+    public HMMSufficientStatistics expectation(final int corpus[][]){
+        return expectation(corpus.length,new Range() {
+            @Override
+            public HMMSufficientStatistics expectation(int from, int to) {
+                return localExpectation(corpus,from,to);
+            }
+        });
+    }
+
+    /**
+     * run the E-step over a corpus file with the current parameters,
+     * the sequences are decoded from the mapping into one buffer per thread
+     * @param corpus the corpus file
+     * @return the merged statistics of all the sequences
+     */
+    public HMMSufficientStatistics expectation(HMMCorpusFile corpus){
+        return expectation(corpus,0,corpus.getSequenceCount());
+    }
+
+    /**
+     * run the E-step over a shard of a corpus file, the sequences [first,last)
+     * @param corpus the corpus file
+     * @return the merged statistics of the shard
+     */
+    public HMMSufficientStatistics expectation(final HMMCorpusFile corpus,final int first,int last){
+        if (corpus.observationCount>hmm.observationCount) throw new IllegalArgumentException("corpus has more symbols than the model");
+        if (first<0||first>last||last>corpus.getSequenceCount()){
+            throw new IndexOutOfBoundsException("shard ["+first+","+last+") of "+corpus.getSequenceCount()+" sequences");
+        }
+        return expectation(last-first,new Range() {
+            @Override
+            public HMMSufficientStatistics expectation(int from, int to) {
+                return localExpectation(corpus,first+from,first+to);
+            }
+        });
+    }
+
+    /**
+     * the E-step of the sequences [from,to) of a corpus
+     */
+    private interface Range {
+        HMMSufficientStatistics expectation(int from,int to);
+    }
+
+    /**
+     * split [0,size) into tasks, run them on the executor and merge the results
+     */
+    private HMMSufficientStatistics expectation(int size,final Range range){
+        long begin=HMMMetrics.begin(HMMMetrics.Phase.E_STEP);
+        int tasks=Math.max(1,Math.min(taskCount,size));
+        List<Callable<HMMSufficientStatistics>> jobs=new ArrayList<Callable<HMMSufficientStatistics>>(tasks);
+        for (int task=0;task<tasks;++task){
+            final int from=(int)((long)size*task/tasks);
+            final int to=(int)((long)size*(task+1)/tasks);
+            jobs.add(new Callable<HMMSufficientStatistics>() {
+                @Override
+                public HMMSufficientStatistics call() {
+                    return range.expectation(from,to);
+                }
+            });
+        }
+        HMMSufficientStatistics ret=null;
+        try {
+            for (Future<HMMSufficientStatistics> future:executor.invokeAll(jobs)){
+                if (ret==null) ret=future.get();
+                else ret.merge(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("E-step interrupted",e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+            throw new IllegalStateException("E-step failed",e.getCause());
+        }
+        HMMMetrics.end(HMMMetrics.Phase.E_STEP,begin,ret.symbolCount);
+        return ret;
+    }
+
+    /**
+     * run the E-step over corpus[from,to) on the calling thread
+     */
+    HMMSufficientStatistics localExpectation(int corpus[][],int from,int to){
+        HMMSufficientStatistics statistics=new HMMSufficientStatistics(hmm);
+        if (from>=to) return statistics;
+        if (checkpointed){
+            HMMCheckpointedForwardBackward engine=checkpointedEngines.get();
+            for (int n=from;n<to;++n) engine.accumulateStatistics(corpus[n],corpus[n].length,statistics,EPS);
+            return statistics;
+        }
+        HMMWorkspace workspace=workspaces.get();
+        HMMForwardBackwardManipulator fb=HMMForwardBackwardManipulator.create(hmm,corpus[from],corpus[from].length,workspace,scaled);
+        for (int n=from;n<to;++n){
+            if (n>from) fb.readNewObservation(corpus[n]);
+            fb.accumulateStatistics(statistics,EPS);
+        }
+        return statistics;
+    }
+
+    /**
+     * run the E-step over the sequences [from,to) of a corpus file on the calling thread
+     */
+    HMMSufficientStatistics localExpectation(HMMCorpusFile corpus,int from,int to){
+        HMMSufficientStatistics statistics=new HMMSufficientStatistics(hmm);
+        if (from>=to) return statistics;
+        HMMWorkspace workspace=workspaces.get();
+        HMMForwardBackwardManipulator fb=null;
+        for (int n=from;n<to;++n){
+            int o[]=workspace.symbols(corpus.getLength(n));
+            int length=corpus.read(n,o);
+            if (checkpointed){
+                checkpointedEngines.get().accumulateStatistics(o,length,statistics,EPS);
+                continue;
+            }
+            if (fb==null){
+                fb=HMMForwardBackwardManipulator.create(hmm,o,length,workspace,scaled);
+            } else {
+                fb.readNewObservation(o,length);
+            }
+            fb.accumulateStatistics(statistics,EPS);
+        }
+        return statistics;
+    }
+
+    /**
+     * run one EM iteration over the corpus
+     * @param corpus the observation sequences
+     * @return the log-likelihood of the corpus under the parameters before the update
+     */
+    public double iterate(int corpus[][]){
+        HMMIterationEvent event=HMMIterationEvent.start(hmm);
+        return maximize(expectation(corpus),event);
+    }
+
+    /**
+     * run one EM iteration over a corpus file
+     * @param corpus the corpus file
+     * @return the log-likelihood of the corpus under the parameters before the update
+     */
+    public double iterate(HMMCorpusFile corpus){
+        HMMIterationEvent event=HMMIterationEvent.start(hmm);
+        return maximize(expectation(corpus),event);
+    }
+
+    private double maximize(HMMSufficientStatistics statistics,HMMIterationEvent event){
+        statistics.maximize(hmm,EPS);
+        if (store!=null) store.publish(hmm);
+        event.finish("batch",++iterationCount,hmm,statistics);
+        return statistics.logLikelihood;
+    }
+
+    /**
+     * iterate until the log-likelihood stops improving
+     * @param corpus the observation sequences
+     * @param maxIterations the maximum count of iterations
+     * @param tolerance stop when the log-likelihood improves by less than tolerance*|log-likelihood|
+     * @return the count of iterations run
+     */
+    public int train(int corpus[][],int maxIterations,double tolerance){
+        double last=Double.NEGATIVE_INFINITY;
+        for (int iter=1;iter<=maxIterations;++iter){
+            double now=iterate(corpus);
+            if (now-last<=tolerance*Math.abs(now)) return iter;
+            last=now;
+        }
+        return maxIterations;
+    }
+
+    /**
+     * iterate over a corpus file until the log-likelihood stops improving
+     * @param corpus the corpus file
+     * @param maxIterations the maximum count of iterations
+     * @param tolerance stop when the log-likelihood improves by less than tolerance*|log-likelihood|
+     * @return the count of iterations run
+     */
+    public int train(HMMCorpusFile corpus,int maxIterations,double tolerance){
+        double last=Double.NEGATIVE_INFINITY;
+        for (int iter=1;iter<=maxIterations;++iter){
+            double now=iterate(corpus);
+            if (now-last<=tolerance*Math.abs(now)) return iter;
+            last=now;
+        }
+        return maxIterations;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package com.sweetdum.hmm;
+
+/**
+ * HMMBeamSearch runs Viterbi and the scaled forward pass on large state spaces
+ * by expanding, at every timestep, only the states inside the beam:
+ * at most topK states, and only those whose log score is within logBeam of the best.
+ * Each step then costs O(K*N) instead of O(N*N) (or the arcs of K states instead of all
+ * the arcs for a sparse model). The result is exact when the beam
+ * never drops a state of the best path, and the count of active states of every
+ * step is kept to tune the trade-off.
+ *
+ * It reads the current kernels of the hmm and is not thread-safe.
+ */
+public class HMMBeamSearch {
+    final HMMRepresentation hmm;
+    final HMMWorkspace workspace;
+    /**
+     * the maximum count of active states, stateCount for no limit
+     */
+    int topK;
+    /**
+     * the maximum distance in log probability to the best state, Infinity for no limit
+     */
+    double logBeam;
+    /**
+     * activeCounts[t] := count of states expanded from timestep t in the last call
+     */
+    int activeCounts[];
+    /**
+     * the count of timesteps of the last call
+     */
+    int steps;
+    private final int active[];
+    private final double select[];
+
+    /**
+     * create a beam search
+     * @param hmm the hmm representation
+     * @param topK the maximum count of active states per step
+     * @param logBeam the maximum log probability distance to the best state,
+     *                Double.POSITIVE_INFINITY to only limit by topK
+     */
+    public HMMBeamSearch(HMMRepresentation hmm,int topK,double logBeam){
+        this(hmm,topK,logBeam,new HMMWorkspace(hmm));
+    }
+
+    public HMMBeamSearch(HMMRepresentation hmm,int topK,double logBeam,HMMWorkspace workspace){
+        if (!workspace.fits(hmm)) throw new IllegalArgumentException("workspace does not match the model size");
+        this.hmm=hmm;
+        this.workspace=workspace;
+        setBeam(topK,logBeam);
+        active=new int[hmm.stateCount];
+        select=new double[hmm.stateCount];
+        activeCounts=new int[16];
+    }
+
+    /**
+     * change the beam
+     * @param topK the maximum count of active states per step
+     * @param logBeam the maximum log probability distance to the best state
+     */
+    public void setBeam(int topK,double logBeam){
+        if (topK<1) throw new IllegalArgumentException("topK must be positive");
+        if (!(logBeam>=0)) throw new IllegalArgumentException("logBeam must not be negative");
+        this.topK=Math.min(topK,hmm.stateCount);
+        this.logBeam=logBeam;
+    }
+
+    /**
+     * Viterbi restricted to the beam
+     * @param o the observation ids array
+     * @param ret the array to fill, its length should be at least o.length + 1
+     * @return ret
+     */
+    public int[] getBestStateSequence(int o[],int ret[]){
+        int endTime=o.length;
+        int N=hmm.stateCount;
+        workspace.ensurePathCapacity(endTime);
+        prepareCounts(endTime);
+        double delta[]=workspace.delta;
+        double next[]=workspace.nextDelta;
+        int phi[]=workspace.phi;
+
+        for (int i=0;i<N;++i) delta[i]=Math.log(hmm.pi[i]);
+        for (int t=1;t<=endTime;++t){
+            int count=selectActive(delta,true);
+            activeCounts[t-1]=count;
+            HMMKernels.viterbi(hmm,o[t-1],delta,next,phi,t*N,active,count);
+            double swap[]=delta;delta=next;next=swap;
+        }
+        ret[endTime]=0;
+        for (int i=0;i<N;++i){
+            if (delta[i]>delta[ret[endTime]]) ret[endTime]=i;
+        }
+        for (int t=endTime-1;t>=0;--t){
+            ret[t]=phi[(t+1)*N+ret[t+1]];
+        }
+        return ret;
+    }
+
+    public int[] getBestStateSequence(int o[]){
+        return getBestStateSequence(o,new int[o.length+1]);
+    }
+
+    /**
+     * scaled forward pass restricted to the beam, states outside the beam are set to 0
+     * @param o the observation ids array
+     * @return the approximated log P(O | model), a lower bound of the exact value
+     */
+    public double getLogObservationProbability(int o[]){
+        int N=hmm.stateCount;
+        prepareCounts(o.length);
+        double alpha[]=workspace.delta;
+        double next[]=workspace.nextDelta;
+        System.arraycopy(hmm.pi,0,alpha,0,N);
+        double ret=Math.log(HMMKernels.normalize(alpha,0,N));
+        for (int t=1;t<=o.length;++t){
+            int count=selectActive(alpha,false);
+            activeCounts[t-1]=count;
+            HMMKernels.forward(hmm,o[t-1],alpha,0,next,0,active,count);
+            double swap[]=alpha;alpha=next;next=swap;
+            ret+=Math.log(HMMKernels.normalize(alpha,0,N));
+        }
+        return ret;
+    }
+
+    /**
+     * @return activeCounts[t] := count of states expanded from timestep t in the last call,
+     * valid for t in [0,getStepCount())
+     */
+    public int[] getActiveCounts(){
+        return activeCounts;
+    }
+
+    public int getStepCount(){
+        return steps;
+    }
+
+    /**
+     * @return the average count of active states per step in the last call
+     */
+    public double getMeanActiveCount(){
+        if (steps==0) return 0;
+        long sum=0;
+        for (int t=0;t<steps;++t) sum+=activeCounts[t];
+        return (double)sum/steps;
+    }
+
+    private void prepareCounts(int length){
+        if (activeCounts.length<length) activeCounts=new int[Math.max(length,activeCounts.length*2)];
+        steps=length;
+    }
+
+    /**
+     * collect the states inside the beam into active
+     * @param score the scores of the states
+     * @param logDomain whether the scores are log probabilities or probabilities
+     * @return the count of active states
+     */
+    private int selectActive(double score[],boolean logDomain){
+        int N=score.length;
+        double zero=logDomain?Double.NEGATIVE_INFINITY:0;
+        double best=zero;
+        int live=0;
+        for (int i=0;i<N;++i){
+            if (score[i]>zero){
+                select[live++]=score[i];
+                if (score[i]>best) best=score[i];
+            }
+        }
+        if (live==0) return 0;
+        double cut=logDomain?best-logBeam:best*Math.exp(-logBeam);
+        //the states tied at the cut only fill the slots left by the states above it,
+        //so a tie never pushes a better state out of the beam
+        int ties=N;
+        if (live>topK){
+            double kth=HMMBeamSearch.select(select,live,topK);
+            if (kth>=cut){
+                cut=kth;
+                ties=topK;
+                for (int i=0;i<N;++i){
+                    if (score[i]>cut) --ties;
+                }
+            }
+        }
+        int count=0;
+        for (int i=0;i<N;++i){
+            if (score[i]<=zero||score[i]<cut) continue;
+            if (score[i]>cut) active[count++]=i;
+            else if (ties>0){
+                active[count++]=i;
+                --ties;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * partial quick-select in v[0,n)
+     * @return the k-th largest value (k counts from 1)
+     */
+    static double select(double v[],int n,int k){
+        int lo=0, hi=n-1, target=k-1;
+        while (lo<hi){
+            double pivot=v[(lo+hi)>>>1];
+            int i=lo, j=hi;
+            while (i<=j){
+                while (v[i]>pivot) ++i;
+                while (v[j]<pivot) --j;
+                if (i<=j){
+                    double tmp=v[i];v[i]=v[j];v[j]=tmp;
+                    ++i;--j;
+                }
+            }
+            if (target<=j) hi=j;
+            else if (target>=i) lo=i;
+            else break;
+        }
+        return v[target];
+    }
+}
@@ -0,0 +1,228 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package com.sweetdum.hmm;
+
+/**
+ * HMMCheckpointedForwardBackward runs the scaled forward-backward algorithm and Viterbi
+ * on sequences too long for the O(T*N) tables of HMMForwardBackwardManipulator.
+ * The forward pass keeps only the rows at every K-th timestep, K = ceil(sqrt(T)).
+ * The backward sweep then walks the segments from the last one, recomputes the rows of
+ * each segment from its checkpoint and folds the expected counts into the statistics
+ * as beta moves back, so memory is O(sqrt(T)*N) for about twice the forward work.
+ * Viterbi keeps delta at the checkpoints in the same way and recomputes the back
+ * pointers of one segment at a time during the traceback.
+ *
+ * It is not thread-safe, use one per thread.
+ */
+public class HMMCheckpointedForwardBackward {
+    private final double EPS=1e-15;
+    final HMMRepresentation hmm;
+    /**
+     * provides xi and the Viterbi rows
+     */
+    final HMMWorkspace workspace;
+    /**
+     * the segment length of the last call
+     */
+    int segmentLength;
+    /**
+     * checkpoints[c*N+i]: the scaled alpha (or delta) of timestep c*segmentLength
+     */
+    double checkpoints[];
+    /**
+     * the scaled alpha of the segment being swept and its scaling coefficients,
+     * segment[(t-s)*N+i] and segmentScale[t-s] for the segment starting at s
+     */
+    double segment[], segmentScale[];
+    /**
+     * the back pointers of the segment being traced
+     */
+    int segmentPhi[];
+    /**
+     * beta of the current timestep and of the next one
+     */
+    double beta[], nextBeta[];
+    /**
+     * log P(O | model) of the last expectation
+     */
+    double logLikelihood;
+
+    public HMMCheckpointedForwardBackward(HMMRepresentation hmm){
+        this(hmm,new HMMWorkspace(hmm));
+    }
+
+    public HMMCheckpointedForwardBackward(HMMRepresentation hmm,HMMWorkspace workspace){
+        if (!workspace.fits(hmm)) throw new IllegalArgumentException("workspace does not match the model size");
+        this.hmm=hmm;
+        this.workspace=workspace;
+        beta=new double[hmm.stateCount];
+        nextBeta=new double[hmm.stateCount];
+        checkpoints=new double[0];
+        segment=new double[0];
+        segmentScale=new double[0];
+        segmentPhi=new int[0];
+    }
+
+    /**
+     * @return the segment length used for a sequence of the given length
+     */
+    static int segmentLength(int length){
+        return Math.max(1,(int)Math.ceil(Math.sqrt(length)));
+    }
+
+    /**
+     * size the buffers for a sequence of the given length
+     */
+    private void prepare(int length){
+        int N=hmm.stateCount;
+        segmentLength=segmentLength(length);
+        int checkpointCount=length/segmentLength+1;
+        if (checkpoints.length<checkpointCount*N) checkpoints=new double[checkpointCount*N];
+        if (segment.length<(segmentLength+1)*N){
+            segment=new double[(segmentLength+1)*N];
+            segmentScale=new double[segmentLength+1];
+        }
+    }
+
+    /**
+     * E-step of one sequence: add its expected counts into the statistics
+     * @param o the observation ids array
+     * @param statistics the statistics to add to
+     * @return log P(O | model)
+     */
+    public double expectation(int o[],HMMSufficientStatistics statistics){
+        return expectation(o,o.length,statistics);
+    }
+
+    /**
+     * E-step of the first length symbols of o
+     * @return log P(O | model)
+     */
+    public double expectation(int o[],int length,HMMSufficientStatistics statistics){
+        accumulateStatistics(o,length,statistics,EPS);
+        return logLikelihood;
+    }
+
+    /**
+     * @return log P(O | model) of the last expectation
+     */
+    public double getLogLikelihood(){
+        return logLikelihood;
+    }
+
+    void accumulateStatistics(int o[],int length,HMMSufficientStatistics statistics,double eps){
+        int N=hmm.stateCount;
+        prepare(length);
+        int K=segmentLength;
+
+        //forward pass, alternating between the first two rows of segment
+        long begin=HMMMetrics.begin(HMMMetrics.Phase.ALPHA);
+        for (int i=0;i<N;++i) segment[i]=hmm.pi[i];
+        logLikelihood=Math.log(HMMKernels.normalize(segment,0,N));
+        System.arraycopy(segment,0,checkpoints,0,N);
+        for (int t=1;t<=length;++t){
+            int prev=((t-1)&1)*N, cur=(t&1)*N;
+            HMMKernels.forward(hmm,o[t-1],segment,prev,segment,cur);
+            logLikelihood+=Math.log(HMMKernels.normalize(segment,cur,N));
+            if (t%K==0) System.arraycopy(segment,cur,checkpoints,t/K*N,N);
+        }
+        HMMMetrics.end(HMMMetrics.Phase.ALPHA,begin,length);
+
+        //backward sweep, one segment [s,e] at a time
+        begin=HMMMetrics.begin(HMMMetrics.Phase.BETA);
+        double xi[]=workspace.xi();
+        for (int i=0;i<N;++i) beta[i]=1;
+        for (int s=(length-1)/K*K;s>=0&&length>0;s-=K){
+            int e=Math.min(length,s+K);
+            System.arraycopy(checkpoints,s/K*N,segment,0,N);
+            for (int t=s+1;t<=e;++t){
+                HMMKernels.forward(hmm,o[t-1],segment,(t-s-1)*N,segment,(t-s)*N);
+                segmentScale[t-s]=HMMKernels.normalize(segment,(t-s)*N,N);
+            }
+            for (int t=e-1;t>=s;--t){
+                //beta holds beta[t+1]
+                statistics.addTransitions(hmm,o[t],segment,(t-s)*N,beta,0,xi,eps,t==0);
+                double c=segmentScale[t+1-s];
+                HMMKernels.backward(hmm,o[t],beta,0,nextBeta,0);
+                for (int i=0;i<N;++i) nextBeta[i]=c>0?nextBeta[i]/c:0;
+                double swap[]=beta;beta=nextBeta;nextBeta=swap;
+            }
+        }
+        HMMMetrics.end(HMMMetrics.Phase.BETA,begin,length);
+        statistics.logLikelihood+=logLikelihood;
+        statistics.sequenceCount++;
+        statistics.symbolCount+=length;
+    }
+
+    /**
+     * Viterbi with O(sqrt(T)*N) back pointers
+     * @param o the observation ids array
+     * @return the state ids sequence, of length o.length + 1
+     */
+    public int[] getBestStateSequence(int o[]){
+        return getBestStateSequence(o,o.length,new int[o.length+1]);
+    }
+
+    /**
+     * Viterbi over the first length symbols of o into a caller provided array
+     * @param ret the array to fill, its length should be at least length + 1
+     * @return ret
+     */
+    public int[] getBestStateSequence(int o[],int length,int ret[]){
+        int N=hmm.stateCount;
+        prepare(length);
+        int K=segmentLength;
+        if (segmentPhi.length<(K+1)*N) segmentPhi=new int[(K+1)*N];
+        double delta[]=workspace.delta;
+        double next[]=workspace.nextDelta;
+        long begin=HMMMetrics.begin(HMMMetrics.Phase.VITERBI);
+
+        //forward pass keeping delta at the checkpoints, the back pointers are dropped
+        for (int i=0;i<N;++i) delta[i]=Math.log(hmm.pi[i]);
+        System.arraycopy(delta,0,checkpoints,0,N);
+        for (int t=1;t<=length;++t){
+            HMMKernels.viterbi(hmm,o[t-1],delta,next,segmentPhi,0);
+            double swap[]=delta;delta=next;next=swap;
+            if (t%K==0) System.arraycopy(delta,0,checkpoints,t/K*N,N);
+        }
+        ret[length]=0;
+        for (int i=0;i<N;++i){
+            if (delta[i]>delta[ret[length]]) ret[length]=i;
+        }
+
+        //traceback, recomputing the back pointers of one segment at a time
+        for (int s=(length-1)/K*K;s>=0&&length>0;s-=K){
+            int e=Math.min(length,s+K);
+            System.arraycopy(checkpoints,s/K*N,delta,0,N);
+            for (int t=s+1;t<=e;++t){
+                HMMKernels.viterbi(hmm,o[t-1],delta,next,segmentPhi,(t-s)*N);
+                double swap[]=delta;delta=next;next=swap;
+            }
+            for (int t=e-1;t>=s;--t){
+                ret[t]=segmentPhi[(t+1-s)*N+ret[t+1]];
+            }
+        }
+        HMMMetrics.end(HMMMetrics.Phase.VITERBI,begin,length);
+        return ret;
+    }
+}
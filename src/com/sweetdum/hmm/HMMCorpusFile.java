@@ -0,0 +1,352 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package com.sweetdum.hmm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * HMMCorpusFile is a memory-mapped corpus of observation sequences, for corpora
+ * larger than the heap. Symbols are packed in 1, 2 or 4 bytes depending on the
+ * count of observation symbols and located by an index of offsets, so any sequence
+ * can be read directly and a scan reads the file at disk speed.
+ *
+ * Layout, all values little-endian:
+ * <pre>
+ * header, 64 bytes:
+ *   int magic "HMMC", int version, int symbol width, int observationCount,
+ *   long sequenceCount, long symbolCount, long index position, int maxLength
+ * symbols of all the sequences, back to back, padded to 8 bytes
+ * long index[sequenceCount+1]: sequence n is symbols index[n] ... index[n+1]-1
+ * </pre>
+ * The reader only uses absolute reads of the mappings, so one reader can be shared by threads.
+ */
+public final class HMMCorpusFile {
+    /**
+     * "HMMC" read as a little-endian int
+     */
+    static final int MAGIC=0x434D4D48;
+    static final int VERSION=1;
+    static final int HEADER_SIZE=64;
+    /**
+     * the largest region covered by one mapping
+     */
+    private static final long MAX_MAPPING=Integer.MAX_VALUE;
+
+    final Path path;
+    final int observationCount;
+    /**
+     * bytes per symbol
+     */
+    final int width;
+    final int sequenceCount;
+    final long symbolCount;
+    final int maxLength;
+    private final LongBuffer index;
+    /**
+     * the symbols are mapped in chunks of whole sequences,
+     * chunk c holds the sequences from chunkFirst[c], starting at symbol chunkStart[c]
+     */
+    private final ByteBuffer chunks[];
+    private final IntBuffer intChunks[];
+    private final int chunkFirst[];
+    private final long chunkStart[];
+
+    private HMMCorpusFile(Path path,FileChannel channel) throws IOException {
+        this.path=path;
+        ByteBuffer header=ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining()){
+            if (channel.read(header)<0) throw new IOException(path+" is not a corpus file: truncated header");
+        }
+        header.flip();
+        if (header.getInt()!=MAGIC) throw new IOException(path+" is not a corpus file: bad magic");
+        int version=header.getInt();
+        if (version!=VERSION) throw new IOException(path+": unsupported corpus file version "+version);
+        width=header.getInt();
+        observationCount=header.getInt();
+        long sequences=header.getLong();
+        symbolCount=header.getLong();
+        long indexPosition=header.getLong();
+        maxLength=header.getInt();
+        if ((width!=1&&width!=2&&width!=4)||observationCount<=0||sequences<0||symbolCount<0||maxLength<0){
+            throw new IOException(path+": invalid corpus header");
+        }
+        if ((sequences+1)*8>MAX_MAPPING) throw new IOException(path+": too many sequences to map the index");
+        sequenceCount=(int)sequences;
+        if (indexPosition!=HEADER_SIZE+align(symbolCount*width)||channel.size()!=indexPosition+8*(sequences+1)){
+            throw new IOException(path+": file length does not match the header");
+        }
+        index=channel.map(FileChannel.MapMode.READ_ONLY,indexPosition,8*(sequences+1))
+                .order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+        if (index.get(0)!=0||index.get(sequenceCount)!=symbolCount) throw new IOException(path+": corrupted index");
+
+        //greedy chunks: each one extends to the last sequence ending within MAX_MAPPING bytes
+        long maxSymbols=MAX_MAPPING/width;
+        int first[]=new int[4];
+        long start[]=new long[4];
+        int count=0;
+        for (int n=0;n<sequenceCount;){
+            long begin=index.get(n);
+            int lo=n+1, hi=sequenceCount;
+            if (index.get(lo)-begin>maxSymbols) throw new IOException(path+": sequence "+n+" is too long to map");
+            while (lo<hi){
+                int mid=(lo+hi+1)>>>1;
+                if (index.get(mid)-begin<=maxSymbols) lo=mid;
+                else hi=mid-1;
+            }
+            if (count==first.length){
+                first=Arrays.copyOf(first,count*2);
+                start=Arrays.copyOf(start,count*2);
+            }
+            first[count]=n;
+            start[count]=begin;
+            ++count;
+            n=lo;
+        }
+        chunkFirst=Arrays.copyOf(first,count);
+        chunkStart=Arrays.copyOf(start,count);
+        chunks=new ByteBuffer[count];
+        intChunks=width==4?new IntBuffer[count]:null;
+        for (int c=0;c<count;++c){
+            long end=c+1<count?chunkStart[c+1]:symbolCount;
+            chunks[c]=channel.map(FileChannel.MapMode.READ_ONLY,HEADER_SIZE+chunkStart[c]*width,(end-chunkStart[c])*width)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (intChunks!=null) intChunks[c]=chunks[c].asIntBuffer();
+        }
+    }
+
+    /**
+     * map a corpus file
+     * @throws IOException when the file can not be read or is not a valid corpus file
+     */
+    public static HMMCorpusFile open(Path path) throws IOException {
+        try (FileChannel channel=FileChannel.open(path,StandardOpenOption.READ)){
+            return new HMMCorpusFile(path,channel);
+        }
+    }
+
+    /**
+     * create a corpus file to append sequences to, it is complete once the writer is closed
+     * @param observationCount the count of observation symbols, which decides the symbol width
+     */
+    public static Writer create(Path path,int observationCount) throws IOException {
+        return new Writer(path,observationCount);
+    }
+
+    /**
+     * write the sequences to a corpus file
+     */
+    public static void write(Path path,int observationCount,int sequences[][]) throws IOException {
+        try (Writer writer=create(path,observationCount)){
+            for (int o[]:sequences) writer.append(o);
+        }
+    }
+
+    /**
+     * @return the bytes per symbol for the count of observation symbols
+     */
+    static int widthOf(int observationCount){
+        if (observationCount<=1<<8) return 1;
+        if (observationCount<=1<<16) return 2;
+        return 4;
+    }
+
+    private static long align(long bytes){
+        return (bytes+7)&~7L;
+    }
+
+    public int getObservationCount() {
+        return observationCount;
+    }
+
+    public int getSequenceCount() {
+        return sequenceCount;
+    }
+
+    public long getSymbolCount() {
+        return symbolCount;
+    }
+
+    /**
+     * @return the length of the longest sequence, a buffer of this length can hold any of them
+     */
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * @return the length of sequence n
+     */
+    public int getLength(int n) {
+        if (n<0||n>=sequenceCount) throw new IndexOutOfBoundsException("sequence "+n+" of "+sequenceCount);
+        long length=index.get(n+1)-index.get(n);
+        if (length<0||length>maxLength) throw new IllegalStateException(path+": corrupted index at sequence "+n);
+        return (int)length;
+    }
+
+    /**
+     * @return the count of symbols stored before sequence n, n in [0,getSequenceCount()]
+     */
+    long symbolOffset(int n) {
+        return index.get(n);
+    }
+
+    /**
+     * decode sequence n into a caller provided array, so that a scan does not allocate
+     * @param dst the array to fill, its length should be at least getLength(n)
+     * @return the length of the sequence
+     */
+    public int read(int n,int dst[]) {
+        int length=getLength(n);
+        if (dst.length<length) throw new IllegalArgumentException("sequence "+n+" of length "+length+" does not fit");
+        int c=Arrays.binarySearch(chunkFirst,n);
+        if (c<0) c=-c-2;
+        int from=(int)(index.get(n)-chunkStart[c]);
+        ByteBuffer chunk=chunks[c];
+        switch (width){
+            case 1:
+                for (int t=0;t<length;++t) dst[t]=chunk.get(from+t)&0xFF;
+                break;
+            case 2:
+                for (int t=0;t<length;++t) dst[t]=chunk.getShort(2*(from+t))&0xFFFF;
+                break;
+            default:
+                intChunks[c].get(from,dst,0,length);
+        }
+        return length;
+    }
+
+    /**
+     * @return sequence n in a new array
+     */
+    public int[] read(int n) {
+        int ret[]=new int[getLength(n)];
+        read(n,ret);
+        return ret;
+    }
+
+    /**
+     * appends sequences to a new corpus file, the index and the header are written by close()
+     */
+    public static final class Writer implements Closeable {
+        private final FileChannel channel;
+        private final int observationCount;
+        private final int width;
+        private final ByteBuffer buffer=ByteBuffer.allocateDirect(1<<16).order(ByteOrder.LITTLE_ENDIAN);
+        private long offsets[]=new long[1024];
+        private int sequenceCount;
+        private long symbolCount;
+        private int maxLength;
+        private boolean closed;
+
+        private Writer(Path path,int observationCount) throws IOException {
+            if (observationCount<=0) throw new IllegalArgumentException("observationCount must be positive");
+            this.observationCount=observationCount;
+            this.width=widthOf(observationCount);
+            channel=FileChannel.open(path,StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,StandardOpenOption.WRITE);
+            channel.position(HEADER_SIZE);
+        }
+
+        /**
+         * append a whole sequence
+         */
+        public void append(int o[]) throws IOException {
+            append(o,o.length);
+        }
+
+        /**
+         * append the first length symbols of o
+         */
+        public void append(int o[],int length) throws IOException {
+            append(o,0,length);
+        }
+
+        /**
+         * append the symbols o[offset] ... o[offset+length-1], e.g. one sequence of a flat buffer.
+         * The symbols are checked before any is written, so a rejected sequence leaves the file intact.
+         */
+        public void append(int o[],int offset,int length) throws IOException {
+            if (closed) throw new IllegalStateException("writer is closed");
+            Objects.checkFromIndexSize(offset,length,o.length);
+            for (int t=0;t<length;++t){
+                int symbol=o[offset+t];
+                if (symbol<0||symbol>=observationCount) throw new IllegalArgumentException("invalid symbol "+symbol+" at "+t);
+            }
+            for (int t=0;t<length;++t){
+                int symbol=o[offset+t];
+                if (buffer.remaining()<width) flush();
+                switch (width){
+                    case 1: buffer.put((byte)symbol); break;
+                    case 2: buffer.putShort((short)symbol); break;
+                    default: buffer.putInt(symbol);
+                }
+            }
+            if (sequenceCount+1==offsets.length) offsets=Arrays.copyOf(offsets,offsets.length*2);
+            symbolCount+=length;
+            offsets[++sequenceCount]=symbolCount;
+            maxLength=Math.max(maxLength,length);
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed=true;
+            try {
+                long padding=align(symbolCount*width)-symbolCount*width;
+                for (long i=0;i<padding;++i){
+                    if (!buffer.hasRemaining()) flush();
+                    buffer.put((byte)0);
+                }
+                for (int n=0;n<=sequenceCount;++n){
+                    if (buffer.remaining()<8) flush();
+                    buffer.putLong(offsets[n]);
+                }
+                flush();
+                ByteBuffer header=ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(observationCount)
+                        .putLong(sequenceCount).putLong(symbolCount)
+                        .putLong(HEADER_SIZE+align(symbolCount*width)).putInt(maxLength);
+                header.clear();
+                while (header.hasRemaining()) channel.write(header,header.position());
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,386 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package com.sweetdum.hmm;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * HMMDecoderService decodes many independent observation sequences concurrently
+ * with the log-space Viterbi algorithm and hands the state sequences back as futures.
+ *
+ * At most queueCapacity requests are in flight; submit() blocks and offer() waits
+ * at most the given time when the service is full, so producers are slowed down to
+ * the decoding rate instead of piling up work. Workspaces are pooled and reused by
+ * whichever thread runs the next request, which also suits virtual threads.
+ *
+ * Every request pins the latest snapshot of a HMMModelStore when it starts and
+ * decodes with it to the end, so a trainer publishing into the same store changes
+ * the parameters of the following requests without any lock on the decoding path;
+ * submitVersioned() tells which snapshot decoded a sequence. A service created from
+ * a plain hmm serves a snapshot taken on creation and is not affected by later
+ * re-estimation. It is thread-safe.
+ */
+public class HMMDecoderService implements AutoCloseable {
+    /**
+     * the state sequence of one request and the version of the snapshot that decoded it
+     */
+    public static final class Decoding {
+        final int states[];
+        final long modelVersion;
+
+        Decoding(int states[],long modelVersion){
+            this.states=states;
+            this.modelVersion=modelVersion;
+        }
+
+        /**
+         * @return the best state sequence, of length o.length + 1
+         */
+        public int[] getStates() {
+            return states;
+        }
+
+        /**
+         * @return HMMRepresentation.getVersion() of the snapshot used
+         */
+        public long getModelVersion() {
+            return modelVersion;
+        }
+    }
+
+    /**
+     * the source of the parameters, pinned once per request
+     */
+    final HMMModelStore store;
+    final ExecutorService executor;
+    /**
+     * whether close() shuts the executor down
+     */
+    private final boolean ownExecutor;
+    /**
+     * set by close(), the service rejects new requests from then on
+     */
+    private volatile boolean closed;
+    private final Semaphore permits;
+    private final int queueCapacity;
+    private final ConcurrentLinkedQueue<HMMWorkspace> workspaces=new ConcurrentLinkedQueue<HMMWorkspace>();
+
+    private final long startNanos=System.nanoTime();
+    private final LongAdder submitted=new LongAdder();
+    private final LongAdder completed=new LongAdder();
+    private final LongAdder failed=new LongAdder();
+    private final LongAdder symbols=new LongAdder();
+    private final LongAdder latencyNanos=new LongAdder();
+    private final LongAccumulator maxLatencyNanos=new LongAccumulator(Math::max,0);
+
+    /**
+     * create a service on the given executor
+     * @param hmm the hmm representation
+     * @param executor runs the decoding, it is not shut down by close()
+     * @param queueCapacity the maximum count of requests queued or running
+     */
+    public HMMDecoderService(HMMRepresentation hmm,ExecutorService executor,int queueCapacity){
+        this(new HMMModelStore(hmm),executor,queueCapacity,false);
+    }
+
+    /**
+     * create a service on the given executor following the snapshots of a store
+     * @param store the store a trainer publishes into
+     * @param executor runs the decoding, it is not shut down by close()
+     * @param queueCapacity the maximum count of requests queued or running
+     */
+    public HMMDecoderService(HMMModelStore store,ExecutorService executor,int queueCapacity){
+        this(store,executor,queueCapacity,false);
+    }
+
+    private HMMDecoderService(HMMModelStore store,ExecutorService executor,int queueCapacity,boolean ownExecutor){
+        if (queueCapacity<1) throw new IllegalArgumentException("queueCapacity must be positive");
+        this.store=store;
+        this.executor=executor;
+        this.ownExecutor=ownExecutor;
+        this.queueCapacity=queueCapacity;
+        this.permits=new Semaphore(queueCapacity);
+    }
+
+    /**
+     * create a service on its own pool of platform threads
+     * @param hmm the hmm representation
+     * @param threads the count of decoding threads
+     * @param queueCapacity the maximum count of requests queued or running
+     */
+    public static HMMDecoderService withPlatformThreads(HMMRepresentation hmm,int threads,int queueCapacity){
+        return withPlatformThreads(new HMMModelStore(hmm),threads,queueCapacity);
+    }
+
+    /**
+     * create a service on its own pool of platform threads following the snapshots of a store
+     * @param store the store a trainer publishes into
+     * @param threads the count of decoding threads
+     * @param queueCapacity the maximum count of requests queued or running
+     */
+    public static HMMDecoderService withPlatformThreads(HMMModelStore store,int threads,int queueCapacity){
+        return new HMMDecoderService(store,Executors.newFixedThreadPool(threads),queueCapacity,true);
+    }
+
+    /**
+     * create a service starting one virtual thread per request, requires Java 21
+     * @param hmm the hmm representation
+     * @param queueCapacity the maximum count of requests queued or running
+     * @throws UnsupportedOperationException when the runtime has no virtual threads
+     */
+    public static HMMDecoderService withVirtualThreads(HMMRepresentation hmm,int queueCapacity){
+        return withVirtualThreads(new HMMModelStore(hmm),queueCapacity);
+    }
+
+    /**
+     * create a service starting one virtual thread per request following the snapshots
+     * of a store, requires Java 21
+     * @param store the store a trainer publishes into
+     * @param queueCapacity the maximum count of requests queued or running
+     * @throws UnsupportedOperationException when the runtime has no virtual threads
+     */
+    public static HMMDecoderService withVirtualThreads(HMMModelStore store,int queueCapacity){
+        ExecutorService executor;
+        try {
+            executor=(ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("virtual threads are not available in this runtime",e);
+        }
+        return new HMMDecoderService(store,executor,queueCapacity,true);
+    }
+
+    /**
+     * decode a sequence, waiting while the service is full
+     * @param o the observation ids array, it must not be modified until the future completes
+     * @return the future of the best state sequence, of length o.length + 1
+     * @throws InterruptedException if interrupted while waiting for room
+     * @throws RejectedExecutionException if the service is closed
+     */
+    public CompletableFuture<int[]> submit(final int o[]) throws InterruptedException {
+        requireOpen();
+        permits.acquire();
+        return start(o,new Supplier<int[]>() {
+            @Override
+            public int[] get() {
+                return decode(store.current(),o);
+            }
+        });
+    }
+
+    /**
+     * decode a sequence, waiting while the service is full, and report the model version used
+     * @param o the observation ids array, it must not be modified until the future completes
+     * @return the future of the best state sequence and the version of its snapshot
+     * @throws InterruptedException if interrupted while waiting for room
+     * @throws RejectedExecutionException if the service is closed
+     */
+    public CompletableFuture<Decoding> submitVersioned(final int o[]) throws InterruptedException {
+        requireOpen();
+        permits.acquire();
+        return start(o,new Supplier<Decoding>() {
+            @Override
+            public Decoding get() {
+                HMMRepresentation model=store.current();
+                return new Decoding(decode(model,o),model.version);
+            }
+        });
+    }
+
+    /**
+     * decode a sequence if the service has room within the given time
+     * @param o the observation ids array, it must not be modified until the future completes
+     * @return the future of the best state sequence, null if the service stayed full
+     * @throws InterruptedException if interrupted while waiting for room
+     * @throws RejectedExecutionException if the service is closed
+     */
+    public CompletableFuture<int[]> offer(final int o[],long timeout,TimeUnit unit) throws InterruptedException {
+        requireOpen();
+        if (!permits.tryAcquire(timeout,unit)) return null;
+        return start(o,new Supplier<int[]>() {
+            @Override
+            public int[] get() {
+                return decode(store.current(),o);
+            }
+        });
+    }
+
+    /**
+     * decode a batch of sequences, waiting while the service is full
+     * @param batch the observation sequences
+     * @return the future of all the state sequences, in the order of the batch
+     * @throws InterruptedException if interrupted while waiting for room
+     * @throws RejectedExecutionException if the service is closed
+     */
+    public CompletableFuture<int[][]> submitAll(int batch[][]) throws InterruptedException {
+        final int ret[][]=new int[batch.length][];
+        CompletableFuture<?> parts[]=new CompletableFuture<?>[batch.length];
+        for (int n=0;n<batch.length;++n){
+            final int index=n;
+            parts[n]=submit(batch[n]).thenAccept(states -> ret[index]=states);
+        }
+        return CompletableFuture.allOf(parts).thenApply(ignored -> ret);
+    }
+
+    /**
+     * fail on a request to a closed service
+     */
+    private void requireOpen(){
+        if (closed) throw new RejectedExecutionException("the decoder service is closed");
+    }
+
+    /**
+     * run a request holding a permit
+     */
+    private <T> CompletableFuture<T> start(final int o[],Supplier<T> task){
+        //closed while waiting for the permit
+        if (closed){
+            permits.release();
+            throw new RejectedExecutionException("the decoder service is closed");
+        }
+        final long begin=System.nanoTime();
+        submitted.increment();
+        CompletableFuture<T> ret;
+        try {
+            ret=CompletableFuture.supplyAsync(task,executor);
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            failed.increment();
+            ret=new CompletableFuture<T>();
+            ret.completeExceptionally(e);
+            return ret;
+        }
+        ret.whenComplete((result,error) -> {
+            permits.release();
+            long latency=System.nanoTime()-begin;
+            if (error!=null) {
+                failed.increment();
+                return;
+            }
+            completed.increment();
+            symbols.add(o.length);
+            latencyNanos.add(latency);
+            maxLatencyNanos.accumulate(latency);
+        });
+        return ret;
+    }
+
+    /**
+     * decode on the calling thread with a pooled workspace
+     * @param model the snapshot pinned by the request
+     */
+    int[] decode(HMMRepresentation model,int o[]){
+        HMMWorkspace workspace=workspaces.poll();
+        if (workspace==null) workspace=new HMMWorkspace(model);
+        try {
+            return HMMSolver.decode(model,null,o,workspace,new int[o.length+1]);
+        } finally {
+            workspaces.offer(workspace);
+        }
+    }
+
+    /**
+     * @return the store the requests read their parameters from
+     */
+    public HMMModelStore getModelStore(){
+        return store;
+    }
+
+    /**
+     * @return the count of requests accepted so far
+     */
+    public long getSubmittedCount(){
+        return submitted.sum();
+    }
+
+    public long getCompletedCount(){
+        return completed.sum();
+    }
+
+    public long getFailedCount(){
+        return failed.sum();
+    }
+
+    /**
+     * @return the count of requests queued or running now
+     */
+    public int getInFlightCount(){
+        return queueCapacity-permits.availablePermits();
+    }
+
+    /**
+     * @return the count of observation symbols decoded so far
+     */
+    public long getSymbolCount(){
+        return symbols.sum();
+    }
+
+    /**
+     * @return the average time from submission to completion, in nanoseconds
+     */
+    public double getMeanLatencyNanos(){
+        long count=completed.sum();
+        return count==0?0:(double)latencyNanos.sum()/count;
+    }
+
+    /**
+     * @return the longest time from submission to completion, in nanoseconds
+     */
+    public long getMaxLatencyNanos(){
+        return maxLatencyNanos.get();
+    }
+
+    /**
+     * @return completed requests per second since the service was created
+     */
+    public double getThroughput(){
+        double seconds=(System.nanoTime()-startNanos)/1e9;
+        return seconds<=0?0:completed.sum()/seconds;
+    }
+
+    /**
+     * stop accepting work: later requests throw RejectedExecutionException, the accepted
+     * ones still complete. The executor is shut down only if the service created it,
+     * a caller-supplied executor keeps running.
+     */
+    @Override
+    public void close(){
+        closed=true;
+        if (ownExecutor) executor.shutdown();
+    }
+
+    /**
+     * @return whether close() was called
+     */
+    public boolean isClosed(){
+        return closed;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package com.sweetdum.hmm;
+
+/**
+ * HMMFilter follows a live observation stream one symbol at a time.
+ * It keeps only the normalized forward vector of the latest timestep:
+ * alpha[i] := P(X[t]=s[i] | o1 o2 ... ot, model)
+ * so memory and the cost of every push are O(N) and O(N*N) however long
+ * the stream has been running.
+ *
+ * A filter is not thread-safe.
+ */
+public class HMMFilter {
+    /**
+     * the hmm representation bound to the filter
+     */
+    final HMMRepresentation hmm;
+    /**
+     * the filtered state distribution of the current timestep
+     */
+    double alpha[];
+    /**
+     * buffer for the next timestep
+     */
+    private double next[];
+    /**
+     * log P(o1 o2 ... ot | model)
+     */
+    double logLikelihood;
+    /**
+     * the count of observations pushed since the last reset
+     */
+    long time;
+    /**
+     * advances runs of a symbol, created by the first push of a run
+     */
+    private HMMRunLengthForward runs;
+
+    /**
+     * create a filter starting from the initial distribution of the hmm
+     * @param hmm the hmm representation
+     */
+    public HMMFilter(HMMRepresentation hmm){
+        this.hmm=hmm;
+        alpha=new double[hmm.stateCount];
+        next=new double[hmm.stateCount];
+        reset();
+    }
+
+    /**
+     * restart the stream from the initial distribution
+     */
+    public void reset(){
+        System.arraycopy(hmm.pi,0,alpha,0,alpha.length);
+        logLikelihood=Math.log(HMMKernels.normalize(alpha,0,alpha.length));
+        time=0;
+    }
+
+    /**
+     * consume the next observation of the stream
+     * @param symbol the observation id
+     * @return log P(ot | o1 ... ot-1, model), -Infinity if the symbol is impossible,
+     * in which case the distribution becomes all zero until reset
+     */
+    public double push(int symbol){
+        HMMKernels.forward(hmm,symbol,alpha,0,next,0);
+        double swap[]=alpha;alpha=next;next=swap;
+        double ret=Math.log(HMMKernels.normalize(alpha,0,alpha.length));
+        logLikelihood+=ret;
+        ++time;
+        return ret;
+    }
+
+    /**
+     * consume a run of count copies of one observation, e.g. an idle period of a telemetry
+     * stream; long runs cost O(N*N*log count) through the cached powers of HMMRunLengthForward
+     * @param symbol the observation id
+     * @param count the length of the run
+     * @return log P(the run | the past, model)
+     */
+    public double push(int symbol,long count){
+        if (count<0) throw new IllegalArgumentException("count must not be negative");
+        if (runs==null) runs=new HMMRunLengthForward(hmm);
+        double ret=runs.advance(alpha,symbol,count);
+        logLikelihood+=ret;
+        time+=count;
+        return ret;
+    }
+
+    /**
+     * @param i the state id
+     * @return P(X[t]=s[i] | o1 ... ot, model)
+     */
+    public double getProbability(int i){
+        return alpha[i];
+    }
+
+    /**
+     * copy the current state distribution
+     * @param ret the array to fill, of length at least stateCount
+     * @return ret
+     */
+    public double[] getStateDistribution(double ret[]){
+        System.arraycopy(alpha,0,ret,0,alpha.length);
+        return ret;
+    }
+
+    /**
+     * @return the state with the largest filtered probability
+     */
+    public int getMostLikelyState(){
+        int ret=0;
+        for (int i=1;i<alpha.length;++i){
+            if (alpha[i]>alpha[ret]) ret=i;
+        }
+        return ret;
+    }
+
+    /**
+     * @return log P(o1 o2 ... ot | model)
+     */
+    public double getLogLikelihood(){
+        return logLikelihood;
+    }
+
+    /**
+     * @return the count of observations pushed since the last reset
+     */
+    public long getTime(){
+        return time;
+    }
+}
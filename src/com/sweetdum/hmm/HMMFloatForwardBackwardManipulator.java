@@ -0,0 +1,151 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package com.sweetdum.hmm;
+
+/**
+ * HMMFloatForwardBackwardManipulator is the scaled engine in single precision, used by the
+ * solvers for a model set to float precision (see HMMRepresentation.setFloatPrecision).
+ * alpha/beta/gamma are float tables read through the float kernels, which halves their
+ * memory and doubles the SIMD lanes of the dense loops. The scaling coefficients, the
+ * log-likelihood and the expected counts of the E-step are kept in double, so each
+ * timestep only adds its own float rounding to the results.
+ * The double fields alpha/beta/gamma are not used.
+ */
+public class HMMFloatForwardBackwardManipulator extends HMMScaledForwardBackwardManipulator {
+    /**
+     * the scaled alpha, beta and gamma in single precision, in the layout of the double tables
+     */
+    float floatAlpha[], floatBeta[], floatGamma[];
+
+    /**
+     * create a float forward backward manipulator
+     * @param hmm the HMMRepresentation bound to the manipulator
+     * @param observations the observation ids array
+     */
+    public HMMFloatForwardBackwardManipulator(HMMRepresentation hmm, int observations[]) {
+        super(hmm, observations);
+    }
+
+    /**
+     * create a float forward backward manipulator whose arrays live in the given workspace
+     * @param hmm the HMMRepresentation bound to the manipulator
+     * @param observations the observation ids array
+     * @param workspace the workspace, it should not be used by another manipulator at the same time
+     */
+    public HMMFloatForwardBackwardManipulator(HMMRepresentation hmm, int observations[], HMMWorkspace workspace) {
+        super(hmm, observations, workspace);
+    }
+
+    /**
+     * create a float forward backward manipulator for the first length symbols of observations
+     * @param hmm the HMMRepresentation bound to the manipulator
+     * @param observations the observation ids array, e.g. a buffer filled by HMMCorpusFile
+     * @param length the length of the observation sequence
+     * @param workspace the workspace, it should not be used by another manipulator at the same time
+     */
+    public HMMFloatForwardBackwardManipulator(HMMRepresentation hmm, int observations[], int length, HMMWorkspace workspace) {
+        super(hmm, observations, length, workspace);
+    }
+
+    @Override
+    void prepareArrays() {
+        workspace.ensureFloatCapacity(endTime);
+        floatAlpha = workspace.floatAlpha;
+        floatBeta = workspace.floatBeta;
+        floatGamma = workspace.floatGamma;
+        scale = workspace.floatScale;
+    }
+
+    /**
+     * calculate the scaled alpha and the scaling coefficients from the observation sequence
+     */
+    @Override
+    public void calculateAlpha() {
+        int N = hmm.stateCount;
+        for (int i = 0; i < N; ++i) {
+            floatAlpha[i] = (float) hmm.pi[i];
+        }
+        logLikelihood = normalize(0);
+        for (int t = 1; t <= endTime; ++t) {
+            HMMKernels.forward(hmm, o[t - 1], floatAlpha, (t - 1) * N, floatAlpha, t * N);
+            logLikelihood += normalize(t);
+        }
+    }
+
+    /**
+     * calculate the scaled beta, alpha should have been prepared
+     */
+    @Override
+    public void calculateBeta() {
+        int N = hmm.stateCount;
+        for (int i = 0; i < N; ++i) floatBeta[endTime * N + i] = 1;
+        for (int t = endTime - 1; t >= 0; --t) {
+            double c = scale[t + 1];
+            float inv = c > 0 ? (float) (1 / c) : 0;
+            int cur = t * N;
+            HMMKernels.backward(hmm, o[t], floatBeta, (t + 1) * N, floatBeta, cur);
+            for (int i = 0; i < N; ++i) floatBeta[cur + i] *= inv;
+        }
+    }
+
+    /**
+     * calculate gamma from alpha & beta, normalized per timestep in double
+     */
+    @Override
+    public void calculateGamma() {
+        int N = hmm.stateCount;
+        for (int t = 0; t < endTime; ++t) {
+            int cur = t * N;
+            double count = 0;
+            for (int i = 0; i < N; ++i) {
+                floatGamma[cur + i] = floatAlpha[cur + i] * floatBeta[cur + i];
+                count += floatGamma[cur + i];
+            }
+            float inv = (float) (1 / count);
+            for (int i = 0; i < N; ++i) floatGamma[cur + i] *= inv;
+        }
+    }
+
+    @Override
+    void accumulateStatistics(HMMSufficientStatistics statistics, double eps) {
+        int N = hmm.stateCount;
+        double xi[] = workspace.xi();
+        for (int t = 0; t < endTime; ++t) {
+            statistics.addTransitions(hmm, o[t], floatAlpha, t * N, floatBeta, (t + 1) * N, xi, eps, t == 0);
+        }
+        statistics.logLikelihood += getLogLikelihood();
+        statistics.sequenceCount++;
+        statistics.symbolCount += endTime;
+    }
+
+    /**
+     * normalize alpha[t] to sum 1 and record the coefficient
+     * @return log of the coefficient, -Infinity if the observation is impossible
+     */
+    private double normalize(int t) {
+        int N = hmm.stateCount;
+        scale[t] = HMMKernels.normalize(floatAlpha, t * N, N);
+        return Math.log(scale[t]);
+    }
+}
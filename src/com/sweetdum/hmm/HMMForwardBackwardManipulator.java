@@ -31,7 +31,11 @@ public class HMMForwardBackwardManipulator {
     /**
      * the hmm representation bind to it.
      */
-    private HMMRepresentation hmm;
+    HMMRepresentation hmm;
+    /**
+     * the workspace providing the arrays
+     */
+    HMMWorkspace workspace;
     /**
      * the end time of the calculations
      */
@@ -41,20 +45,20 @@ public class HMMForwardBackwardManipulator {
      */
     int o[];
     /**
-     * forward alpha array:
-     * alpha[t][i] := P(o1 o2 ... ot-1, X[t]=s[i] | model)
+     * forward alpha array, N values per timestep:
+     * alpha[t*N+i] := P(o1 o2 ... ot-1, X[t]=s[i] | model)
      */
-    double alpha[][];
+    double alpha[];
     /**
      * backward beta array:
-     * beta[t][i] := P (ot ot+1 ... oT | X[t]=s[i], model)
+     * beta[t*N+i] := P (ot ot+1 ... oT | X[t]=s[i], model)
      */
-    double beta[][];
+    double beta[];
     /**
-     * gamma[t][i] := P (X[t]=s[i] | O,model)
+     * gamma[t*N+i] := P (X[t]=s[i] | O,model)
      * is used to find the best state sequence
      */
-    double gamma[][];
+    double gamma[];
 
     /**
      * create a forward backward manipulator
@@ -62,12 +66,81 @@ public class HMMForwardBackwardManipulator {
      * @param observations the observation ids array
      */
     public HMMForwardBackwardManipulator(HMMRepresentation hmm,int observations[]) {
+        this(hmm,observations,new HMMWorkspace(hmm));
+    }
+
+    /**
+     * create a forward backward manipulator whose arrays live in the given workspace
+     * @param hmm the HMMRepresentation bound to the manipulator
+     * @param observations the observation ids array
+     * @param workspace the workspace, it should not be used by another manipulator at the same time
+     */
+    public HMMForwardBackwardManipulator(HMMRepresentation hmm,int observations[],HMMWorkspace workspace) {
+        this(hmm,observations,observations.length,workspace);
+    }
+
+    /**
+     * create a forward backward manipulator for the first length symbols of observations
+     * @param hmm the HMMRepresentation bound to the manipulator
+     * @param observations the observation ids array, e.g. a buffer filled by HMMCorpusFile
+     * @param length the length of the observation sequence
+     * @param workspace the workspace, it should not be used by another manipulator at the same time
+     */
+    public HMMForwardBackwardManipulator(HMMRepresentation hmm,int observations[],int length,HMMWorkspace workspace) {
+        if (!workspace.fits(hmm)) throw new IllegalArgumentException("workspace does not match the model size");
         this.hmm = hmm;
-        this.endTime = observations.length;
+        this.workspace = workspace;
+        readNewObservation(observations,length);
+    }
+
+    /**
+     * create the engine the solvers use for the hmm: plain, scaled, or scaled in single
+     * precision for a float model
+     */
+    static HMMForwardBackwardManipulator create(HMMRepresentation hmm,int observations[],int length,
+                                                HMMWorkspace workspace,boolean scaled){
+        if (!scaled) return new HMMForwardBackwardManipulator(hmm,observations,length,workspace);
+        if (hmm.floatPrecision) return new HMMFloatForwardBackwardManipulator(hmm,observations,length,workspace);
+        return new HMMScaledForwardBackwardManipulator(hmm,observations,length,workspace);
+    }
+
+    /**
+     * recalculate all the arrays for a new observation sequence, reusing the workspace
+     * @param observations the observation ids array
+     */
+    public void readNewObservation(int observations[]) {
+        readNewObservation(observations,observations.length);
+    }
+
+    /**
+     * recalculate all the arrays for the first length symbols of observations
+     * @param observations the observation ids array
+     * @param length the length of the observation sequence
+     */
+    public void readNewObservation(int observations[],int length) {
+        if (length<0||length>observations.length) throw new IllegalArgumentException("invalid length "+length);
+        this.endTime = length;
         this.o = observations;
+        prepareArrays();
+        long begin=HMMMetrics.begin(HMMMetrics.Phase.ALPHA);
         calculateAlpha();
+        HMMMetrics.end(HMMMetrics.Phase.ALPHA,begin,endTime);
+        begin=HMMMetrics.begin(HMMMetrics.Phase.BETA);
         calculateBeta();
+        HMMMetrics.end(HMMMetrics.Phase.BETA,begin,endTime);
+        begin=HMMMetrics.begin(HMMMetrics.Phase.GAMMA);
         calculateGamma();
+        HMMMetrics.end(HMMMetrics.Phase.GAMMA,begin,endTime);
+    }
+
+    /**
+     * take the arrays of the workspace for a sequence of endTime symbols
+     */
+    void prepareArrays() {
+        workspace.ensureCapacity(endTime);
+        alpha = workspace.alpha;
+        beta = workspace.beta;
+        gamma = workspace.gamma;
     }
 
     /**
@@ -76,17 +149,12 @@ public class HMMForwardBackwardManipulator {
     public void calculateAlpha() {
         //initial
         int N = hmm.stateCount;
-        this.alpha = new double[endTime+1][N];
         for (int i = 0; i < N; ++i) {
-            alpha[0][i] = hmm.pi[i];
+            alpha[i] = hmm.pi[i];
         }
         //induction
         for (int t = 1; t <= endTime; ++t) {
-            for (int i = 0; i < N; ++i) {
-                for (int j = 0; j < N; ++j) {
-                    alpha[t][i] += alpha[t - 1][j] * hmm.a[j][i] * hmm.b[j][i][o[t - 1]];
-                }
-            }
+            HMMKernels.forward(hmm, o[t - 1], alpha, (t - 1) * N, alpha, t * N);
         }
     }
     /**
@@ -95,15 +163,10 @@ public class HMMForwardBackwardManipulator {
     public void calculateBeta() {
         //initial
         int N = hmm.stateCount;
-        this.beta = new double[endTime + 1][N];
-        for (int i = 0; i < N; ++i) beta[endTime][i] = 1;
+        for (int i = 0; i < N; ++i) beta[endTime * N + i] = 1;
         //induction
         for (int t = endTime - 1; t >= 0; --t) {
-            for (int i = 0; i < N; ++i) {
-                for (int j = 1; j < N; ++j) {
-                    beta[t][i] += beta[t + 1][j] * hmm.a[i][j] * hmm.b[i][j][o[t]];
-                }
-            }
+            HMMKernels.backward(hmm, o[t], beta, (t + 1) * N, beta, t * N);
         }
     }
     /**
@@ -115,16 +178,46 @@ public class HMMForwardBackwardManipulator {
         use the formula gamma[t][i]= alpha[t][i]beta[t][i] /sigma(alpha[t][i],beta[t][i])
          */
         int N=hmm.stateCount;
-        gamma=new double[endTime][N];
         for (int t=0;t<endTime;++t){
             double count=0;
+            int cur=t*N;
             for (int i=0;i<N;++i){
-                gamma[t][i]=alpha[t][i]*beta[t][i];
-                count+=gamma[t][i];
+                gamma[cur+i]=alpha[cur+i]*beta[cur+i];
+                count+=gamma[cur+i];
             }
             for (int i=0;i<N;++i){
-                gamma[t][i]/=count;
+                gamma[cur+i]/=count;
             }
         }
     }
+
+    /**
+     * get the log probability of the observation sequence, log P(O | model)
+     * alpha should have been prepared
+     * @return the log-likelihood
+     */
+    public double getLogLikelihood(){
+        double sum=0;
+        for (int i=0;i<hmm.stateCount;++i) sum+=alpha[endTime*hmm.stateCount+i];
+        return Math.log(sum);
+    }
+
+    /**
+     * E-step: add the expected counts of this sequence into the statistics.
+     * The xi of each timestep is computed into one buffer of one value per arc and folded
+     * into the sums immediately instead of keeping the whole T*N*N tensor.
+     * alpha & beta should have been prepared
+     * @param statistics the statistics to add to
+     * @param eps added to the normalizer of each timestep to avoid dividing by zero
+     */
+    void accumulateStatistics(HMMSufficientStatistics statistics,double eps){
+        int N=hmm.stateCount;
+        double xi[]=workspace.xi();
+        for (int t=0;t<endTime;++t){
+            statistics.addTransitions(hmm,o[t],alpha,t*N,beta,(t+1)*N,xi,eps,t==0);
+        }
+        statistics.logLikelihood+=getLogLikelihood();
+        statistics.sequenceCount++;
+        statistics.symbolCount+=endTime;
+    }
 }
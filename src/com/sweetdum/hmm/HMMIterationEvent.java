@@ -0,0 +1,105 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package com.sweetdum.hmm;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * HMMIterationEvent is the JDK Flight Recorder event of one training iteration,
+ * so recordings show the library work with its log-likelihood and convergence.
+ * Recording it costs a copy of the parameters and a diffWithOtherHMM() per iteration,
+ * so it is disabled by default and continuous recordings leave training untouched;
+ * enable it with the settings in hmm.jfc. Otherwise only the allocation of the event
+ * object remains.
+ */
+@Name("com.sweetdum.hmm.Iteration")
+@Label("HMM Training Iteration")
+@Category({"HMM"})
+@Description("One E-step and M-step of a trainer")
+@StackTrace(false)
+@Enabled(false)
+final class HMMIterationEvent extends Event {
+    @Label("Trainer")
+    String trainer;
+
+    @Label("Iteration")
+    long iteration;
+
+    @Label("Log-likelihood")
+    @Description("log P(O | model) of the data under the parameters before the update")
+    double logLikelihood;
+
+    @Label("Parameter Delta")
+    @Description("HMMRepresentation.diffWithOtherHMM() between the parameters before and after")
+    double parameterDelta;
+
+    @Label("Sequences")
+    long sequenceCount;
+
+    @Label("Symbols")
+    long symbolCount;
+
+    /**
+     * the parameters before the update, kept only while the event is recorded
+     */
+    private transient HMMRepresentation before;
+
+    /**
+     * begin the event before the E-step
+     * @param hmm the model about to be updated
+     */
+    static HMMIterationEvent start(HMMRepresentation hmm){
+        HMMIterationEvent ret=new HMMIterationEvent();
+        if (ret.isEnabled()){
+            ret.before=(HMMRepresentation)hmm.clone();
+            ret.begin();
+        }
+        return ret;
+    }
+
+    /**
+     * end the event after the M-step and commit it if it is recorded
+     * @param statistics the statistics of the iteration
+     */
+    void finish(String trainer,long iteration,HMMRepresentation hmm,HMMSufficientStatistics statistics){
+        if (before==null) return;
+        end();
+        if (shouldCommit()){
+            this.trainer=trainer;
+            this.iteration=iteration;
+            this.logLikelihood=statistics.logLikelihood;
+            this.parameterDelta=before.diffWithOtherHMM(hmm);
+            this.sequenceCount=statistics.sequenceCount;
+            this.symbolCount=statistics.symbolCount;
+            commit();
+        }
+        before=null;
+    }
+}
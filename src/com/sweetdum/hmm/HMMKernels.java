@@ -0,0 +1,441 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package com.sweetdum.hmm;
+
+/**
+ * HMMKernels holds the one-timestep inner loops shared by the algorithms.
+ * They read the per-symbol kernels a*b (or their logs) compiled by HMMRepresentation,
+ * so every arc costs one load and one multiply-add.
+ * Vectors are passed as (array, offset) so the same loops work on a single row
+ * and on a row of the flat [t*N+i] tables.
+ * Every loop walks the arcs of the model; dense models take a branch without
+ * the arcTarget indirection so the inner loop stays a plain contiguous one.
+ *
+ * The contiguous dense loops run on SIMD lanes when the jdk.incubator.vector module
+ * is present (java --add-modules jdk.incubator.vector) and the system property
+ * com.sweetdum.hmm.vector is not false; otherwise the scalar loops are used.
+ */
+final class HMMKernels {
+    private HMMKernels(){}
+
+    /**
+     * the dense row loops, implemented on the Vector API by HMMVectorKernels
+     */
+    interface RowKernels {
+        /**
+         * dst[dstOff+i] += from*m[mOff+i] for i in [0,n)
+         */
+        void multiplyAdd(double from,double m[],int mOff,double dst[],int dstOff,int n);
+
+        /**
+         * dst[dstOff+i] += v[vOff+i]*m[mOff+i] for i in [0,n)
+         */
+        void multiplyAddLanes(double v[],int vOff,double m[],int mOff,double dst[],int dstOff,int n);
+
+        /**
+         * dst[dstOff+l] = sigma(v[vOff+c*lanes+l]*m[mOff+c*lanes+l]) for c in [0,count), l in [0,lanes)
+         */
+        void dotLanes(double v[],int vOff,double m[],int mOff,double dst[],int dstOff,int lanes,int count);
+
+        /**
+         * @return sigma(m[mOff+i]*v[vOff+i]) for i in [0,n)
+         */
+        double dot(double m[],int mOff,double v[],int vOff,int n);
+
+        /**
+         * where from+w[wOff+i] > dst[i]: dst[i] = from+w[wOff+i] and phi[phiOff+i] = j, for i in [0,n)
+         */
+        void relax(double from,double w[],int wOff,double dst[],int phi[],int phiOff,int j,int n);
+
+        /**
+         * multiplyAdd in single precision
+         */
+        void multiplyAdd(float from,float m[],int mOff,float dst[],int dstOff,int n);
+
+        /**
+         * dot in single precision
+         */
+        float dot(float m[],int mOff,float v[],int vOff,int n);
+
+        /**
+         * relax in single precision
+         */
+        void relax(float from,float w[],int wOff,float dst[],int phi[],int phiOff,int j,int n);
+    }
+
+    /**
+     * the SIMD row kernels, null when the Vector API is not available
+     */
+    static final RowKernels VECTOR=loadVectorKernels();
+
+    private static RowKernels loadVectorKernels(){
+        if ("false".equals(System.getProperty("com.sweetdum.hmm.vector"))) return null;
+        try {
+            if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) return null;
+            return (RowKernels)Class.forName("com.sweetdum.hmm.HMMVectorKernels")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException|LinkageError e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return whether the SIMD kernels are in use
+     */
+    static boolean isVectorized(){
+        return VECTOR!=null;
+    }
+
+    /**
+     * forward step: dst[i] = sigma(src[j]*M[k][j][i]), transfer from j to i,
+     * M[k] being the kernel a*b of the model for o[k]
+     * @param k the observation emitted by the transfers
+     */
+    static void forward(HMMRepresentation hmm,int k,double src[],int srcOff,double dst[],int dstOff){
+        int N=hmm.stateCount;
+        double m[]=hmm.kernel(k);
+        int slab=hmm.kernelOffset(k);
+        for (int i=0;i<N;++i) dst[dstOff+i]=0;
+        for (int j=0;j<N;++j){
+            double from=src[srcOff+j];
+            if (from!=0) expand(hmm,m,slab,j,from,dst,dstOff);
+        }
+    }
+
+    /**
+     * dst[dstOff+i] += v[vOff+i]*m[mOff+i] for i in [0,n): one arc of a sparse HMMModelBank,
+     * whose lanes are the models of a block
+     */
+    static void multiplyAddLanes(double v[],int vOff,double m[],int mOff,double dst[],int dstOff,int n){
+        if (VECTOR!=null){
+            VECTOR.multiplyAddLanes(v,vOff,m,mOff,dst,dstOff,n);
+            return;
+        }
+        for (int i=0;i<n;++i){
+            dst[dstOff+i]+=v[vOff+i]*m[mOff+i];
+        }
+    }
+
+    /**
+     * dst[dstOff+l] = sigma(v[vOff+c*lanes+l]*m[mOff+c*lanes+l]) for c in [0,count), l in [0,lanes):
+     * all the arcs into one state of a dense HMMModelBank, lane by lane
+     */
+    static void dotLanes(double v[],int vOff,double m[],int mOff,double dst[],int dstOff,int lanes,int count){
+        if (VECTOR!=null){
+            VECTOR.dotLanes(v,vOff,m,mOff,dst,dstOff,lanes,count);
+            return;
+        }
+        for (int l=0;l<lanes;++l) dst[dstOff+l]=0;
+        for (int c=0;c<count;++c){
+            int row=c*lanes;
+            for (int l=0;l<lanes;++l){
+                dst[dstOff+l]+=v[vOff+row+l]*m[mOff+row+l];
+            }
+        }
+    }
+
+    /**
+     * forward step expanding only from the active source states
+     * @param active the ids of the active states
+     * @param activeCount the count of active states
+     */
+    static void forward(HMMRepresentation hmm,int k,double src[],int srcOff,double dst[],int dstOff,
+                        int active[],int activeCount){
+        int N=hmm.stateCount;
+        double m[]=hmm.kernel(k);
+        int slab=hmm.kernelOffset(k);
+        for (int i=0;i<N;++i) dst[dstOff+i]=0;
+        for (int x=0;x<activeCount;++x){
+            int j=active[x];
+            expand(hmm,m,slab,j,src[srcOff+j],dst,dstOff);
+        }
+    }
+
+    /**
+     * dst[i] += from*M[k][j][i] for the arcs of s[j]
+     * @param m the array holding the kernel of o[k], which starts at slab
+     */
+    private static void expand(HMMRepresentation hmm,double m[],int slab,int j,double from,double dst[],int dstOff){
+        int begin=hmm.rowStart[j], end=hmm.rowStart[j+1];
+        if (hmm.dense){
+            if (VECTOR!=null){
+                VECTOR.multiplyAdd(from,m,slab+begin,dst,dstOff,end-begin);
+                return;
+            }
+            for (int x=begin;x<end;++x){
+                dst[dstOff+x-begin]+=from*m[slab+x];
+            }
+        } else {
+            int target[]=hmm.arcTarget;
+            for (int x=begin;x<end;++x){
+                dst[dstOff+target[x]]+=from*m[slab+x];
+            }
+        }
+    }
+
+    /**
+     * backward step: dst[i] = sigma(M[k][i][j]*src[j])
+     * @param k the observation emitted by the transfers
+     */
+    static void backward(HMMRepresentation hmm,int k,double src[],int srcOff,double dst[],int dstOff){
+        int N=hmm.stateCount;
+        double m[]=hmm.kernel(k);
+        int slab=hmm.kernelOffset(k);
+        int rowStart[]=hmm.rowStart, target[]=hmm.arcTarget;
+        for (int i=0;i<N;++i){
+            int begin=rowStart[i], end=rowStart[i+1];
+            double sum=0;
+            if (hmm.dense){
+                if (VECTOR!=null){
+                    sum=VECTOR.dot(m,slab+begin,src,srcOff,end-begin);
+                } else {
+                    for (int x=begin;x<end;++x){
+                        sum+=m[slab+x]*src[srcOff+x-begin];
+                    }
+                }
+            } else {
+                for (int x=begin;x<end;++x){
+                    sum+=m[slab+x]*src[srcOff+target[x]];
+                }
+            }
+            dst[dstOff+i]=sum;
+        }
+    }
+
+    /**
+     * Viterbi step in log space: dst[i] = max(src[j]+log M[k][j][i]), the best j goes to phi
+     * @param k the observation emitted by the transfers
+     */
+    static void viterbi(HMMRepresentation hmm,int k,double src[],double dst[],int phi[],int phiOff){
+        viterbiStep(hmm,hmm.logKernel(k),hmm.kernelOffset(k),src,dst,phi,phiOff);
+    }
+
+    /**
+     * Viterbi step in log space on a private copy of the log kernels, see logKernels
+     * @param logKernels the table filled by logKernels
+     */
+    static void viterbi(HMMRepresentation hmm,double logKernels[],int k,double src[],double dst[],int phi[],int phiOff){
+        viterbiStep(hmm,logKernels,k*hmm.arcCount,src,dst,phi,phiOff);
+    }
+
+    private static void viterbiStep(HMMRepresentation hmm,double w[],int slab,double src[],double dst[],int phi[],int phiOff){
+        int N=hmm.stateCount;
+        for (int i=0;i<N;++i){
+            dst[i]=Double.NEGATIVE_INFINITY;
+            phi[phiOff+i]=0;
+        }
+        for (int j=0;j<N;++j){
+            double from=src[j];
+            if (from!=Double.NEGATIVE_INFINITY) relax(hmm,w,slab,j,from,dst,phi,phiOff);
+        }
+    }
+
+    /**
+     * Viterbi step in log space expanding only from the active source states
+     * @param active the ids of the active states
+     * @param activeCount the count of active states
+     */
+    static void viterbi(HMMRepresentation hmm,int k,double src[],double dst[],int phi[],int phiOff,
+                        int active[],int activeCount){
+        int N=hmm.stateCount;
+        double w[]=hmm.logKernel(k);
+        int slab=hmm.kernelOffset(k);
+        for (int i=0;i<N;++i){
+            dst[i]=Double.NEGATIVE_INFINITY;
+            phi[phiOff+i]=0;
+        }
+        for (int x=0;x<activeCount;++x){
+            int j=active[x];
+            relax(hmm,w,slab,j,src[j],dst,phi,phiOff);
+        }
+    }
+
+    /**
+     * dst[i] = max(dst[i], from+w[j][i]) for the arcs of s[j], transfer from j to i
+     * @param w the array holding the log kernel of o[k], which starts at slab
+     */
+    private static void relax(HMMRepresentation hmm,double w[],int slab,int j,double from,
+                              double dst[],int phi[],int phiOff){
+        int begin=hmm.rowStart[j], end=hmm.rowStart[j+1];
+        if (hmm.dense&&VECTOR!=null){
+            VECTOR.relax(from,w,slab+begin,dst,phi,phiOff,j,end-begin);
+            return;
+        }
+        int target[]=hmm.arcTarget;
+        for (int x=begin;x<end;++x){
+            int i=hmm.dense?x-begin:target[x];
+            double tmp=from+w[slab+x];
+            if (tmp>dst[i]){
+                dst[i]=tmp;
+                phi[phiOff+i]=j;
+            }
+        }
+    }
+
+    /**
+     * forward step in single precision on the float kernels, see forward
+     */
+    static void forward(HMMRepresentation hmm,int k,float src[],int srcOff,float dst[],int dstOff){
+        int N=hmm.stateCount;
+        float m[]=hmm.floatKernel(k);
+        int slab=hmm.kernelOffset(k);
+        int rowStart[]=hmm.rowStart, target[]=hmm.arcTarget;
+        for (int i=0;i<N;++i) dst[dstOff+i]=0;
+        for (int j=0;j<N;++j){
+            float from=src[srcOff+j];
+            if (from==0) continue;
+            int begin=rowStart[j], end=rowStart[j+1];
+            if (hmm.dense&&VECTOR!=null){
+                VECTOR.multiplyAdd(from,m,slab+begin,dst,dstOff,end-begin);
+            } else if (hmm.dense){
+                for (int x=begin;x<end;++x) dst[dstOff+x-begin]+=from*m[slab+x];
+            } else {
+                for (int x=begin;x<end;++x) dst[dstOff+target[x]]+=from*m[slab+x];
+            }
+        }
+    }
+
+    /**
+     * backward step in single precision on the float kernels, see backward
+     */
+    static void backward(HMMRepresentation hmm,int k,float src[],int srcOff,float dst[],int dstOff){
+        int N=hmm.stateCount;
+        float m[]=hmm.floatKernel(k);
+        int slab=hmm.kernelOffset(k);
+        int rowStart[]=hmm.rowStart, target[]=hmm.arcTarget;
+        for (int i=0;i<N;++i){
+            int begin=rowStart[i], end=rowStart[i+1];
+            float sum=0;
+            if (hmm.dense&&VECTOR!=null){
+                sum=VECTOR.dot(m,slab+begin,src,srcOff,end-begin);
+            } else if (hmm.dense){
+                for (int x=begin;x<end;++x) sum+=m[slab+x]*src[srcOff+x-begin];
+            } else {
+                for (int x=begin;x<end;++x) sum+=m[slab+x]*src[srcOff+target[x]];
+            }
+            dst[dstOff+i]=sum;
+        }
+    }
+
+    /**
+     * Viterbi step in log space and single precision on the float log kernels, see viterbi
+     */
+    static void viterbi(HMMRepresentation hmm,int k,float src[],float dst[],int phi[],int phiOff){
+        int N=hmm.stateCount;
+        float w[]=hmm.floatLogKernel(k);
+        int slab=hmm.kernelOffset(k);
+        int rowStart[]=hmm.rowStart, target[]=hmm.arcTarget;
+        for (int i=0;i<N;++i){
+            dst[i]=Float.NEGATIVE_INFINITY;
+            phi[phiOff+i]=0;
+        }
+        for (int j=0;j<N;++j){
+            float from=src[j];
+            if (from==Float.NEGATIVE_INFINITY) continue;
+            int begin=rowStart[j], end=rowStart[j+1];
+            if (hmm.dense&&VECTOR!=null){
+                VECTOR.relax(from,w,slab+begin,dst,phi,phiOff,j,end-begin);
+                continue;
+            }
+            for (int x=begin;x<end;++x){
+                int i=hmm.dense?x-begin:target[x];
+                float tmp=from+w[slab+x];
+                if (tmp>dst[i]){
+                    dst[i]=tmp;
+                    phi[phiOff+i]=j;
+                }
+            }
+        }
+    }
+
+    /**
+     * dst = v*m for a dense N*N matrix in row-major order: dst[j] = sigma(v[i]*m[i*N+j])
+     */
+    static void multiplyRow(double v[],double m[],int N,double dst[]){
+        for (int j=0;j<N;++j) dst[j]=0;
+        for (int i=0;i<N;++i){
+            if (v[i]!=0) multiplyAdd(v[i],m,i*N,dst,0,N);
+        }
+    }
+
+    /**
+     * dst = x*y for dense N*N matrices in row-major order, dst must not be x or y
+     */
+    static void multiplyMatrix(double x[],double y[],int N,double dst[]){
+        for (int i=0;i<N*N;++i) dst[i]=0;
+        for (int i=0;i<N;++i){
+            for (int l=0;l<N;++l){
+                double from=x[i*N+l];
+                if (from!=0) multiplyAdd(from,y,l*N,dst,i*N,N);
+            }
+        }
+    }
+
+    private static void multiplyAdd(double from,double m[],int mOff,double dst[],int dstOff,int n){
+        if (VECTOR!=null){
+            VECTOR.multiplyAdd(from,m,mOff,dst,dstOff,n);
+            return;
+        }
+        for (int i=0;i<n;++i) dst[dstOff+i]+=from*m[mOff+i];
+    }
+
+    /**
+     * copy log of the kernels of all the symbols into dst, in the layout of b,
+     * for decoders which keep the parameters they were created with
+     * @param dst the array to fill, of length observationCount*arcCount
+     */
+    static void logKernels(HMMRepresentation hmm,double dst[]){
+        int arcCount=hmm.arcCount;
+        for (int k=0;k<hmm.observationCount;++k){
+            System.arraycopy(hmm.logKernel(k),hmm.kernelOffset(k),dst,k*arcCount,arcCount);
+        }
+    }
+
+    /**
+     * scale v[off,off+n) to sum 1
+     * @return the sum before scaling, the vector is left untouched when it is 0
+     */
+    static double normalize(double v[],int off,int n){
+        double sum=0;
+        for (int i=0;i<n;++i) sum+=v[off+i];
+        if (sum>0){
+            double inv=1/sum;
+            for (int i=0;i<n;++i) v[off+i]*=inv;
+        }
+        return sum;
+    }
+
+    /**
+     * scale v[off,off+n) to sum 1, summing in double
+     * @return the sum before scaling, the vector is left untouched when it is 0
+     */
+    static double normalize(float v[],int off,int n){
+        double sum=0;
+        for (int i=0;i<n;++i) sum+=v[off+i];
+        if (sum>0){
+            float inv=(float)(1/sum);
+            for (int i=0;i<n;++i) v[off+i]*=inv;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package com.sweetdum.hmm;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HMMMetrics counts the calls, symbols, time and allocation of the hot phases of the
+ * library, for every thread together. It is off unless the JVM is started with
+ * -Dcom.sweetdum.hmm.metrics=true: the switch is a static final constant, so with
+ * metrics off the JIT removes the instrumentation and the hot paths cost as before.
+ *
+ * Latencies go into histograms of power-of-two buckets, so percentiles are accurate
+ * to a factor of 2. The allocated bytes are those of the thread running the phase,
+ * the E-step on an executor only counts the merging thread.
+ */
+public final class HMMMetrics {
+    /**
+     * whether the phases are measured, read once from com.sweetdum.hmm.metrics
+     */
+    public static final boolean ENABLED=Boolean.getBoolean("com.sweetdum.hmm.metrics");
+
+    /**
+     * the measured phases, a call counts the sequences it processed
+     */
+    public enum Phase {
+        /**
+         * forward pass of a forward-backward engine
+         */
+        ALPHA,
+        /**
+         * backward pass, for the checkpointed engine the whole backward sweep
+         * including the recomputed alphas and the expected counts
+         */
+        BETA,
+        GAMMA,
+        VITERBI,
+        /**
+         * a whole E-step of a trainer or of HMMSolver.estimateParameter()
+         */
+        E_STEP,
+        M_STEP
+    }
+
+    private static final int BUCKETS=64;
+
+    private static final class PhaseMetrics {
+        final LongAdder calls=new LongAdder();
+        final LongAdder symbols=new LongAdder();
+        final LongAdder nanos=new LongAdder();
+        final LongAdder allocated=new LongAdder();
+        final LongAccumulator maxNanos=new LongAccumulator(Math::max,0);
+        /**
+         * histogram[b] := count of calls taking [2^(b-1),2^b) nanoseconds
+         */
+        final LongAdder histogram[]=new LongAdder[BUCKETS];
+
+        PhaseMetrics(){
+            for (int b=0;b<BUCKETS;++b) histogram[b]=new LongAdder();
+        }
+
+        void reset(){
+            calls.reset();
+            symbols.reset();
+            nanos.reset();
+            allocated.reset();
+            maxNanos.reset();
+            for (LongAdder bucket:histogram) bucket.reset();
+        }
+    }
+
+    private static final PhaseMetrics PHASES[]=new PhaseMetrics[Phase.values().length];
+    /**
+     * measures the allocation of the current thread, null when the JVM can not
+     */
+    private static final com.sun.management.ThreadMXBean THREADS;
+    /**
+     * the allocated bytes of the current thread when each phase began
+     */
+    private static final ThreadLocal<long[]> ALLOCATION_MARKS=new ThreadLocal<long[]>(){
+        @Override
+        protected long[] initialValue() {
+            return new long[PHASES.length];
+        }
+    };
+
+    static {
+        for (int p=0;p<PHASES.length;++p) PHASES[p]=new PhaseMetrics();
+        com.sun.management.ThreadMXBean threads=null;
+        if (ENABLED&&ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean){
+            threads=(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+            if (!threads.isThreadAllocatedMemorySupported()||!threads.isThreadAllocatedMemoryEnabled()) threads=null;
+        }
+        THREADS=threads;
+    }
+
+    private HMMMetrics(){
+    }
+
+    /**
+     * mark the beginning of a phase on the current thread
+     * @return the value to pass to end()
+     */
+    static long begin(Phase phase){
+        if (!ENABLED) return 0;
+        if (THREADS!=null) ALLOCATION_MARKS.get()[phase.ordinal()]=THREADS.getCurrentThreadAllocatedBytes();
+        return System.nanoTime();
+    }
+
+    /**
+     * record a phase begun on the current thread
+     * @param begin the value returned by begin()
+     * @param symbols the count of observation symbols processed
+     */
+    static void end(Phase phase,long begin,long symbols){
+        if (!ENABLED) return;
+        long nanos=System.nanoTime()-begin;
+        PhaseMetrics m=PHASES[phase.ordinal()];
+        m.calls.increment();
+        m.symbols.add(symbols);
+        m.nanos.add(nanos);
+        m.maxNanos.accumulate(nanos);
+        m.histogram[Math.min(BUCKETS-1,64-Long.numberOfLeadingZeros(Math.max(0,nanos)))].increment();
+        if (THREADS!=null){
+            long allocated=THREADS.getCurrentThreadAllocatedBytes()-ALLOCATION_MARKS.get()[phase.ordinal()];
+            if (allocated>0) m.allocated.add(allocated);
+        }
+    }
+
+    public static boolean isEnabled(){
+        return ENABLED;
+    }
+
+    /**
+     * @return the count of calls, which is the count of sequences for the per-sequence phases
+     */
+    public static long getCallCount(Phase phase){
+        return PHASES[phase.ordinal()].calls.sum();
+    }
+
+    /**
+     * @return the count of observation symbols processed
+     */
+    public static long getSymbolCount(Phase phase){
+        return PHASES[phase.ordinal()].symbols.sum();
+    }
+
+    public static long getTotalNanos(Phase phase){
+        return PHASES[phase.ordinal()].nanos.sum();
+    }
+
+    public static long getMaxNanos(Phase phase){
+        return PHASES[phase.ordinal()].maxNanos.get();
+    }
+
+    /**
+     * @return the bytes allocated by the threads running the phase, 0 when the JVM can not tell
+     */
+    public static long getAllocatedBytes(Phase phase){
+        return PHASES[phase.ordinal()].allocated.sum();
+    }
+
+    /**
+     * @param quantile in [0,1], e.g. 0.99
+     * @return an upper bound of the latency of the quantile, within a factor of 2, in nanoseconds
+     */
+    public static long getPercentileNanos(Phase phase,double quantile){
+        PhaseMetrics m=PHASES[phase.ordinal()];
+        long counts[]=new long[BUCKETS];
+        long total=0;
+        for (int b=0;b<BUCKETS;++b){
+            counts[b]=m.histogram[b].sum();
+            total+=counts[b];
+        }
+        if (total==0) return 0;
+        long rank=(long)Math.ceil(quantile*total);
+        long seen=0;
+        for (int b=0;b<BUCKETS;++b){
+            seen+=counts[b];
+            if (seen>=rank&&counts[b]>0) return b==0?0:Math.min(1L<<Math.min(b,62),m.maxNanos.get());
+        }
+        return m.maxNanos.get();
+    }
+
+    /**
+     * set every counter back to zero
+     */
+    public static void reset(){
+        for (PhaseMetrics m:PHASES) m.reset();
+    }
+
+    /**
+     * @return one line per phase with calls, symbols, latency and allocation
+     */
+    public static String summary(){
+        StringBuilder ret=new StringBuilder();
+        for (Phase phase:Phase.values()){
+            long calls=getCallCount(phase);
+            if (calls==0) continue;
+            long nanos=getTotalNanos(phase);
+            long symbols=getSymbolCount(phase);
+            ret.append(String.format(Locale.ROOT,
+                    "%-8s calls=%d symbols=%d total=%.3fms mean=%.1fus p50<=%.1fus p99<=%.1fus max=%.1fus ns/symbol=%.1f bytes/call=%d%n",
+                    phase,calls,symbols,nanos/1e6,nanos/1e3/calls,
+                    getPercentileNanos(phase,0.5)/1e3,getPercentileNanos(phase,0.99)/1e3,getMaxNanos(phase)/1e3,
+                    symbols==0?0:(double)nanos/symbols,getAllocatedBytes(phase)/calls));
+        }
+        return ret.toString();
+    }
+}
@@ -0,0 +1,323 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package com.sweetdum.hmm;
+
+import java.util.Arrays;
+
+/**
+ * HMMModelBank scores one observation sequence against many models of the same size
+ * and topology in one fused scaled forward pass, e.g. one model per class.
+ *
+ * The models are packed in blocks of LANES: within a block the kernels a*b are stored
+ * model-innermost, and so is alpha, so one step of the forward pass works on all the
+ * models of the block at once on SIMD lanes, like the dense rows of HMMKernels. Dense
+ * models store the kernels by target state, so the new alpha of a state is a lane-wise
+ * dot product kept in registers; sparse models multiply-add along their arcs. Each lane keeps
+ * its own scaling coefficients, so every model gets its exact log-likelihood, and the
+ * observation symbols are read once per block instead of once per model.
+ *
+ * The top-k variant prunes hopeless models every PRUNE_INTERVAL symbols: a model whose
+ * log-likelihood so far is more than logBeam below the k-th best stops being reported,
+ * and a block whose models are all pruned stops being computed. As the log-likelihood
+ * of a prefix only decreases with more symbols, a pruned model can only have fallen
+ * further, but a model kept in the top k may fall too, so the cut is approximate like
+ * the beam of HMMBeamSearch.
+ *
+ * The bank copies the parameters on creation. It is thread-safe, the working rows are
+ * kept per thread.
+ */
+public class HMMModelBank {
+    /**
+     * the count of models in one block
+     */
+    static final int LANES=16;
+    /**
+     * the count of symbols between two pruning decisions of the top-k variant
+     */
+    static final int PRUNE_INTERVAL=32;
+    /**
+     * the products of scaling coefficients are folded into the log-likelihood below it
+     */
+    private static final double FOLD=1e-250;
+
+    final int stateCount;
+    final int observationCount;
+    final int arcCount;
+    final int modelCount;
+    final int blockCount;
+    /**
+     * the shared topology of the models
+     */
+    final int rowStart[], arcTarget[];
+    final boolean dense;
+    /**
+     * pi[(b*N+i)*LANES+l] of model b*LANES+l
+     */
+    final double pi[];
+    /**
+     * the kernel of arc x for o[k] of model b*LANES+l at kernels[b][(k*arcCount+y)*LANES+l],
+     * y being x for a sparse model and j*N+i for the arc x=i*N+j of a dense model,
+     * 0 for the padding lanes
+     */
+    final double kernels[][];
+    private final ThreadLocal<Scratch> scratch;
+
+    /**
+     * the working rows of one thread
+     */
+    private static final class Scratch {
+        /**
+         * alpha[(b*N+i)*LANES+l] of the current timestep
+         */
+        final double alpha[];
+        final double next[];
+        final double sums[]=new double[LANES];
+        /**
+         * log-likelihood so far of model m is logLikelihood[m]+log(product[m])
+         */
+        final double logLikelihood[], product[];
+        final boolean active[];
+        final boolean activeBlock[];
+        final double select[];
+        int activeCount;
+
+        Scratch(int N,int blockCount){
+            alpha=new double[blockCount*N*LANES];
+            next=new double[N*LANES];
+            logLikelihood=new double[blockCount*LANES];
+            product=new double[blockCount*LANES];
+            active=new boolean[blockCount*LANES];
+            activeBlock=new boolean[blockCount];
+            select=new double[blockCount*LANES];
+        }
+    }
+
+    /**
+     * pack the models into a bank
+     * @param models models of the same state count, observation count and topology
+     */
+    public HMMModelBank(HMMRepresentation models[]){
+        if (models.length==0) throw new IllegalArgumentException("the bank needs at least one model");
+        HMMRepresentation first=models[0];
+        int N=first.stateCount, M=first.observationCount, arcs=first.arcCount;
+        for (HMMRepresentation hmm:models){
+            if (hmm.stateCount!=N||hmm.observationCount!=M||hmm.arcCount!=arcs
+                    ||!(hmm.arcTarget==first.arcTarget||(hmm.dense&&first.dense)
+                        ||(Arrays.equals(hmm.rowStart,first.rowStart)&&Arrays.equals(hmm.arcTarget,first.arcTarget)))){
+                throw new IllegalArgumentException("the models of a bank must have the same size and topology");
+            }
+        }
+        this.stateCount=N;
+        this.observationCount=M;
+        this.arcCount=arcs;
+        this.modelCount=models.length;
+        this.blockCount=(modelCount+LANES-1)/LANES;
+        this.rowStart=first.rowStart;
+        this.arcTarget=first.arcTarget;
+        this.dense=first.dense;
+        boolean dense=this.dense;
+        if ((long)M*arcs*LANES>Integer.MAX_VALUE) throw new IllegalArgumentException("models are too large for a bank");
+        pi=new double[blockCount*N*LANES];
+        kernels=new double[blockCount][M*arcs*LANES];
+        for (int n=0;n<modelCount;++n){
+            HMMRepresentation hmm=models[n];
+            int b=n/LANES, l=n%LANES;
+            for (int i=0;i<N;++i) pi[(b*N+i)*LANES+l]=hmm.pi[i];
+            double dst[]=kernels[b];
+            for (int k=0;k<M;++k){
+                double m[]=hmm.kernel(k);
+                int off=hmm.kernelOffset(k);
+                for (int x=0;x<arcs;++x){
+                    int y=dense?(x%N)*N+x/N:x;
+                    dst[(k*arcs+y)*LANES+l]=m[off+x];
+                }
+            }
+        }
+        final int blocks=blockCount;
+        scratch=ThreadLocal.withInitial(()->new Scratch(N,blocks));
+    }
+
+    public int getModelCount() {
+        return modelCount;
+    }
+
+    /**
+     * @return log P(O | model) of every model, in the order of the bank
+     */
+    public double[] score(int o[]){
+        return score(o,o.length,new double[modelCount]);
+    }
+
+    /**
+     * score the first length symbols of o into a caller provided array
+     * @param ret the array to fill, its length should be at least getModelCount()
+     * @return ret
+     */
+    public double[] score(int o[],int length,double ret[]){
+        return score(o,length,modelCount,Double.POSITIVE_INFINITY,ret);
+    }
+
+    /**
+     * score with early pruning of the models that can not make the top k
+     * @param topK the count of best models to keep
+     * @param logBeam how far below the k-th best log-likelihood so far a model is pruned,
+     *                Double.POSITIVE_INFINITY to never prune
+     * @param ret the array to fill, pruned models get Double.NEGATIVE_INFINITY
+     * @return ret
+     */
+    public double[] score(int o[],int length,int topK,double logBeam,double ret[]){
+        if (topK<1) throw new IllegalArgumentException("topK must be positive");
+        if (!(logBeam>=0)) throw new IllegalArgumentException("logBeam must not be negative");
+        if (length<0||length>o.length) throw new IllegalArgumentException("invalid length "+length);
+        Scratch s=scratch.get();
+        start(s);
+        boolean pruning=topK<modelCount&&logBeam!=Double.POSITIVE_INFINITY;
+        int interval=pruning?PRUNE_INTERVAL:Math.max(1,length);
+        for (int from=0;from<length;from+=interval){
+            int to=Math.min(length,from+interval);
+            for (int b=0;b<blockCount;++b){
+                if (!s.activeBlock[b]) continue;
+                for (int t=from;t<to;++t) step(s,b,o[t]);
+            }
+            if (pruning&&to<length) prune(s,topK,logBeam);
+        }
+        for (int n=0;n<modelCount;++n){
+            ret[n]=s.active[n]?s.logLikelihood[n]+Math.log(s.product[n]):Double.NEGATIVE_INFINITY;
+        }
+        return ret;
+    }
+
+    /**
+     * @return the ids of the best models, at most topK of them, best first
+     * @see #score(int[],int,int,double,double[])
+     */
+    public int[] best(int o[],int topK,double logBeam){
+        double scores[]=score(o,o.length,topK,logBeam,new double[modelCount]);
+        Integer order[]=new Integer[modelCount];
+        for (int n=0;n<modelCount;++n) order[n]=n;
+        Arrays.sort(order,(x,y)->Double.compare(scores[y],scores[x]));
+        int count=0;
+        while (count<Math.min(topK,modelCount)&&scores[order[count]]>Double.NEGATIVE_INFINITY) ++count;
+        int ret[]=new int[count];
+        for (int n=0;n<count;++n) ret[n]=order[n];
+        return ret;
+    }
+
+    /**
+     * @return the count of models not pruned by the last call of the current thread
+     */
+    public int getActiveCount(){
+        return scratch.get().activeCount;
+    }
+
+    /**
+     * alpha[0] := pi normalized per model
+     */
+    private void start(Scratch s){
+        int N=stateCount;
+        System.arraycopy(pi,0,s.alpha,0,pi.length);
+        Arrays.fill(s.logLikelihood,0);
+        Arrays.fill(s.product,1);
+        Arrays.fill(s.active,0,modelCount,true);
+        Arrays.fill(s.activeBlock,true);
+        s.activeCount=modelCount;
+        for (int b=0;b<blockCount;++b) normalize(s,b,s.alpha,b*N*LANES);
+    }
+
+    /**
+     * one scaled forward step of the models of block b
+     */
+    private void step(Scratch s,int b,int k){
+        int N=stateCount;
+        double alpha[]=s.alpha, next[]=s.next, m[]=kernels[b];
+        int aOff=b*N*LANES, slab=k*arcCount*LANES;
+        if (dense){
+            for (int j=0;j<N;++j){
+                HMMKernels.dotLanes(alpha,aOff,m,slab+j*N*LANES,next,j*LANES,LANES,N);
+            }
+        } else {
+            Arrays.fill(next,0);
+            for (int i=0;i<N;++i){
+                int from=aOff+i*LANES;
+                for (int x=rowStart[i];x<rowStart[i+1];++x){
+                    HMMKernels.multiplyAddLanes(alpha,from,m,slab+x*LANES,next,arcTarget[x]*LANES,LANES);
+                }
+            }
+        }
+        System.arraycopy(next,0,alpha,aOff,N*LANES);
+        normalize(s,b,alpha,aOff);
+    }
+
+    /**
+     * scale the rows of block b at off to sum 1 per lane and record the coefficients
+     */
+    private void normalize(Scratch s,int b,double rows[],int off){
+        int N=stateCount;
+        double sums[]=s.sums;
+        Arrays.fill(sums,0);
+        for (int i=0;i<N;++i){
+            int row=off+i*LANES;
+            for (int l=0;l<LANES;++l) sums[l]+=rows[row+l];
+        }
+        int lane=b*LANES;
+        for (int l=0;l<LANES;++l){
+            double c=sums[l];
+            double product=s.product[lane+l]*c;
+            if (product<FOLD){
+                s.logLikelihood[lane+l]+=Math.log(product);
+                product=1;
+            }
+            s.product[lane+l]=product;
+            sums[l]=c>0?1/c:0;
+        }
+        for (int i=0;i<N;++i){
+            int row=off+i*LANES;
+            for (int l=0;l<LANES;++l) rows[row+l]*=sums[l];
+        }
+    }
+
+    /**
+     * drop the models more than logBeam below the k-th best log-likelihood so far
+     */
+    private void prune(Scratch s,int topK,double logBeam){
+        if (s.activeCount<=topK) return;
+        int count=0;
+        for (int n=0;n<modelCount;++n){
+            if (s.active[n]) s.select[count++]=s.logLikelihood[n]+Math.log(s.product[n]);
+        }
+        double cut=HMMBeamSearch.select(s.select,count,topK)-logBeam;
+        for (int b=0;b<blockCount;++b){
+            if (!s.activeBlock[b]) continue;
+            boolean live=false;
+            for (int n=b*LANES;n<Math.min(modelCount,(b+1)*LANES);++n){
+                if (s.active[n]&&!(s.logLikelihood[n]+Math.log(s.product[n])>=cut)){
+                    s.active[n]=false;
+                    --s.activeCount;
+                }
+                live|=s.active[n];
+            }
+            s.activeBlock[b]=live;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package com.sweetdum.hmm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * HMMModelFile stores a model in a versioned binary file which can be memory-mapped,
+ * so large models load without parsing and processes mapping the same file share its pages.
+ *
+ * Layout, all values little-endian:
+ * <pre>
+ * header, 64 bytes:
+ *   int magic "HMMF", int version, int stateCount, int observationCount,
+ *   int arcCount, int flags (bit 0: dense, bit 1: log emissions), long body length,
+ *   long CRC32C of the body
+ * body:
+ *   double pi[stateCount]
+ *   double a[arcCount]
+ *   int rowStart[stateCount+1], int arcTarget[arcCount], padded to 8 bytes (sparse models only)
+ *   double b[observationCount*arcCount], in the layout of HMMRepresentation.b
+ *   double log b[observationCount*arcCount] (only with the log emissions flag)
+ * </pre>
+ * A mapped model copies pi, a and the topology into the heap, the emission tensor
+ * is read from the mapping and is read-only; clone() it for training.
+ * With the log emissions the log kernels of a mapped model, used by Viterbi and the
+ * decoders, add the mapped log b to log a instead of calling Math.log for every arc.
+ */
+public final class HMMModelFile {
+    /**
+     * "HMMF" read as a little-endian int
+     */
+    static final int MAGIC=0x464D4D48;
+    static final int VERSION=1;
+    static final int HEADER_SIZE=64;
+    private static final int FLAG_DENSE=1;
+    private static final int FLAG_LOG_EMISSIONS=2;
+    /**
+     * the largest region covered by one mapping
+     */
+    private static final long MAX_MAPPING=Integer.MAX_VALUE;
+
+    private HMMModelFile(){
+    }
+
+    /**
+     * write the model to path, replacing the file atomically if it exists: the model is written
+     * under a temporary name in the same directory, forced to disk and renamed over path.
+     * Processes which mapped the old file keep reading the old parameters, and a crash
+     * never leaves a torn file behind.
+     */
+    public static void write(HMMRepresentation hmm,Path path) throws IOException {
+        write(hmm,path,false);
+    }
+
+    /**
+     * write the model to path like write(hmm,path)
+     * @param logEmissions whether to store log b after b, doubling the size of the emissions
+     *                     for decoding the mapped model without a log per arc
+     */
+    public static void write(HMMRepresentation hmm,Path path,boolean logEmissions) throws IOException {
+        Path target=path.toAbsolutePath();
+        Path tmp=target.resolveSibling(target.getFileName()+"."+ProcessHandle.current().pid()
+                +"."+System.nanoTime()+".tmp");
+        try {
+            try (FileChannel channel=FileChannel.open(tmp,StandardOpenOption.CREATE_NEW,StandardOpenOption.WRITE)){
+                write(hmm,channel,logEmissions);
+                channel.force(true);
+            }
+            Files.move(tmp,target,StandardCopyOption.ATOMIC_MOVE,StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException|RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+
+    /**
+     * write the header and the body into an empty file
+     */
+    private static void write(HMMRepresentation hmm,FileChannel channel,boolean logEmissions) throws IOException {
+        int N=hmm.stateCount, M=hmm.observationCount, arcCount=hmm.arcCount;
+        BlockWriter out=new BlockWriter(channel);
+        channel.position(HEADER_SIZE);
+        for (int i=0;i<N;++i) out.putDouble(hmm.pi[i]);
+        for (int x=0;x<arcCount;++x) out.putDouble(hmm.a[x]);
+        if (!hmm.dense){
+            for (int i=0;i<=N;++i) out.putInt(hmm.rowStart[i]);
+            for (int x=0;x<arcCount;++x) out.putInt(hmm.arcTarget[x]);
+            if ((N+1+arcCount)%2!=0) out.putInt(0);
+        }
+        for (int k=0;k<M;++k){
+            double b[]=hmm.slab(k);
+            int slab=hmm.slabOffset(k);
+            for (int x=0;x<arcCount;++x) out.putDouble(b[slab+x]);
+        }
+        if (logEmissions){
+            for (int k=0;k<M;++k){
+                double b[]=hmm.slab(k);
+                int slab=hmm.slabOffset(k);
+                for (int x=0;x<arcCount;++x) out.putDouble(Math.log(b[slab+x]));
+            }
+        }
+        out.flush();
+
+        ByteBuffer header=ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(N).putInt(M).putInt(arcCount)
+                .putInt((hmm.dense?FLAG_DENSE:0)|(logEmissions?FLAG_LOG_EMISSIONS:0)).putLong(out.length).putLong(out.crc.getValue());
+        header.clear();
+        while (header.hasRemaining()) channel.write(header,header.position());
+    }
+
+    /**
+     * map a model file, verifying its checksum
+     */
+    public static HMMRepresentation map(Path path) throws IOException {
+        return map(path,true);
+    }
+
+    /**
+     * map a model file
+     * @param verify whether to check the CRC of the body, which reads the whole file once
+     * @return a model whose emissions are backed by the mapping
+     * @throws IOException when the file can not be read or is not a valid model file
+     */
+    public static HMMRepresentation map(Path path,boolean verify) throws IOException {
+        try (FileChannel channel=FileChannel.open(path,StandardOpenOption.READ)){
+            ByteBuffer header=ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()){
+                if (channel.read(header)<0) throw new IOException(path+" is not a model file: truncated header");
+            }
+            header.flip();
+            if (header.getInt()!=MAGIC) throw new IOException(path+" is not a model file: bad magic");
+            int version=header.getInt();
+            if (version!=VERSION) throw new IOException(path+": unsupported model file version "+version);
+            int N=header.getInt(), M=header.getInt(), arcCount=header.getInt(), flags=header.getInt();
+            long length=header.getLong(), checksum=header.getLong();
+            boolean dense=(flags&FLAG_DENSE)!=0, logEmissions=(flags&FLAG_LOG_EMISSIONS)!=0;
+            if (N<=0||M<=0||arcCount<=0||(dense&&(long)N*N!=arcCount)||(long)M*arcCount>Integer.MAX_VALUE-8){
+                throw new IOException(path+": invalid model size");
+            }
+            int topologyInts=dense?0:N+1+arcCount+(N+1+arcCount)%2;
+            long headLength=8L*N+8L*arcCount+4L*topologyInts;
+            if (length!=headLength+8L*M*arcCount*(logEmissions?2:1)||channel.size()!=HEADER_SIZE+length){
+                throw new IOException(path+": file length does not match the model size");
+            }
+            if (headLength>MAX_MAPPING) throw new IOException(path+": the transitions can not be mapped");
+            if (verify) verify(path,channel,length,checksum);
+
+            ByteBuffer head=channel.map(FileChannel.MapMode.READ_ONLY,HEADER_SIZE,headLength)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            double pi[]=new double[N], a[]=new double[arcCount];
+            head.asDoubleBuffer().get(pi);
+            head.position(8*N);
+            head.asDoubleBuffer().get(a);
+            int rowStart[]=null, arcTarget[]=null;
+            if (!dense){
+                head.position(8*N+8*arcCount);
+                IntBuffer topology=head.asIntBuffer();
+                rowStart=new int[N+1];
+                arcTarget=new int[arcCount];
+                topology.get(rowStart);
+                topology.get(arcTarget);
+                checkTopology(path,rowStart,arcTarget);
+            }
+
+            //every chunk holds whole slabs, so the kernels copy a slab with a single bulk get
+            long slabBytes=8L*arcCount;
+            int slabsPerChunk=(int)Math.min(M,MAX_MAPPING/slabBytes);
+            if (slabsPerChunk==0) throw new IOException(path+": a slab of "+slabBytes+" bytes can not be mapped");
+            long position=HEADER_SIZE+headLength;
+            DoubleBuffer chunks[]=mapSlabs(channel,position,M,arcCount,slabsPerChunk);
+            DoubleBuffer logChunks[]=logEmissions
+                    ?mapSlabs(channel,position+slabBytes*M,M,arcCount,slabsPerChunk):null;
+            return new HMMRepresentation(N,M,rowStart,arcTarget,pi,a,chunks,logChunks,slabsPerChunk);
+        }
+    }
+
+    /**
+     * map M slabs of arcCount doubles from position, slabsPerChunk slabs per mapping
+     */
+    private static DoubleBuffer[] mapSlabs(FileChannel channel,long position,int M,int arcCount,
+                                           int slabsPerChunk) throws IOException {
+        long slabBytes=8L*arcCount;
+        DoubleBuffer chunks[]=new DoubleBuffer[(M+slabsPerChunk-1)/slabsPerChunk];
+        for (int c=0;c<chunks.length;++c){
+            int slabs=Math.min(slabsPerChunk,M-c*slabsPerChunk);
+            MappedByteBuffer chunk=channel.map(FileChannel.MapMode.READ_ONLY,position,slabs*slabBytes);
+            chunks[c]=chunk.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+            position+=slabs*slabBytes;
+        }
+        return chunks;
+    }
+
+    /**
+     * read a model file into the heap, the result can be trained
+     */
+    public static HMMRepresentation read(Path path) throws IOException {
+        return (HMMRepresentation) map(path).clone();
+    }
+
+    private static void verify(Path path,FileChannel channel,long length,long checksum) throws IOException {
+        CRC32C crc=new CRC32C();
+        for (long position=0;position<length;position+=MAX_MAPPING){
+            long size=Math.min(MAX_MAPPING,length-position);
+            crc.update(channel.map(FileChannel.MapMode.READ_ONLY,HEADER_SIZE+position,size));
+        }
+        if (crc.getValue()!=checksum) throw new IOException(path+": checksum mismatch");
+    }
+
+    /**
+     * the arcs of each row must be sorted targets in range, as HMMRepresentation.arc searches them
+     */
+    private static void checkTopology(Path path,int rowStart[],int arcTarget[]) throws IOException {
+        int N=rowStart.length-1;
+        if (rowStart[0]!=0||rowStart[N]!=arcTarget.length) throw new IOException(path+": corrupted topology");
+        for (int i=0;i<N;++i){
+            if (rowStart[i]>rowStart[i+1]) throw new IOException(path+": corrupted topology");
+            for (int x=rowStart[i];x<rowStart[i+1];++x){
+                int j=arcTarget[x];
+                if (j<0||j>=N||(x>rowStart[i]&&arcTarget[x-1]>=j)) throw new IOException(path+": corrupted topology");
+            }
+        }
+    }
+
+    /**
+     * writes values through a direct little-endian buffer, summing the bytes written
+     */
+    private static final class BlockWriter {
+        final FileChannel channel;
+        final ByteBuffer buffer=ByteBuffer.allocateDirect(1<<16).order(ByteOrder.LITTLE_ENDIAN);
+        final CRC32C crc=new CRC32C();
+        long length;
+
+        BlockWriter(FileChannel channel){
+            this.channel=channel;
+        }
+
+        void putDouble(double v) throws IOException {
+            if (buffer.remaining()<8) flush();
+            buffer.putDouble(v);
+        }
+
+        void putInt(int v) throws IOException {
+            if (buffer.remaining()<4) flush();
+            buffer.putInt(v);
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            length+=buffer.remaining();
+            crc.update(buffer.duplicate());
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package com.sweetdum.hmm;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * HMMModelStore lets a trainer and any count of decoders share one model while it
+ * is re-estimated. The store holds an immutable snapshot (see HMMRepresentation.snapshot())
+ * behind an atomic reference: publish() builds a new snapshot from the trained model,
+ * with its kernels compiled, and swaps it in; readers pin current() once per request
+ * and decode with it until they are done, so they never lock and never see a model
+ * in the middle of an M-step. A replaced snapshot is reclaimed by the garbage collector
+ * when the last reader drops it.
+ *
+ * The version of every snapshot is strictly larger than the one before it, so results
+ * can be attributed to the parameters that produced them. It is thread-safe.
+ */
+public class HMMModelStore {
+    private final AtomicReference<HMMRepresentation> current;
+
+    /**
+     * create a store serving a snapshot of the given model
+     * @param hmm the hmm representation, a snapshot is published as is
+     */
+    public HMMModelStore(HMMRepresentation hmm){
+        current=new AtomicReference<HMMRepresentation>(hmm.snapshot());
+    }
+
+    /**
+     * @return the latest snapshot, keep the reference for the whole request
+     */
+    public HMMRepresentation current(){
+        return current.get();
+    }
+
+    /**
+     * @return the version of the latest snapshot
+     */
+    public long getVersion(){
+        return current.get().version;
+    }
+
+    /**
+     * publish the current parameters of a model, copying them into a new snapshot;
+     * the model can be changed again as soon as the call returns
+     * @param hmm the trained model, of the same size as the published ones
+     * @return the new snapshot
+     */
+    public synchronized HMMRepresentation publish(HMMRepresentation hmm){
+        HMMRepresentation last=current.get();
+        if (hmm.stateCount!=last.stateCount||hmm.observationCount!=last.observationCount||hmm.arcCount!=last.arcCount){
+            throw new IllegalArgumentException("the model does not match the size of the store");
+        }
+        HMMRepresentation ret=hmm.snapshot(Math.max(hmm.version,last.version+1));
+        current.set(ret);
+        return ret;
+    }
+
+    /**
+     * @return a mutable copy of the latest snapshot to train on
+     */
+    public HMMRepresentation checkout(){
+        return (HMMRepresentation) current.get().clone();
+    }
+}
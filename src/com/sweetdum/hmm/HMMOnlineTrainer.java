@@ -0,0 +1,232 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package com.sweetdum.hmm;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * HMMOnlineTrainer tracks a stream of observation sequences with online EM:
+ * every mini-batch runs the E-step under the current parameters, and its expected
+ * counts, normalized by the batch size, are blended into running statistics
+ * s = (1-rate)*s + rate*batch
+ * with a decreasing rate from the step size schedule. Every publishInterval batches
+ * the M-step of the running statistics is written into the hmm. The history is never
+ * re-read, and with rate(n) = (n+offset)^-exponent, exponent in (0.5,1], the
+ * parameters converge like batch EM while the data is read once.
+ *
+ * The E-step of a batch runs in parallel on a HMMBaumWelchTrainer. It is not thread-safe.
+ */
+public class HMMOnlineTrainer {
+    private final double EPS=1e-15;
+
+    /**
+     * the weight of the n-th batch in the running statistics
+     */
+    public interface StepSize {
+        /**
+         * @param batch the count of batches blended before this one
+         * @return the rate in (0,1]
+         */
+        double rate(long batch);
+    }
+
+    /**
+     * rate(n) = (n+offset)^-exponent, capped at 1
+     * @param offset delays the decay, larger values weigh the early batches less
+     * @param exponent in (0.5,1] for convergence, smaller values forget faster
+     */
+    public static StepSize polynomialDecay(final double offset,final double exponent){
+        if (offset<0||exponent<=0||exponent>1) throw new IllegalArgumentException("invalid step size");
+        return new StepSize() {
+            @Override
+            public double rate(long batch) {
+                return Math.min(1,Math.pow(batch+offset,-exponent));
+            }
+        };
+    }
+
+    /**
+     * a constant rate, which keeps following a drifting stream instead of converging
+     */
+    public static StepSize constant(final double rate){
+        if (rate<=0||rate>1) throw new IllegalArgumentException("rate must be in (0,1]");
+        return new StepSize() {
+            @Override
+            public double rate(long batch) {
+                return rate;
+            }
+        };
+    }
+
+    /**
+     * the hmm representation to train, updated on every publish
+     */
+    final HMMRepresentation hmm;
+    /**
+     * runs the E-step of the batches
+     */
+    final HMMBaumWelchTrainer batchTrainer;
+    /**
+     * the running statistics, kept at the size of the first batch: counts per symbol times
+     * symbolUnit, initial counts per sequence times sequenceUnit, so the smoothing of the
+     * M-step weighs as much as in batch EM on one batch
+     */
+    final HMMSufficientStatistics running;
+    double symbolUnit, sequenceUnit;
+    StepSize stepSize=polynomialDecay(2,0.6);
+    /**
+     * the count of batches between two publishes
+     */
+    int publishInterval=1;
+    /**
+     * receives a snapshot on every publish, null for none
+     */
+    HMMModelStore store;
+    /**
+     * the count of blended batches and symbols
+     */
+    long batchCount, symbolCount;
+
+    /**
+     * create an online trainer running the E-step on the common fork-join pool
+     * @param hmm the hmm representation to train, its current parameters are the starting point
+     */
+    public HMMOnlineTrainer(HMMRepresentation hmm){
+        this(hmm,ForkJoinPool.commonPool());
+    }
+
+    /**
+     * create an online trainer running the E-step on the given executor
+     * @param hmm the hmm representation to train
+     * @param executor the executor running the E-step, it is not shut down by the trainer
+     */
+    public HMMOnlineTrainer(HMMRepresentation hmm,ExecutorService executor){
+        this.hmm=hmm;
+        this.batchTrainer=new HMMBaumWelchTrainer(hmm,executor);
+        this.running=new HMMSufficientStatistics(hmm);
+    }
+
+    public void setStepSize(StepSize stepSize) {
+        this.stepSize = stepSize;
+    }
+
+    /**
+     * @param publishInterval write the parameters into the hmm every publishInterval batches
+     */
+    public void setPublishInterval(int publishInterval) {
+        if (publishInterval<1) throw new IllegalArgumentException("publishInterval must be positive");
+        this.publishInterval = publishInterval;
+    }
+
+    /**
+     * also publish the parameters into the store on every publish
+     * @param store the store to publish to, null to stop publishing
+     */
+    public void setModelStore(HMMModelStore store) {
+        this.store = store;
+    }
+
+    /**
+     * @see HMMBaumWelchTrainer#setTaskCount(int)
+     */
+    public void setTaskCount(int taskCount) {
+        batchTrainer.setTaskCount(taskCount);
+    }
+
+    /**
+     * @see HMMBaumWelchTrainer#setCheckpointed(boolean)
+     */
+    public void setCheckpointed(boolean checkpointed) {
+        batchTrainer.setCheckpointed(checkpointed);
+    }
+
+    /**
+     * consume one mini-batch
+     * @param batch the observation sequences of the batch
+     * @return the log-likelihood per symbol of the batch under the parameters before the update,
+     * NaN for a batch without symbols, which leaves the trainer unchanged
+     */
+    public double update(int batch[][]){
+        long symbols=0;
+        for (int o[]:batch) symbols+=o.length;
+        if (symbols==0) return Double.NaN;
+        HMMIterationEvent event=HMMIterationEvent.start(hmm);
+        HMMSufficientStatistics statistics=batchTrainer.expectation(batch);
+        if (batchCount==0){
+            symbolUnit=statistics.symbolCount;
+            sequenceUnit=statistics.sequenceCount;
+        }
+        double rate=batchCount==0?1:stepSize.rate(batchCount);
+        double perSymbol=rate*symbolUnit/statistics.symbolCount;
+        double perSequence=rate*sequenceUnit/statistics.sequenceCount;
+        for (int i=0;i<running.initial.length;++i){
+            running.initial[i]=(1-rate)*running.initial[i]+perSequence*statistics.initial[i];
+        }
+        for (int x=0;x<running.transition.length;++x){
+            running.transition[x]=(1-rate)*running.transition[x]+perSymbol*statistics.transition[x];
+        }
+        for (int x=0;x<running.emission.length;++x){
+            running.emission[x]=(1-rate)*running.emission[x]+perSymbol*statistics.emission[x];
+        }
+        running.sequenceCount+=statistics.sequenceCount;
+        running.symbolCount+=statistics.symbolCount;
+        ++batchCount;
+        symbolCount+=statistics.symbolCount;
+        if (batchCount%publishInterval==0) publish();
+        event.finish("online",batchCount,hmm,statistics);
+        return statistics.logLikelihood/statistics.symbolCount;
+    }
+
+    /**
+     * consume a single sequence as a batch
+     * @return the log-likelihood per symbol of the sequence under the parameters before the update,
+     * NaN for an empty sequence
+     */
+    public double update(int o[]){
+        return update(new int[][]{o});
+    }
+
+    /**
+     * write the M-step of the running statistics into the hmm now, and into the store if any
+     */
+    public void publish(){
+        if (batchCount==0) return;
+        running.maximize(hmm,EPS);
+        if (store!=null) store.publish(hmm);
+    }
+
+    /**
+     * @return the count of batches consumed
+     */
+    public long getBatchCount() {
+        return batchCount;
+    }
+
+    /**
+     * @return the count of symbols consumed
+     */
+    public long getSymbolCount() {
+        return symbolCount;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package com.sweetdum.hmm;
+
+/**
+ * HMMOnlineViterbi decodes an unbounded observation stream one symbol at a time.
+ *
+ * After every symbol the back pointers of all surviving states are followed
+ * backwards; as soon as they meet in one state, every state before that point is
+ * on the best path whatever comes next, so those states are committed to the
+ * listener and their back pointers are dropped. If the paths have not met within
+ * maxLag timesteps, the oldest pending state is committed from the currently best
+ * path instead, which bounds both memory and output delay by maxLag.
+ *
+ * The decoder reads the parameters once on creation, so it keeps decoding with
+ * them even if the hmm is re-estimated later. It is not thread-safe.
+ */
+public class HMMOnlineViterbi {
+    /**
+     * receives the committed states in time order
+     */
+    public interface StateListener {
+        /**
+         * @param time the timestep t of X[t], X[0] being the initial state
+         * @param state the state id
+         */
+        void onState(long time, int state);
+    }
+
+    /**
+     * the hmm representation, only its topology is read after creation
+     */
+    final HMMRepresentation hmm;
+    final int stateCount;
+    /**
+     * log of the kernels a*b in the layout of HMMRepresentation.b, copied on creation
+     */
+    final double logKernels[];
+    final double logPi[];
+    final int maxLag;
+    final StateListener listener;
+    /**
+     * log delta of the current timestep, shifted so that its maximum is 0
+     */
+    double delta[];
+    private double next[];
+    /**
+     * ring buffer of back pointers: phi of timestep t is at ((t % maxLag)*N)
+     */
+    final int phi[];
+    /**
+     * the current timestep, X[time] is the newest state
+     */
+    long time;
+    /**
+     * the states X[0] ... X[committed-1] have been emitted
+     */
+    long committed;
+    /**
+     * scratch for following the back pointers of all the states at once
+     */
+    private final int paths[], nextPaths[], mark[];
+    private int markStamp;
+    /**
+     * scratch for the states being committed
+     */
+    private final int path[];
+
+    /**
+     * create a decoder
+     * @param hmm the hmm representation
+     * @param maxLag the maximum count of pending timesteps before a state is forced out
+     * @param listener receives the committed states
+     */
+    public HMMOnlineViterbi(HMMRepresentation hmm,int maxLag,StateListener listener){
+        if (maxLag<1) throw new IllegalArgumentException("maxLag must be positive");
+        int N=hmm.stateCount;
+        this.hmm=hmm;
+        this.stateCount=N;
+        this.maxLag=maxLag;
+        this.listener=listener;
+        logKernels=new double[hmm.observationCount*hmm.arcCount];
+        HMMKernels.logKernels(hmm,logKernels);
+        logPi=new double[N];
+        for (int i=0;i<N;++i) logPi[i]=Math.log(hmm.pi[i]);
+        delta=new double[N];
+        next=new double[N];
+        phi=new int[maxLag*N];
+        paths=new int[N];
+        nextPaths=new int[N];
+        mark=new int[N];
+        path=new int[maxLag+1];
+        reset();
+    }
+
+    /**
+     * restart decoding a new stream, pending states are discarded
+     */
+    public void reset(){
+        System.arraycopy(logPi,0,delta,0,stateCount);
+        time=0;
+        committed=0;
+    }
+
+    /**
+     * consume the next observation and commit the states that became certain
+     * @param symbol the observation id
+     * @return the count of states committed by this call
+     */
+    public int push(int symbol){
+        ++time;
+        HMMKernels.viterbi(hmm,logKernels,symbol,delta,next,phi,slot(time));
+        double swap[]=delta;delta=next;next=swap;
+        //keep the values bounded on endless streams
+        double best=delta[bestState()];
+        if (best!=Double.NEGATIVE_INFINITY){
+            for (int i=0;i<stateCount;++i) delta[i]-=best;
+        }
+        int ret=commitConverged();
+        if (time-committed>=maxLag) ret+=commitFrom(bestState(),time,committed+1);
+        return ret;
+    }
+
+    /**
+     * end of the stream: commit all the pending states along the best path
+     * @return the count of states committed by this call
+     */
+    public int flush(){
+        return commitFrom(bestState(),time,time+1);
+    }
+
+    /**
+     * @return the count of timesteps whose state is not committed yet
+     */
+    public int getPendingCount(){
+        return (int)(time-committed+1);
+    }
+
+    public long getTime(){
+        return time;
+    }
+
+    /**
+     * follow the back pointers of all the reachable states, and commit everything
+     * before the latest timestep where they all meet; a single reachable state
+     * makes the whole path up to now certain
+     */
+    private int commitConverged(){
+        int size=0;
+        for (int i=0;i<stateCount;++i){
+            if (delta[i]!=Double.NEGATIVE_INFINITY) paths[size++]=i;
+        }
+        if (size==1) return commitFrom(paths[0],time,time+1);
+        for (long t=time;t>committed&&size>1;--t){
+            //paths hold the ancestors at timestep t, move to t-1
+            int base=slot(t);
+            ++markStamp;
+            int nextSize=0;
+            for (int x=0;x<size;++x){
+                int p=phi[base+paths[x]];
+                if (mark[p]!=markStamp){
+                    mark[p]=markStamp;
+                    nextPaths[nextSize++]=p;
+                }
+            }
+            System.arraycopy(nextPaths,0,paths,0,nextSize);
+            size=nextSize;
+            if (size==1) return commitFrom(paths[0],t-1,t);
+        }
+        return 0;
+    }
+
+    /**
+     * trace back from state at timestep from and commit X[committed] ... X[until-1]
+     */
+    private int commitFrom(int state,long from,long until){
+        if (until<=committed) return 0;
+        int count=(int)(until-committed);
+        //walk down to until-1, then emit in time order
+        long t=from;
+        while (t>=until){
+            state=phi[slot(t)+state];
+            --t;
+        }
+        for (int x=count-1;x>=0;--x){
+            path[x]=state;
+            if (t>committed) state=phi[slot(t)+state];
+            --t;
+        }
+        for (int x=0;x<count;++x){
+            listener.onState(committed+x,path[x]);
+        }
+        committed=until;
+        return count;
+    }
+
+    private int bestState(){
+        int ret=0;
+        for (int i=1;i<stateCount;++i){
+            if (delta[i]>delta[ret]) ret=i;
+        }
+        return ret;
+    }
+
+    private int slot(long t){
+        return (int)(t%maxLag)*stateCount;
+    }
+}
@@ -0,0 +1,277 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package com.sweetdum.hmm;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Locale;
+
+/**
+ * HMMPrecisionReport runs the double and the single precision solvers of a model side by
+ * side over a corpus, to tell whether setFloatPrecision(true) is safe for a workload:
+ * the log-likelihood error, the largest posterior (gamma) error, the sequences whose
+ * Viterbi path changes, how much worse the changed paths score in double, and the largest
+ * change of the parameters re-estimated by one Baum-Welch iteration.
+ * Both paths run whatever the precision of the model is, and the model is not changed.
+ *
+ * From the command line, on a model file and a corpus file:
+ * java com.sweetdum.hmm.HMMPrecisionReport model.hmm corpus.hmc
+ */
+public final class HMMPrecisionReport {
+    private static final double EPS=1e-15;
+
+    int sequenceCount;
+    long symbolCount;
+    double maxLogLikelihoodError, maxLogLikelihoodErrorPerSymbol, sumLogLikelihoodError;
+    double maxPosteriorError;
+    int changedPathCount;
+    long changedStateCount;
+    /**
+     * the largest log probability lost by a changed Viterbi path, 0 when the float path
+     * ties with the double one
+     */
+    double maxPathScoreLoss;
+    double maxParameterError;
+
+    private HMMPrecisionReport(){
+    }
+
+    /**
+     * compare the double and float solvers of the hmm over the sequences
+     * @param hmm the hmm representation, of either precision
+     * @param corpus the observation sequences
+     * @return the report
+     */
+    public static HMMPrecisionReport compare(HMMRepresentation hmm,int corpus[][]){
+        Comparison c=new Comparison(hmm);
+        for (int o[]:corpus) c.add(o,o.length);
+        return c.finish();
+    }
+
+    /**
+     * compare the double and float solvers of the hmm over a corpus file
+     * @param hmm the hmm representation, of either precision
+     * @param corpus the corpus
+     * @return the report
+     */
+    public static HMMPrecisionReport compare(HMMRepresentation hmm,HMMCorpusFile corpus){
+        Comparison c=new Comparison(hmm);
+        for (int n=0;n<corpus.getSequenceCount();++n){
+            int o[]=c.workspace.symbols(corpus.getLength(n));
+            c.add(o,corpus.read(n,o));
+        }
+        return c.finish();
+    }
+
+    /**
+     * the state of one comparison: the engines share one workspace, as the float tables
+     * are apart from the double ones
+     */
+    private static final class Comparison {
+        final HMMRepresentation hmm;
+        final HMMWorkspace workspace;
+        final HMMSufficientStatistics exact, single;
+        final HMMPrecisionReport report=new HMMPrecisionReport();
+        HMMScaledForwardBackwardManipulator doubleEngine;
+        HMMFloatForwardBackwardManipulator floatEngine;
+        int doublePath[]=new int[1], floatPath[]=new int[1];
+
+        Comparison(HMMRepresentation hmm){
+            this.hmm=hmm;
+            workspace=new HMMWorkspace(hmm);
+            exact=new HMMSufficientStatistics(hmm);
+            single=new HMMSufficientStatistics(hmm);
+        }
+
+        void add(int o[],int length){
+            int N=hmm.stateCount;
+            if (doubleEngine==null){
+                doubleEngine=new HMMScaledForwardBackwardManipulator(hmm,o,length,workspace);
+                floatEngine=new HMMFloatForwardBackwardManipulator(hmm,o,length,workspace);
+            } else {
+                doubleEngine.readNewObservation(o,length);
+                floatEngine.readNewObservation(o,length);
+            }
+            double exactLog=doubleEngine.getLogLikelihood(), singleLog=floatEngine.getLogLikelihood();
+            //both -Infinity for an impossible sequence
+            double error=exactLog==singleLog?0:Math.abs(exactLog-singleLog);
+            report.maxLogLikelihoodError=Math.max(report.maxLogLikelihoodError,error);
+            if (length>0) report.maxLogLikelihoodErrorPerSymbol=Math.max(report.maxLogLikelihoodErrorPerSymbol,error/length);
+            report.sumLogLikelihoodError+=error;
+            for (int x=0;x<length*N;++x){
+                double e=Math.abs(doubleEngine.gamma[x]-floatEngine.floatGamma[x]);
+                if (e>report.maxPosteriorError) report.maxPosteriorError=e;
+            }
+            doubleEngine.accumulateStatistics(exact,EPS);
+            floatEngine.accumulateStatistics(single,EPS);
+
+            if (doublePath.length<length+1){
+                doublePath=new int[length+1];
+                floatPath=new int[length+1];
+            }
+            HMMSolver.decodeDouble(hmm,null,o,length,workspace,doublePath);
+            HMMSolver.decodeFloat(hmm,o,length,workspace,floatPath);
+            int changed=0;
+            for (int t=0;t<=length;++t){
+                if (doublePath[t]!=floatPath[t]) ++changed;
+            }
+            if (changed>0){
+                ++report.changedPathCount;
+                report.changedStateCount+=changed;
+                double loss=pathScore(o,length,doublePath)-pathScore(o,length,floatPath);
+                if (loss>report.maxPathScoreLoss) report.maxPathScoreLoss=loss;
+            }
+            ++report.sequenceCount;
+            report.symbolCount+=length;
+        }
+
+        /**
+         * @return log P(states, O | model) in double
+         */
+        double pathScore(int o[],int length,int states[]){
+            double ret=Math.log(hmm.pi[states[0]]);
+            for (int t=0;t<length;++t){
+                int x=hmm.arc(states[t],states[t+1]);
+                if (x<0) return Double.NEGATIVE_INFINITY;
+                ret+=hmm.logKernel(o[t])[hmm.kernelOffset(o[t])+x];
+            }
+            return ret;
+        }
+
+        HMMPrecisionReport finish(){
+            if (report.sequenceCount==0) return report;
+            HMMRepresentation exactModel=(HMMRepresentation)hmm.clone();
+            HMMRepresentation singleModel=(HMMRepresentation)hmm.clone();
+            exact.maximize(exactModel,EPS);
+            single.maximize(singleModel,EPS);
+            double max=0;
+            for (int i=0;i<exactModel.pi.length;++i) max=Math.max(max,Math.abs(exactModel.pi[i]-singleModel.pi[i]));
+            for (int x=0;x<exactModel.a.length;++x) max=Math.max(max,Math.abs(exactModel.a[x]-singleModel.a[x]));
+            for (int x=0;x<exactModel.b.length;++x) max=Math.max(max,Math.abs(exactModel.b[x]-singleModel.b[x]));
+            report.maxParameterError=max;
+            return report;
+        }
+    }
+
+    public int getSequenceCount() {
+        return sequenceCount;
+    }
+
+    public long getSymbolCount() {
+        return symbolCount;
+    }
+
+    /**
+     * @return the largest |log P(O) in double - log P(O) in float| of a sequence
+     */
+    public double getMaxLogLikelihoodError() {
+        return maxLogLikelihoodError;
+    }
+
+    /**
+     * @return the largest log-likelihood error of a sequence divided by its length
+     */
+    public double getMaxLogLikelihoodErrorPerSymbol() {
+        return maxLogLikelihoodErrorPerSymbol;
+    }
+
+    /**
+     * @return the mean log-likelihood error per symbol over the corpus
+     */
+    public double getMeanLogLikelihoodErrorPerSymbol() {
+        return symbolCount==0?0:sumLogLikelihoodError/symbolCount;
+    }
+
+    /**
+     * @return the largest |gamma in double - gamma in float| of a state at a timestep
+     */
+    public double getMaxPosteriorError() {
+        return maxPosteriorError;
+    }
+
+    /**
+     * @return the count of sequences whose float Viterbi path differs from the double one
+     */
+    public int getChangedPathCount() {
+        return changedPathCount;
+    }
+
+    /**
+     * @return the count of states which differ over all the changed paths
+     */
+    public long getChangedStateCount() {
+        return changedStateCount;
+    }
+
+    /**
+     * @return the largest log P(path, O) lost by a changed path, scored in double;
+     * 0 when the changed paths only break ties differently
+     */
+    public double getMaxPathScoreLoss() {
+        return maxPathScoreLoss;
+    }
+
+    /**
+     * @return the largest difference of a parameter after one Baum-Welch iteration
+     * with the float E-step instead of the double one
+     */
+    public double getMaxParameterError() {
+        return maxParameterError;
+    }
+
+    /**
+     * @return whether every float Viterbi path equals the double one
+     */
+    public boolean isViterbiUnchanged() {
+        return changedPathCount==0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT,
+                "sequences=%d symbols=%d%n"+
+                "log-likelihood error: max=%.3g max/symbol=%.3g mean/symbol=%.3g%n"+
+                "posterior error: max=%.3g%n"+
+                "viterbi: changed paths=%d changed states=%d max score loss=%.3g%n"+
+                "re-estimation: max parameter error=%.3g%n",
+                sequenceCount,symbolCount,
+                maxLogLikelihoodError,maxLogLikelihoodErrorPerSymbol,getMeanLogLikelihoodErrorPerSymbol(),
+                maxPosteriorError,
+                changedPathCount,changedStateCount,maxPathScoreLoss,
+                maxParameterError);
+    }
+
+    /**
+     * print the report of a model file over a corpus file
+     * @param args the model file, the corpus file
+     */
+    public static void main(String args[]) throws IOException {
+        if (args.length!=2){
+            System.err.println("usage: HMMPrecisionReport <model file> <corpus file>");
+            System.exit(2);
+        }
+        HMMRepresentation hmm=HMMModelFile.map(Paths.get(args[0]));
+        System.out.print(compare(hmm,HMMCorpusFile.open(Paths.get(args[1]))));
+    }
+}
@@ -0,0 +1,409 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package com.sweetdum.hmm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * HMMPrefixForward scores observation sequences with the scaled forward pass, and keeps
+ * the scaled alpha vectors of the prefixes it has seen in a trie, so a sequence sharing
+ * a prefix with an earlier one resumes from the longest cached prefix instead of t=0,
+ * and a sequence seen before costs one lookup.
+ *
+ * The trie has a node every interval symbols and one at the end of every sequence; each
+ * node holds the normalized alpha after its prefix and the log-likelihood up to there.
+ * Nodes are evicted least recently used first when the cache grows beyond its memory
+ * budget. A lookup refreshes the whole path, parents more recently than children, so only
+ * leaves are ever evicted and a shared prefix outlives the branches hanging from it.
+ *
+ * The cache is bound to one version of the parameters: it is dropped whenever the
+ * version of the hmm moves, or a new snapshot is published into the store it reads from.
+ * It is not thread-safe, use one per thread.
+ */
+public class HMMPrefixForward {
+    /**
+     * the estimated bytes of a node besides its alpha and symbols: the objects, the
+     * trie entry and the list links
+     */
+    static final int NODE_OVERHEAD=160;
+
+    final HMMRepresentation hmm;
+    final HMMModelStore store;
+    /**
+     * the count of symbols between two cached prefixes
+     */
+    int interval=32;
+    /**
+     * the maximum bytes of cached nodes
+     */
+    long maxCacheBytes=64L<<20;
+    /**
+     * the model the cache was built from and its version
+     */
+    private HMMRepresentation cachedModel;
+    private long cachedVersion;
+    /**
+     * the empty prefix, never evicted
+     */
+    private Node root;
+    /**
+     * the sentinel of the recency list, head.next is the most recently used node
+     */
+    private final Node head=new Node(null,null,null,0,0);
+    private long cachedBytes;
+    private int nodeCount;
+    private Node path[]=new Node[16];
+    private final Chunk probe=new Chunk();
+    private double next[];
+    /**
+     * the normalized forward vector after the last call
+     */
+    private double alpha[];
+    long lookupCount, hitCount, exactHitCount, reusedSymbolCount, computedSymbolCount, evictionCount;
+
+    /**
+     * a cached prefix, reached from its parent by the symbols of key
+     */
+    static final class Node {
+        final Node parent;
+        final Chunk key;
+        final double alpha[];
+        final double logLikelihood;
+        final long bytes;
+        HashMap<Chunk,Node> children;
+        Node prev, next;
+
+        Node(Node parent,Chunk key,double alpha[],double logLikelihood,long bytes){
+            this.parent=parent;
+            this.key=key;
+            this.alpha=alpha;
+            this.logLikelihood=logLikelihood;
+            this.bytes=bytes;
+        }
+    }
+
+    /**
+     * the symbols s[offset,offset+length), compared by content
+     */
+    static final class Chunk {
+        int symbols[];
+        int offset, length, hash;
+
+        Chunk set(int symbols[],int offset,int length){
+            this.symbols=symbols;
+            this.offset=offset;
+            this.length=length;
+            int h=length;
+            for (int t=offset;t<offset+length;++t) h=31*h+symbols[t];
+            hash=h;
+            return this;
+        }
+
+        Chunk copy(){
+            return new Chunk().set(Arrays.copyOfRange(symbols,offset,offset+length),0,length);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Chunk)) return false;
+            Chunk c=(Chunk)obj;
+            if (c.length!=length||c.hash!=hash) return false;
+            for (int t=0;t<length;++t){
+                if (symbols[offset+t]!=c.symbols[c.offset+t]) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * create a cache scoring with the given hmm, dropped whenever its version moves
+     * @param hmm the hmm representation
+     */
+    public HMMPrefixForward(HMMRepresentation hmm){
+        this(hmm,null);
+    }
+
+    /**
+     * create a cache scoring with the current snapshot of the store, dropped whenever a
+     * new snapshot is published
+     * @param store the model store
+     */
+    public HMMPrefixForward(HMMModelStore store){
+        this(null,store);
+    }
+
+    private HMMPrefixForward(HMMRepresentation hmm,HMMModelStore store){
+        this.hmm=hmm;
+        this.store=store;
+        head.prev=head.next=head;
+    }
+
+    /**
+     * @param interval the count of symbols between two cached prefixes: smaller values
+     *                 resume closer to the end of a shared prefix and take more memory
+     */
+    public void setInterval(int interval){
+        if (interval<1) throw new IllegalArgumentException("interval must be positive");
+        if (interval!=this.interval) clearCache();
+        this.interval=interval;
+    }
+
+    /**
+     * @param maxCacheBytes the memory budget of the cached prefixes
+     */
+    public void setMaxCacheBytes(long maxCacheBytes){
+        if (maxCacheBytes<0) throw new IllegalArgumentException("maxCacheBytes must not be negative");
+        this.maxCacheBytes=maxCacheBytes;
+        evict();
+    }
+
+    /**
+     * @return log P(O | model)
+     */
+    public double getLogObservationProbability(int o[]){
+        return getLogObservationProbability(o,o.length);
+    }
+
+    /**
+     * @return log P(O | model) of the first length symbols of o
+     */
+    public double getLogObservationProbability(int o[],int length){
+        HMMRepresentation model=store!=null?store.current():hmm;
+        if (model!=cachedModel||model.version!=cachedVersion||root==null) reset(model);
+        int N=model.stateCount;
+        ++lookupCount;
+        Node node=root;
+        int depth=0, t=0;
+        while (t<length&&node.children!=null){
+            int n=Math.min(interval,length-t);
+            Node child=node.children.get(probe.set(o,t,n));
+            if (child==null) break;
+            node=child;
+            t+=n;
+            path=append(path,depth++,node);
+        }
+        if (t>0){
+            ++hitCount;
+            reusedSymbolCount+=t;
+            if (t==length) ++exactHitCount;
+        }
+        double ret=node.logLikelihood;
+        if (t<length){
+            long begin=HMMMetrics.begin(HMMMetrics.Phase.ALPHA);
+            double v[]=alpha, w[]=next;
+            System.arraycopy(node.alpha,0,v,0,N);
+            long bytes=0;
+            int from=t;
+            boolean caching=true;
+            for (int end=t;t<length;t=end){
+                end=Math.min(t+interval,length);
+                for (int s=t;s<end;++s){
+                    HMMKernels.forward(model,o[s],v,0,w,0);
+                    double swap[]=v;v=w;w=swap;
+                    ret+=Math.log(HMMKernels.normalize(v,0,N));
+                }
+                long size=nodeBytes(N,end-t);
+                if (!caching||bytes+size>maxCacheBytes){
+                    caching=false;
+                    continue;
+                }
+                Node child=new Node(node,probe.set(o,t,end-t).copy(),v.clone(),ret,size);
+                if (node.children==null) node.children=new HashMap<Chunk,Node>(4);
+                node.children.put(child.key,child);
+                node=child;
+                bytes+=size;
+                cachedBytes+=size;
+                ++nodeCount;
+                path=append(path,depth++,node);
+            }
+            if (v!=alpha) System.arraycopy(v,0,alpha,0,N);
+            computedSymbolCount+=length-from;
+            HMMMetrics.end(HMMMetrics.Phase.ALPHA,begin,length-from);
+        } else {
+            System.arraycopy(node.alpha,0,alpha,0,N);
+        }
+        for (int i=depth-1;i>=0;--i){
+            touch(path[i]);
+            path[i]=null;
+        }
+        evict();
+        return ret;
+    }
+
+    /**
+     * @return the probability of the observation sequence
+     */
+    public double getObservationProbability(int o[]){
+        return Math.exp(getLogObservationProbability(o));
+    }
+
+    /**
+     * @return the normalized forward vector after the last sequence scored,
+     * P(state at the end | O); the array is overwritten by the next call
+     */
+    public double[] getAlpha(){
+        return alpha;
+    }
+
+    /**
+     * drop all the cached prefixes
+     */
+    public void clearCache(){
+        root=null;
+        head.prev=head.next=head;
+        cachedBytes=0;
+        nodeCount=0;
+    }
+
+    private void reset(HMMRepresentation model){
+        clearCache();
+        int N=model.stateCount;
+        double pi[]=model.pi.clone();
+        double log=Math.log(HMMKernels.normalize(pi,0,N));
+        root=new Node(null,null,pi,log,0);
+        if (alpha==null||alpha.length!=N){
+            alpha=new double[N];
+            next=new double[N];
+        }
+        cachedModel=model;
+        cachedVersion=model.version;
+    }
+
+    private static long nodeBytes(int N,int symbols){
+        return NODE_OVERHEAD+8L*N+4L*symbols;
+    }
+
+    private static Node[] append(Node path[],int n,Node node){
+        if (n==path.length) path=Arrays.copyOf(path,2*n);
+        path[n]=node;
+        return path;
+    }
+
+    /**
+     * move the node to the front of the recency list
+     */
+    private void touch(Node node){
+        if (node.prev!=null){
+            node.prev.next=node.next;
+            node.next.prev=node.prev;
+        }
+        node.next=head.next;
+        node.prev=head;
+        head.next.prev=node;
+        head.next=node;
+    }
+
+    /**
+     * evict the least recently used nodes until the cache fits in its budget; they are
+     * leaves since every lookup refreshes parents after their children
+     */
+    private void evict(){
+        while (cachedBytes>maxCacheBytes&&head.prev!=head){
+            Node node=head.prev;
+            node.prev.next=head;
+            head.prev=node.prev;
+            node.parent.children.remove(node.key);
+            if (node.parent.children.isEmpty()) node.parent.children=null;
+            cachedBytes-=node.bytes;
+            --nodeCount;
+            ++evictionCount;
+        }
+    }
+
+    /**
+     * @return the count of sequences scored
+     */
+    public long getLookupCount() {
+        return lookupCount;
+    }
+
+    /**
+     * @return the count of sequences which resumed from a cached prefix
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return the count of sequences which started from t=0
+     */
+    public long getMissCount() {
+        return lookupCount-hitCount;
+    }
+
+    /**
+     * @return the count of sequences found whole in the cache
+     */
+    public long getExactHitCount() {
+        return exactHitCount;
+    }
+
+    /**
+     * @return the count of symbols skipped by resuming from cached prefixes
+     */
+    public long getReusedSymbolCount() {
+        return reusedSymbolCount;
+    }
+
+    /**
+     * @return the count of symbols run through the forward pass
+     */
+    public long getComputedSymbolCount() {
+        return computedSymbolCount;
+    }
+
+    /**
+     * @return the count of cached prefixes evicted for the memory budget
+     */
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return the count of cached prefixes
+     */
+    public int getEntryCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @return the estimated bytes of the cached prefixes
+     */
+    public long getCacheBytes() {
+        return cachedBytes;
+    }
+
+    /**
+     * zero the hit and miss counters, the cache is kept
+     */
+    public void resetStatistics(){
+        lookupCount=hitCount=exactHitCount=reusedSymbolCount=computedSymbolCount=evictionCount=0;
+    }
+}
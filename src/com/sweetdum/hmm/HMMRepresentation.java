@@ -22,6 +22,9 @@ SOFTWARE.
 
 package com.sweetdum.hmm;
 
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
 /**
  * HMMRepresentation stores the parameters of a hidden markov model.
  * With this representation object, user can use the model to create sequences.
@@ -31,15 +34,86 @@ package com.sweetdum.hmm;
  */
 public class HMMRepresentation {
     /**
-     * a: state transfer matrix
-     * a[i][j] := P (s[i]->s[j] | s[i]);
+     * a: state transfer probabilities, one value per arc (allowed transfer).
+     * The arcs of s[i] are rowStart[i] ... rowStart[i+1]-1 and arc x goes to s[arcTarget[x]].
+     * For a dense model every transfer is an arc and a[i*N+j] := P (s[i]->s[j] | s[i]);
+     */
+    double a[];
+    /**
+     * b: observation symbol emit possibilities, stored observation-major so that
+     * all the arcs emitting o[k] form one contiguous slab
+     * b[k*arcCount+x] := P(o[k] | arc x), i.e. b[(k*N+i)*N+j] for a dense model
+     * null for a model mapped by HMMModelFile, whose emissions stay in mappedB
+     */
+    double b[];
+    /**
+     * the emissions of a mapped model in the layout of b, each chunk is a read-only view
+     * of slabsPerChunk whole slabs as one mapping can not exceed 2GB
+     */
+    DoubleBuffer mappedB[];
+    /**
+     * log of mappedB in the same chunks when the model file stores it, null otherwise
      */
-    double a[][];
+    DoubleBuffer mappedLogB[];
+    int slabsPerChunk;
     /**
-     * b: observation symbol emit possibilities
-     * b[i][j][k] := P(o[k] | s[i]->s[j])
+     * per-thread copy of the current slab for the kernels working on a mapped model
      */
-    double b[][][];
+    private ThreadLocal<double[]> slabBuffer;
+    /**
+     * bumped by every change of the parameters, the compiled kernels follow it
+     */
+    long version;
+    /**
+     * kernels: M[k*arcCount+x] := a[x]*b[k*arcCount+x], the weight of arc x emitting o[k],
+     * logKernels: log of kernels. Both are compiled on first use after a change and shared
+     * by all the algorithms; a mapped model builds the kernel of one slab per call instead.
+     */
+    private volatile CompiledKernels kernels, logKernels;
+    private ThreadLocal<double[]> kernelBuffer;
+    /**
+     * log of a, compiled like kernels, the log kernels of a mapped model add it to log b
+     */
+    private volatile CompiledKernels logA;
+    /**
+     * whether the solvers compute in single precision, see setFloatPrecision
+     */
+    boolean floatPrecision;
+    /**
+     * the kernels and log kernels in single precision, compiled like kernels
+     */
+    private volatile CompiledFloatKernels floatKernels, floatLogKernels;
+    private ThreadLocal<float[]> floatKernelBuffer;
+    /**
+     * whether the model is a snapshot, whose parameters never change
+     */
+    boolean frozen;
+
+    /**
+     * a table in the layout of b compiled from one version of the parameters
+     */
+    private static final class CompiledKernels {
+        final long version;
+        final double values[];
+
+        CompiledKernels(long version,double values[]){
+            this.version=version;
+            this.values=values;
+        }
+    }
+
+    /**
+     * a single precision table in the layout of b compiled from one version of the parameters
+     */
+    private static final class CompiledFloatKernels {
+        final long version;
+        final float values[];
+
+        CompiledFloatKernels(long version,float values[]){
+            this.version=version;
+            this.values=values;
+        }
+    }
     /**
      * pi: the initial probabilities of all states
      */
@@ -52,12 +126,115 @@ public class HMMRepresentation {
      * the count of observation symbols;
      */
     int observationCount;
+    /**
+     * the count of arcs, N*N for a dense model
+     */
+    int arcCount;
+    /**
+     * whether all the N*N transfers are arcs, in row-major order
+     */
+    boolean dense;
+    /**
+     * CSR topology of the transfers, shared between clones as it never changes
+     */
+    int rowStart[], arcTarget[];
 
     public HMMRepresentation(int stateCount,int observationCount){
         this.stateCount=stateCount;
         this.observationCount=observationCount;
-        a=new double[stateCount][stateCount];
-        b=new double[stateCount][stateCount][observationCount];
+        denseTopology();
+        allocate();
+    }
+
+    /**
+     * create a sparse hmm whose transfers are restricted to the given arcs,
+     * all the other transfers have probability 0 and keep it through re-estimation.
+     * Algorithms then cost O(T*arcCount) instead of O(T*N*N).
+     * @param stateCount the count of state symbols
+     * @param observationCount the count of observation symbols
+     * @param successors successors[i] lists the states s[i] can transfer to
+     */
+    public HMMRepresentation(int stateCount,int observationCount,int successors[][]){
+        if (successors.length!=stateCount) throw new IllegalArgumentException("successors of every state are required");
+        this.stateCount=stateCount;
+        this.observationCount=observationCount;
+        rowStart=new int[stateCount+1];
+        int targets[][]=new int[stateCount][];
+        for (int i=0;i<stateCount;++i){
+            targets[i]=successors[i].clone();
+            Arrays.sort(targets[i]);
+            int n=0;
+            for (int x=0;x<targets[i].length;++x){
+                int j=targets[i][x];
+                if (j<0||j>=stateCount) throw new IllegalArgumentException("invalid successor "+j+" of state "+i);
+                if (n==0||targets[i][n-1]!=j) targets[i][n++]=j;
+            }
+            rowStart[i+1]=rowStart[i]+n;
+        }
+        arcTarget=new int[rowStart[stateCount]];
+        for (int i=0;i<stateCount;++i){
+            System.arraycopy(targets[i],0,arcTarget,rowStart[i],rowStart[i+1]-rowStart[i]);
+        }
+        this.dense=arcTarget.length==stateCount*stateCount;
+        allocate();
+    }
+
+    /**
+     * create a model of the same topology, parameters are copied by clone()
+     */
+    private HMMRepresentation(HMMRepresentation other){
+        this.stateCount=other.stateCount;
+        this.observationCount=other.observationCount;
+        this.dense=other.dense;
+        this.rowStart=other.rowStart;
+        this.arcTarget=other.arcTarget;
+        this.floatPrecision=other.floatPrecision;
+        allocate();
+    }
+
+    /**
+     * create a model over mapped emissions, used by HMMModelFile
+     * @param rowStart the topology of a sparse model, null for a dense model
+     * @param mappedB the chunks of the emission tensor
+     * @param mappedLogB the chunks of log of the emission tensor, null if the file has none
+     */
+    HMMRepresentation(int stateCount,int observationCount,int rowStart[],int arcTarget[],
+                      double pi[],double a[],DoubleBuffer mappedB[],DoubleBuffer mappedLogB[],int slabsPerChunk){
+        this.stateCount=stateCount;
+        this.observationCount=observationCount;
+        if (rowStart==null){
+            denseTopology();
+        } else {
+            this.rowStart=rowStart;
+            this.arcTarget=arcTarget;
+            this.dense=arcTarget.length==stateCount*stateCount;
+        }
+        this.arcCount=this.arcTarget.length;
+        this.pi=pi;
+        this.a=a;
+        this.mappedB=mappedB;
+        this.mappedLogB=mappedLogB;
+        this.slabsPerChunk=slabsPerChunk;
+        int slabLength=arcCount;
+        slabBuffer=ThreadLocal.withInitial(()->new double[slabLength]);
+        kernelBuffer=ThreadLocal.withInitial(()->new double[slabLength]);
+        floatKernelBuffer=ThreadLocal.withInitial(()->new float[slabLength]);
+    }
+
+    private void denseTopology(){
+        dense=true;
+        rowStart=new int[stateCount+1];
+        arcTarget=new int[stateCount*stateCount];
+        for (int i=0;i<stateCount;++i){
+            rowStart[i+1]=(i+1)*stateCount;
+            for (int j=0;j<stateCount;++j) arcTarget[i*stateCount+j]=j;
+        }
+    }
+
+    private void allocate(){
+        arcCount=arcTarget.length;
+        a=new double[arcCount];
+        b=new double[observationCount*arcCount];
         pi=new double[stateCount];
     }
 
@@ -69,12 +246,296 @@ public class HMMRepresentation {
         return observationCount;
     }
 
+    /**
+     * @return the count of allowed transfers
+     */
+    public int getArcCount() {
+        return arcCount;
+    }
+
+    /**
+     * @return whether every transfer is allowed
+     */
+    public boolean isDense() {
+        return dense;
+    }
+
+    /**
+     * @return whether the emissions are read from a mapped model file, they are read-only then
+     */
+    public boolean isMapped() {
+        return b==null;
+    }
+
+    /**
+     * the array holding the emissions of o[k], the slab starts at slabOffset(k).
+     * For a mapped model the slab is copied into a buffer of the calling thread,
+     * which stays valid until the next call on the same thread.
+     */
+    double[] slab(int k){
+        if (b!=null) return b;
+        double ret[]=slabBuffer.get();
+        mappedB[k/slabsPerChunk].get((k%slabsPerChunk)*arcCount,ret,0,arcCount);
+        return ret;
+    }
+
+    int slabOffset(int k){
+        return b!=null?k*arcCount:0;
+    }
+
+    /**
+     * the array holding the kernel of o[k], a[x]*b[k*arcCount+x] for every arc x,
+     * the slab starts at kernelOffset(k). It is compiled again after the parameters change.
+     * For a mapped model it is built into a buffer of the calling thread,
+     * which stays valid until the next call on the same thread.
+     */
+    double[] kernel(int k){
+        if (b==null) return mappedKernel(k,false);
+        CompiledKernels c=kernels;
+        if (c==null||c.version!=version) c=compileKernels();
+        return c.values;
+    }
+
+    /**
+     * the array holding log of the kernel of o[k], at kernelOffset(k)
+     */
+    double[] logKernel(int k){
+        if (b==null) return mappedKernel(k,true);
+        CompiledKernels c=logKernels;
+        if (c==null||c.version!=version) c=compileLogKernels();
+        return c.values;
+    }
+
+    int kernelOffset(int k){
+        return b!=null?k*arcCount:0;
+    }
+
+    private synchronized CompiledKernels compileKernels(){
+        CompiledKernels c=kernels;
+        if (c!=null&&c.version==version) return c;
+        //a fresh table, the stale one may still be read by a running decode
+        double values[]=new double[b.length];
+        for (int k=0;k<observationCount;++k){
+            int slab=k*arcCount;
+            for (int x=0;x<arcCount;++x) values[slab+x]=a[x]*b[slab+x];
+        }
+        c=new CompiledKernels(version,values);
+        kernels=c;
+        return c;
+    }
+
+    private synchronized CompiledKernels compileLogKernels(){
+        CompiledKernels c=logKernels;
+        if (c!=null&&c.version==version) return c;
+        double m[]=kernel(0);
+        double values[]=new double[m.length];
+        for (int x=0;x<values.length;++x) values[x]=Math.log(m[x]);
+        c=new CompiledKernels(version,values);
+        logKernels=c;
+        return c;
+    }
+
+    /**
+     * the kernel of o[k] in single precision, at kernelOffset(k), for the float solvers
+     */
+    float[] floatKernel(int k){
+        if (b==null) return mappedFloatKernel(k,false);
+        CompiledFloatKernels c=floatKernels;
+        if (c==null||c.version!=version) c=compileFloatKernels(false);
+        return c.values;
+    }
+
+    /**
+     * log of the kernel of o[k] in single precision, at kernelOffset(k)
+     */
+    float[] floatLogKernel(int k){
+        if (b==null) return mappedFloatKernel(k,true);
+        CompiledFloatKernels c=floatLogKernels;
+        if (c==null||c.version!=version) c=compileFloatKernels(true);
+        return c.values;
+    }
+
+    private synchronized CompiledFloatKernels compileFloatKernels(boolean log){
+        CompiledFloatKernels c=log?floatLogKernels:floatKernels;
+        if (c!=null&&c.version==version) return c;
+        //straight from a and b, the double kernels are not needed by a float model
+        float values[]=new float[b.length];
+        for (int k=0;k<observationCount;++k){
+            int slab=k*arcCount;
+            for (int x=0;x<arcCount;++x){
+                double m=a[x]*b[slab+x];
+                values[slab+x]=(float)(log?Math.log(m):m);
+            }
+        }
+        c=new CompiledFloatKernels(version,values);
+        if (log) floatLogKernels=c;
+        else floatKernels=c;
+        return c;
+    }
+
+    private float[] mappedFloatKernel(int k,boolean log){
+        double m[]=mappedKernel(k,log);
+        float ret[]=floatKernelBuffer.get();
+        for (int x=0;x<arcCount;++x) ret[x]=(float)m[x];
+        return ret;
+    }
+
+    private double[] mappedKernel(int k,boolean log){
+        double m[]=kernelBuffer.get();
+        int chunk=k/slabsPerChunk, offset=(k%slabsPerChunk)*arcCount;
+        if (!log){
+            mappedB[chunk].get(offset,m,0,arcCount);
+            for (int x=0;x<arcCount;++x) m[x]=a[x]*m[x];
+            return m;
+        }
+        double logA[]=logA();
+        if (mappedLogB!=null){
+            mappedLogB[chunk].get(offset,m,0,arcCount);
+            for (int x=0;x<arcCount;++x) m[x]+=logA[x];
+        } else {
+            mappedB[chunk].get(offset,m,0,arcCount);
+            for (int x=0;x<arcCount;++x) m[x]=logA[x]+Math.log(m[x]);
+        }
+        return m;
+    }
+
+    private double[] logA(){
+        CompiledKernels c=logA;
+        if (c==null||c.version!=version) c=compileLogA();
+        return c.values;
+    }
+
+    private synchronized CompiledKernels compileLogA(){
+        CompiledKernels c=logA;
+        if (c!=null&&c.version==version) return c;
+        double values[]=new double[arcCount];
+        for (int x=0;x<arcCount;++x) values[x]=Math.log(a[x]);
+        c=new CompiledKernels(version,values);
+        logA=c;
+        return c;
+    }
+
+    /**
+     * mark the parameters as changed, so the kernels are compiled again before the next use.
+     * Every write to a, b or pi has to be followed by a call.
+     */
+    void modified(){
+        ++version;
+    }
+
+    /**
+     * @return the count of parameter changes so far, results derived from the model
+     * (e.g. cached alphas) are valid as long as it does not move
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Solve in single precision: the scaled forward-backward pass and the log-space
+     * Viterbi of HMMSolver, the scaled E-step of HMMBaumWelchTrainer and the decoding of
+     * HMMDecoderService then run on float kernels and float alpha/beta/gamma tables,
+     * half the memory traffic and twice the SIMD lanes of double. The parameters and the
+     * expected counts stay double, so re-estimation keeps full precision; the plain engine,
+     * the checkpointed engine and the other algorithms always compute in double.
+     * HMMPrecisionReport measures what the switch changes on a corpus before adopting it.
+     * @param floatPrecision whether to solve in single precision
+     */
+    public void setFloatPrecision(boolean floatPrecision) {
+        requireMutable();
+        this.floatPrecision = floatPrecision;
+    }
+
+    public boolean isFloatPrecision() {
+        return floatPrecision;
+    }
+
+    /**
+     * @return whether the model is a snapshot, see snapshot()
+     */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * Take an immutable copy of the current parameters. The setters of the copy throw
+     * IllegalStateException and its kernels are compiled before it is returned, so any
+     * count of threads can read it without locking while the original keeps training.
+     * A mapped model shares its read-only emissions with the snapshot.
+     * @return the snapshot, this if the model is a snapshot already
+     */
+    public HMMRepresentation snapshot(){
+        return frozen?this:snapshot(version);
+    }
+
+    /**
+     * take a snapshot recording the given version
+     */
+    HMMRepresentation snapshot(long version){
+        HMMRepresentation ret;
+        if (b!=null){
+            ret=(HMMRepresentation)clone();
+        } else {
+            ret=new HMMRepresentation(stateCount,observationCount,dense?null:rowStart,arcTarget,
+                    pi.clone(),a.clone(),mappedB,mappedLogB,slabsPerChunk);
+            ret.floatPrecision=floatPrecision;
+        }
+        ret.version=version;
+        ret.frozen=true;
+        if (b!=null&&floatPrecision){
+            ret.floatKernel(0);
+            ret.floatLogKernel(0);
+        } else if (b!=null){
+            //compiles the kernels on the way
+            ret.logKernel(0);
+        } else {
+            ret.logA();
+        }
+        return ret;
+    }
+
+    /**
+     * @return the emission at index in the layout of b
+     */
+    double emission(int index){
+        if (b!=null) return b[index];
+        int k=index/arcCount;
+        return mappedB[k/slabsPerChunk].get((k%slabsPerChunk)*arcCount+index%arcCount);
+    }
+
+    /**
+     * fail on changing the parameters of a snapshot
+     */
+    void requireMutable(){
+        if (frozen) throw new IllegalStateException("a model snapshot is immutable, clone() it first");
+    }
+
+    /**
+     * fail on writing the emissions of a snapshot or a mapped model
+     */
+    void requireWritable(){
+        requireMutable();
+        if (b==null) throw new IllegalStateException("the emissions of a mapped model are read-only, clone() it first");
+    }
+
+    /**
+     * find the arc of a transfer
+     * @return the arc index, -1 if s[i]->s[j] is not allowed
+     */
+    int arc(int i,int j){
+        if (dense) return i*stateCount+j;
+        int ret=Arrays.binarySearch(arcTarget,rowStart[i],rowStart[i+1],j);
+        return ret<0?-1:ret;
+    }
+
     public double getA(int i,int j) {
-        return a[i][j];
+        int x=arc(i,j);
+        return x<0?0:a[x];
     }
 
     public double getB(int i,int j,int k) {
-        return b[i][j][k];
+        int x=arc(i,j);
+        return x<0?0:emission(k*arcCount+x);
     }
 
     public double getPi(int i) {
@@ -82,24 +543,42 @@ public class HMMRepresentation {
     }
 
     public void setA(int i,int j, double a) {
-        this.a[i][j] = a;
+        requireMutable();
+        int x=requireArc(i,j,a);
+        if (x>=0) this.a[x] = a;
+        modified();
     }
 
     public void setB(int i,int j,int k,double b) {
-        this.b[i][j][k] = b;
+        requireWritable();
+        int x=requireArc(i,j,b);
+        if (x>=0) this.b[k*arcCount+x] = b;
+        modified();
     }
 
     public void setPi(int i,double pi) {
+        requireMutable();
         this.pi[i] = pi;
+        modified();
+    }
+
+    /**
+     * @return the arc of s[i]->s[j], -1 when it is absent and the value is 0
+     */
+    private int requireArc(int i,int j,double value){
+        int x=arc(i,j);
+        if (x<0&&value!=0) throw new IllegalArgumentException("transfer "+i+"->"+j+" is not an arc of the model");
+        return x;
     }
 
     /**
-     * produce an observations sequence randomly with the hmm
+     * produce an observations sequence randomly with the hmm,
+     * HMMSampler generates in bulk with O(1) draws
      * @param length the length of the observations
      * @return an array of observations sequence
      */
     public int[] produceObservations(int length){
-        int nowState=0,nextState=0;
+        int nowState=0,arc=0;
         int ret[]=new int[length];
         double random=Math.random();
 
@@ -115,23 +594,23 @@ public class HMMRepresentation {
         for (int pos=0;pos<length;++pos){
             //produce the next state
             random=Math.random();
-            for (int i=0;i<stateCount;++i){
-                random-=a[nowState][i];
+            for (int x=rowStart[nowState];x<rowStart[nowState+1];++x){
+                random-=a[x];
+                arc=x;
                 if (random<=0){
-                    nextState=i;
                     break;
                 }
             }
             //produce an observation
             random=Math.random();
             for (int i=0;i<observationCount;++i){
-                random-=b[nowState][nextState][i];
+                random-=emission(i*arcCount+arc);
                 if (random<=0){
                     ret[pos]=i;
                     break;
                 }
             }
-            nowState=nextState;
+            nowState=arcTarget[arc];
         }
         return ret;
     }
@@ -140,9 +619,11 @@ public class HMMRepresentation {
         int ret[]=new int[state.length-1];
         double random;
         for (int i=1;i<state.length;++i){
+            int arc=arc(state[i-1],state[i]);
+            if (arc<0) throw new IllegalArgumentException("transfer "+state[i-1]+"->"+state[i]+" is not an arc of the model");
             random=Math.random();
             for (int k=0;k<observationCount;++k){
-                random-=b[state[i-1]][state[i]][k];
+                random-=emission(k*arcCount+arc);
                 if (random<=0){
                     ret[i-1]=k;
                     break;
@@ -155,6 +636,7 @@ public class HMMRepresentation {
      * init the parameter to uniform distribution
      */
     public void uniformParameter(){
+        requireWritable();
         double count=0;
         for (int i=0;i<stateCount;++i){
             pi[i]=Math.random();count+=pi[i];
@@ -164,40 +646,39 @@ public class HMMRepresentation {
         }
         for (int i=0;i<stateCount;++i){
             count=0;
-            for (int j=0;j<stateCount;++j){
-                a[i][j]=Math.random();
-                count+=a[i][j];
+            for (int x=rowStart[i];x<rowStart[i+1];++x){
+                a[x]=Math.random();
+                count+=a[x];
             }
-            for (int j=0;j<stateCount;++j) a[i][j]/=count;
+            for (int x=rowStart[i];x<rowStart[i+1];++x) a[x]/=count;
         }
-        for (int i=0;i<stateCount;++i){
-            for (int j=0;j<stateCount;++j){
-                count=0;
-                for (int k=0;k<observationCount;++k){
-                    b[i][j][k]=Math.random();
-                    count+=b[i][j][k];
-                }
-                for (int k=0;k<observationCount;++k){
-                    b[i][j][k]/=count;
-                }
+        for (int x=0;x<arcCount;++x){
+            count=0;
+            for (int k=0;k<observationCount;++k){
+                b[k*arcCount+x]=Math.random();
+                count+=b[k*arcCount+x];
+            }
+            for (int k=0;k<observationCount;++k){
+                b[k*arcCount+x]/=count;
             }
         }
+        modified();
     }
 
     /**
      * output the parameter of the hmm representation
      */
     public void printParameter(){
-        for (int i=0;i<2;++i){
-            for (int j=0;j<2;++j){
-                System.out.print("A[" + i + "][" + j + "]=" + a[i][j] + " ");
-                for (int k=0;k<4;++k){
-                    System.out.print("B["+i+"]["+j+"]["+k+"]="+b[i][j][k]+" ");
+        for (int i=0;i<stateCount;++i){
+            for (int j=0;j<stateCount;++j){
+                System.out.print("A[" + i + "][" + j + "]=" + getA(i,j) + " ");
+                for (int k=0;k<observationCount;++k){
+                    System.out.print("B["+i+"]["+j+"]["+k+"]="+getB(i,j,k)+" ");
                 }
                 System.out.println();
             }
         }
-        for (int i=0;i<2;++i){
+        for (int i=0;i<stateCount;++i){
             System.out.println("Pi["+i+"]="+pi[i]);
         }
     }
@@ -209,15 +690,21 @@ public class HMMRepresentation {
      */
     public double diffWithOtherHMM(HMMRepresentation hmm){
         double error=0;
-        for (int i=0;i<stateCount;++i){
-            for (int j=0;j<stateCount;++j){
-                error+=(hmm.a[i][j]-a[i][j])*(hmm.a[i][j]-a[i][j]);
+        if (hmm.arcTarget==arcTarget||(dense&&hmm.dense)){
+            for (int i=0;i<a.length;++i){
+                error+=(hmm.a[i]-a[i])*(hmm.a[i]-a[i]);
             }
-        }
-        for (int i=0;i<stateCount;++i){
-            for (int j=0;j<stateCount;++j){
-                for (int k=0;k<observationCount;++k) {
-                    error += (hmm.b[i][j][k] - b[i][j][k]) * (hmm.b[i][j][k] - b[i][j][k]);
+            for (int i=0;i<observationCount*arcCount;++i){
+                double d=hmm.emission(i)-emission(i);
+                error+=d*d;
+            }
+        } else {
+            for (int i=0;i<stateCount;++i){
+                for (int j=0;j<stateCount;++j){
+                    error+=(hmm.getA(i,j)-getA(i,j))*(hmm.getA(i,j)-getA(i,j));
+                    for (int k=0;k<observationCount;++k) {
+                        error+=(hmm.getB(i,j,k)-getB(i,j,k))*(hmm.getB(i,j,k)-getB(i,j,k));
+                    }
                 }
             }
         }
@@ -230,16 +717,40 @@ public class HMMRepresentation {
 
     @Override
     public Object clone() {
-        HMMRepresentation ret=new HMMRepresentation(stateCount,observationCount);
-        for (int i=0;i<stateCount;++i){
-            ret.pi[i]=pi[i];
-            for (int j=0;j<stateCount;++j){
-                ret.a[i][j]=a[i][j];
-                for (int k=0;k<observationCount;++k){
-                    ret.b[i][j][k]=b[i][j][k];
-                }
-            }
-        }
+        HMMRepresentation ret=new HMMRepresentation(this);
+        System.arraycopy(pi,0,ret.pi,0,pi.length);
+        System.arraycopy(a,0,ret.a,0,a.length);
+        copyEmissions(ret.b);
+        ret.version=version;
         return ret;
     }
+
+    /**
+     * overwrite the parameters with those of a model of the same size and topology,
+     * e.g. one mapped by HMMModelFile, reusing the arrays of this one
+     */
+    void copyParameters(HMMRepresentation source){
+        requireWritable();
+        if (source.stateCount!=stateCount||source.observationCount!=observationCount
+                ||!Arrays.equals(source.rowStart,rowStart)||!Arrays.equals(source.arcTarget,arcTarget)){
+            throw new IllegalArgumentException("the models differ in size or topology");
+        }
+        System.arraycopy(source.pi,0,pi,0,pi.length);
+        System.arraycopy(source.a,0,a,0,a.length);
+        source.copyEmissions(b);
+        modified();
+    }
+
+    /**
+     * copy the emissions, on the heap or mapped, into dst in the layout of b
+     */
+    private void copyEmissions(double dst[]){
+        if (b!=null){
+            System.arraycopy(b,0,dst,0,b.length);
+            return;
+        }
+        for (int c=0;c<mappedB.length;++c){
+            mappedB[c].get(0,dst,c*slabsPerChunk*arcCount,mappedB[c].capacity());
+        }
+    }
 }
@@ -0,0 +1,235 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package com.sweetdum.hmm;
+
+/**
+ * HMMRunLengthForward runs the scaled forward pass over a sequence compressed into runs
+ * of a repeated symbol. A run of o[k] of length L multiplies the forward vector by
+ * M_k^L, M_k being the kernel a*b of o[k] as a dense N*N matrix; M_k^L is applied as
+ * the product of the squares M_k^(2^p) of the bits of L, so a run costs
+ * O(N*N*log L) instead of O(N*N*L). The squares are built on first use and cached per
+ * symbol until the parameters of the hmm change, within a memory budget.
+ * Runs shorter than minRunLength, and the runs of a symbol whose squares alone do not
+ * fit the budget, are stepped through one symbol at a time.
+ *
+ * Every cached square is divided by its largest entry, whose log is kept aside, and the
+ * forward vector is normalized after every product, so nothing under- or overflows.
+ * Only the last forward vector is produced; use the manipulators when alpha of
+ * every timestep is needed. It is not thread-safe.
+ */
+public class HMMRunLengthForward {
+    final HMMRepresentation hmm;
+    /**
+     * runs shorter than this are stepped through
+     */
+    int minRunLength=8;
+    /**
+     * the maximum bytes of cached squares, the cache is dropped when it grows beyond;
+     * a symbol needing more on its own is never cached
+     */
+    long maxCacheBytes=64L<<20;
+    /**
+     * powers[k][p] := M_k^(2^p) / exp(logScales[k][p]), N*N row-major; null until used
+     */
+    private final double powers[][][];
+    private final double logScales[][];
+    private long cachedBytes;
+    /**
+     * the hmm version the cached squares were built from
+     */
+    private long cachedVersion=-1;
+    /**
+     * the normalized forward vector after the last call
+     */
+    double alpha[];
+    private double next[];
+    /**
+     * the count of runs advanced by powers and of symbols stepped through in the last call
+     */
+    long runCount, stepCount;
+
+    public HMMRunLengthForward(HMMRepresentation hmm){
+        this.hmm=hmm;
+        powers=new double[hmm.observationCount][][];
+        logScales=new double[hmm.observationCount][];
+        alpha=new double[hmm.stateCount];
+        next=new double[hmm.stateCount];
+    }
+
+    /**
+     * @param minRunLength runs shorter than this are stepped through one symbol at a time
+     */
+    public void setMinRunLength(int minRunLength){
+        if (minRunLength<1) throw new IllegalArgumentException("minRunLength must be positive");
+        this.minRunLength=minRunLength;
+    }
+
+    /**
+     * @param maxCacheBytes the memory budget of the cached squares
+     */
+    public void setMaxCacheBytes(long maxCacheBytes){
+        this.maxCacheBytes=maxCacheBytes;
+    }
+
+    /**
+     * @return log P(O | model)
+     */
+    public double getLogObservationProbability(int o[]){
+        return getLogObservationProbability(o,o.length);
+    }
+
+    /**
+     * @return log P(O | model) of the first length symbols of o
+     */
+    public double getLogObservationProbability(int o[],int length){
+        int N=hmm.stateCount;
+        System.arraycopy(hmm.pi,0,alpha,0,N);
+        double ret=Math.log(HMMKernels.normalize(alpha,0,N));
+        runCount=0;
+        stepCount=0;
+        for (int t=0;t<length;){
+            int k=o[t], end=t+1;
+            while (end<length&&o[end]==k) ++end;
+            ret+=advance(alpha,k,end-t);
+            t=end;
+        }
+        return ret;
+    }
+
+    /**
+     * @return the probability of the observation sequence
+     */
+    public double getObservationProbability(int o[]){
+        return Math.exp(getLogObservationProbability(o));
+    }
+
+    /**
+     * copy the state distribution at the end of the last sequence,
+     * P(X[T]=s[i] | O, model)
+     * @param ret the array to fill, of length at least stateCount
+     * @return ret
+     */
+    public double[] getStateDistribution(double ret[]){
+        System.arraycopy(alpha,0,ret,0,alpha.length);
+        return ret;
+    }
+
+    public long getRunCount(){
+        return runCount;
+    }
+
+    public long getStepCount(){
+        return stepCount;
+    }
+
+    /**
+     * advance a normalized forward vector through count symbols o[k]
+     * @param v the forward vector, normalized to sum 1 on return
+     * @return log of the probability of the run given the past, -Infinity if impossible
+     */
+    double advance(double v[],int k,long count){
+        int N=hmm.stateCount;
+        double ret=0;
+        if (count<minRunLength||!prepare(k,64-Long.numberOfLeadingZeros(count))){
+            for (long t=0;t<count;++t){
+                HMMKernels.forward(hmm,k,v,0,next,0);
+                System.arraycopy(next,0,v,0,N);
+                ret+=Math.log(HMMKernels.normalize(v,0,N));
+            }
+            stepCount+=count;
+            return ret;
+        }
+        ++runCount;
+        for (int p=0;count!=0;++p,count>>>=1){
+            if ((count&1)==0) continue;
+            HMMKernels.multiplyRow(v,powers[k][p],N,next);
+            System.arraycopy(next,0,v,0,N);
+            ret+=logScales[k][p]+Math.log(HMMKernels.normalize(v,0,N));
+        }
+        return ret;
+    }
+
+    /**
+     * make sure the squares M_k^(2^p) of p in [0,levels) are cached
+     * @return false if they do not fit the budget, nothing is cached then
+     */
+    private boolean prepare(int k,int levels){
+        if (cachedVersion!=hmm.version) clearCache();
+        int N=hmm.stateCount;
+        double have[][]=powers[k];
+        int from=have==null?0:have.length;
+        if (from>=levels) return true;
+        if (8L*N*N*levels>maxCacheBytes) return false;
+        long bytes=8L*N*N*(levels-from);
+        if (cachedBytes+bytes>maxCacheBytes){
+            clearCache();
+            have=null;
+            from=0;
+            bytes=8L*N*N*levels;
+        }
+        double square[][]=new double[levels][];
+        double scale[]=new double[levels];
+        if (have!=null){
+            System.arraycopy(have,0,square,0,from);
+            System.arraycopy(logScales[k],0,scale,0,from);
+        }
+        for (int p=from;p<levels;++p){
+            double m[]=new double[N*N];
+            double log;
+            if (p==0){
+                double kernel[]=hmm.kernel(k);
+                int slab=hmm.kernelOffset(k);
+                for (int i=0;i<N;++i){
+                    for (int x=hmm.rowStart[i];x<hmm.rowStart[i+1];++x) m[i*N+hmm.arcTarget[x]]=kernel[slab+x];
+                }
+                log=0;
+            } else {
+                HMMKernels.multiplyMatrix(square[p-1],square[p-1],N,m);
+                log=2*scale[p-1];
+            }
+            double max=0;
+            for (int i=0;i<m.length;++i) max=Math.max(max,m[i]);
+            if (max>0){
+                for (int i=0;i<m.length;++i) m[i]/=max;
+            }
+            square[p]=m;
+            scale[p]=log+Math.log(max);
+        }
+        powers[k]=square;
+        logScales[k]=scale;
+        cachedBytes+=bytes;
+        return true;
+    }
+
+    /**
+     * drop all the cached squares
+     */
+    public void clearCache(){
+        for (int k=0;k<powers.length;++k){
+            powers[k]=null;
+            logScales[k]=null;
+        }
+        cachedBytes=0;
+        cachedVersion=hmm.version;
+    }
+}
@@ -0,0 +1,343 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package com.sweetdum.hmm;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * HMMSampler generates observation sequences from a model in O(1) per draw.
+ * A Walker alias table is built on creation for pi, for the arcs of every state and
+ * for the symbols of every arc, so a draw takes one random number and one lookup
+ * instead of a scan over the row. The random numbers come from a SplittableRandom
+ * passed by the caller, so threads never share a generator.
+ *
+ * The bulk generators cut the work into blocks of sequences, each drawn from its own
+ * generator split from the seed in block order: the same seed, count and length give
+ * the same sequences whatever the executor, and whether they go to an array, a flat
+ * buffer or a corpus file.
+ *
+ * The sampler reads the parameters once on creation. It is thread-safe.
+ */
+public class HMMSampler {
+    /**
+     * the count of symbols generated by one task of the bulk generators
+     */
+    private static final int BLOCK_SYMBOLS=1<<20;
+
+    final int stateCount;
+    final int observationCount;
+    /**
+     * alias tables of pi, indexed by state
+     */
+    final double initialProb[];
+    final int initialAlias[];
+    /**
+     * alias tables of the arcs of s[i] at rowStart[i] ... rowStart[i+1]-1,
+     * the alias is an arc index relative to rowStart[i]
+     */
+    final double arcProb[];
+    final int arcAlias[];
+    /**
+     * alias tables of the symbols emitted along arc x at x*observationCount
+     */
+    final double symbolProb[];
+    final int symbolAlias[];
+    final int rowStart[], arcTarget[];
+    final ExecutorService executor;
+
+    /**
+     * create a sampler running the bulk generators on the common fork-join pool
+     * @param hmm the hmm representation
+     */
+    public HMMSampler(HMMRepresentation hmm){
+        this(hmm,ForkJoinPool.commonPool());
+    }
+
+    /**
+     * create a sampler running the bulk generators on the given executor
+     * @param hmm the hmm representation
+     * @param executor the executor, it is not shut down by the sampler
+     */
+    public HMMSampler(HMMRepresentation hmm,ExecutorService executor){
+        int N=hmm.stateCount, M=hmm.observationCount, arcCount=hmm.arcCount;
+        this.stateCount=N;
+        this.observationCount=M;
+        this.rowStart=hmm.rowStart;
+        this.arcTarget=hmm.arcTarget;
+        this.executor=executor;
+        double scratch[]=new double[Math.max(Math.max(N,M),maxRow(hmm))];
+        int work[]=new int[scratch.length];
+
+        initialProb=new double[N];
+        initialAlias=new int[N];
+        build(hmm.pi,0,N,initialProb,initialAlias,0,scratch,work);
+
+        arcProb=new double[arcCount];
+        arcAlias=new int[arcCount];
+        for (int i=0;i<N;++i){
+            build(hmm.a,rowStart[i],rowStart[i+1]-rowStart[i],arcProb,arcAlias,rowStart[i],scratch,work);
+        }
+
+        //transpose b so that the symbols of one arc are contiguous
+        double emissions[]=new double[arcCount*M];
+        for (int k=0;k<M;++k){
+            double slab[]=hmm.slab(k);
+            int off=hmm.slabOffset(k);
+            for (int x=0;x<arcCount;++x) emissions[x*M+k]=slab[off+x];
+        }
+        symbolProb=new double[arcCount*M];
+        symbolAlias=new int[arcCount*M];
+        for (int x=0;x<arcCount;++x){
+            build(emissions,x*M,M,symbolProb,symbolAlias,x*M,scratch,work);
+        }
+    }
+
+    private static int maxRow(HMMRepresentation hmm){
+        int ret=0;
+        for (int i=0;i<hmm.stateCount;++i) ret=Math.max(ret,hmm.rowStart[i+1]-hmm.rowStart[i]);
+        return ret;
+    }
+
+    /**
+     * Vose's construction of the alias table of w[from,from+n) into prob and alias at off.
+     * A row without probability mass gets prob NaN, and drawing from it fails.
+     */
+    static void build(double w[],int from,int n,double prob[],int alias[],int off,double scaled[],int work[]){
+        if (n==0) return;
+        double sum=0;
+        for (int x=0;x<n;++x) sum+=w[from+x];
+        if (!(sum>0)||Double.isInfinite(sum)){
+            for (int x=0;x<n;++x) prob[off+x]=Double.NaN;
+            return;
+        }
+        //work holds the small entries from the front and the large ones from the back
+        int small=0, large=n;
+        for (int x=0;x<n;++x){
+            scaled[x]=w[from+x]*n/sum;
+            if (scaled[x]<1) work[small++]=x;
+            else work[--large]=x;
+        }
+        while (small>0&&large<n){
+            int s=work[--small], l=work[large];
+            prob[off+s]=scaled[s];
+            alias[off+s]=l;
+            scaled[l]=(scaled[l]+scaled[s])-1;
+            if (scaled[l]<1){
+                ++large;
+                work[small++]=l;
+            }
+        }
+        //the rest is 1 up to rounding
+        while (small>0) prob[off+work[--small]]=1;
+        while (large<n) prob[off+work[large++]]=1;
+    }
+
+    /**
+     * draw from the alias table of n entries at off
+     * @return the entry relative to off
+     */
+    private static int draw(SplittableRandom random,double prob[],int alias[],int off,int n){
+        double p=n==0?Double.NaN:prob[off];
+        double u=random.nextDouble()*n;
+        int x=(int)u;
+        if (x>0) p=prob[off+x];
+        if (p!=p) throw new IllegalStateException("drawing from a row without probability mass");
+        return u-x<p?x:alias[off+x];
+    }
+
+    /**
+     * @return a state drawn from pi
+     */
+    public int sampleInitialState(SplittableRandom random){
+        return draw(random,initialProb,initialAlias,0,stateCount);
+    }
+
+    /**
+     * generate a sequence and its states
+     * @param o receives the observations o[offset] ... o[offset+length-1]
+     * @param states receives X[0] ... X[length] at states[0] ..., null when not needed
+     */
+    public void sample(SplittableRandom random,int o[],int offset,int length,int states[]){
+        int state=sampleInitialState(random);
+        if (states!=null) states[0]=state;
+        int M=observationCount;
+        for (int t=0;t<length;++t){
+            int begin=rowStart[state];
+            int arc=begin+draw(random,arcProb,arcAlias,begin,rowStart[state+1]-begin);
+            o[offset+t]=draw(random,symbolProb,symbolAlias,arc*M,M);
+            state=arcTarget[arc];
+            if (states!=null) states[t+1]=state;
+        }
+    }
+
+    /**
+     * @return a new observation sequence of the given length
+     */
+    public int[] sample(SplittableRandom random,int length){
+        int ret[]=new int[length];
+        sample(random,ret,0,length,null);
+        return ret;
+    }
+
+    /**
+     * draw the observations along a given state sequence, like
+     * HMMRepresentation.produceObservationFromState()
+     * @param states X[0] ... X[T]
+     * @param o receives o[0] ... o[T-1]
+     */
+    public void sampleFromStates(SplittableRandom random,int states[],int o[]){
+        int M=observationCount;
+        for (int t=1;t<states.length;++t){
+            int arc=arc(states[t-1],states[t]);
+            o[t-1]=draw(random,symbolProb,symbolAlias,arc*M,M);
+        }
+    }
+
+    private int arc(int i,int j){
+        for (int x=rowStart[i];x<rowStart[i+1];++x){
+            if (arcTarget[x]==j) return x;
+        }
+        throw new IllegalArgumentException("transfer "+i+"->"+j+" is not an arc of the model");
+    }
+
+    /**
+     * generate count sequences of the given length in parallel
+     * @param seed the seed, the same seed gives the same sequences
+     * @return the sequences
+     */
+    public int[][] generate(long seed,int count,final int length){
+        final int ret[][]=new int[count][length];
+        generate(seed,count,length,new Block() {
+            @Override
+            public void fill(SplittableRandom random,int first,int last) {
+                for (int n=first;n<last;++n) sample(random,ret[n],0,length,null);
+            }
+        });
+        return ret;
+    }
+
+    /**
+     * generate count sequences of the given length in parallel into a preallocated buffer,
+     * sequence n at buffer[n*length]
+     * @param seed the seed, the same seed gives the same sequences
+     * @return buffer
+     */
+    public int[] generate(long seed,int count,final int length,final int buffer[]){
+        if ((long)count*length>buffer.length) throw new IllegalArgumentException("buffer is too small");
+        generate(seed,count,length,new Block() {
+            @Override
+            public void fill(SplittableRandom random,int first,int last) {
+                for (int n=first;n<last;++n) sample(random,buffer,n*length,length,null);
+            }
+        });
+        return buffer;
+    }
+
+    /**
+     * generate count sequences of the given length into a new corpus file; a window of
+     * blocks is generated in parallel and written in order, so memory stays bounded
+     * @param seed the seed, the same seed gives the same sequences
+     */
+    public void generate(Path path,long seed,int count,final int length) throws IOException {
+        int perBlock=blockSize(length);
+        int window=Math.max(1,Runtime.getRuntime().availableProcessors()*2);
+        SplittableRandom root=new SplittableRandom(seed);
+        try (HMMCorpusFile.Writer writer=HMMCorpusFile.create(path,observationCount)){
+            for (int first=0;first<count;){
+                List<Callable<int[]>> jobs=new ArrayList<Callable<int[]>>(window);
+                int sizes[]=new int[window];
+                for (int b=0;b<window&&first<count;++b){
+                    final int size=Math.min(perBlock,count-first);
+                    sizes[b]=size;
+                    final SplittableRandom random=root.split();
+                    jobs.add(new Callable<int[]>() {
+                        @Override
+                        public int[] call() {
+                            int block[]=new int[size*length];
+                            for (int n=0;n<size;++n) sample(random,block,n*length,length,null);
+                            return block;
+                        }
+                    });
+                    first+=size;
+                }
+                List<int[]> blocks=invokeAll(jobs);
+                for (int b=0;b<blocks.size();++b){
+                    for (int n=0;n<sizes[b];++n) writer.append(blocks.get(b),n*length,length);
+                }
+            }
+        }
+    }
+
+    /**
+     * generates the sequences [first,last) of a bulk request
+     */
+    private interface Block {
+        void fill(SplittableRandom random,int first,int last);
+    }
+
+    private void generate(long seed,int count,int length,final Block block){
+        int perBlock=blockSize(length);
+        SplittableRandom root=new SplittableRandom(seed);
+        List<Callable<int[]>> jobs=new ArrayList<Callable<int[]>>();
+        for (int first=0;first<count;first+=perBlock){
+            final int from=first, to=Math.min(count,first+perBlock);
+            final SplittableRandom random=root.split();
+            jobs.add(new Callable<int[]>() {
+                @Override
+                public int[] call() {
+                    block.fill(random,from,to);
+                    return null;
+                }
+            });
+        }
+        invokeAll(jobs);
+    }
+
+    private static int blockSize(int length){
+        return Math.max(1,BLOCK_SYMBOLS/Math.max(1,length));
+    }
+
+    private List<int[]> invokeAll(List<Callable<int[]>> jobs){
+        List<int[]> ret=new ArrayList<int[]>(jobs.size());
+        try {
+            for (Future<int[]> future:executor.invokeAll(jobs)) ret.add(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("generation interrupted",e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+            throw new IllegalStateException("generation failed",e.getCause());
+        }
+        return ret;
+    }
+}
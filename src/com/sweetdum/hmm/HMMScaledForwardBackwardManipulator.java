@@ -0,0 +1,127 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package com.sweetdum.hmm;
+
+/**
+ * HMMScaledForwardBackwardManipulator calculates alpha/beta/gamma array with
+ * per-timestep scaling coefficients, so that the arrays never underflow even for
+ * observation sequences with millions of symbols.
+ *
+ * The scaled arrays keep the same meaning up to a factor depending only on t:
+ * alpha^[t][i] = alpha[t][i] / (scale[0]*scale[1]*...*scale[t])
+ * beta^[t][i]  = beta[t][i]  / (scale[t+1]*...*scale[T])
+ * so sigma(alpha^[t][i]*beta^[t][i]) = 1 for every t, and
+ * log P(O | model) = sigma(log scale[t]).
+ */
+public class HMMScaledForwardBackwardManipulator extends HMMForwardBackwardManipulator {
+    /**
+     * scale[t] := sigma(alpha[t][i]) before normalization
+     */
+    double scale[];
+    /**
+     * log P(O | model), accumulated from the scaling coefficients
+     */
+    double logLikelihood;
+
+    /**
+     * create a scaled forward backward manipulator
+     * @param hmm the HMMRepresentation bound to the manipulator
+     * @param observations the observation ids array
+     */
+    public HMMScaledForwardBackwardManipulator(HMMRepresentation hmm, int observations[]) {
+        super(hmm, observations);
+    }
+
+    /**
+     * create a scaled forward backward manipulator whose arrays live in the given workspace
+     * @param hmm the HMMRepresentation bound to the manipulator
+     * @param observations the observation ids array
+     * @param workspace the workspace, it should not be used by another manipulator at the same time
+     */
+    public HMMScaledForwardBackwardManipulator(HMMRepresentation hmm, int observations[], HMMWorkspace workspace) {
+        super(hmm, observations, workspace);
+    }
+
+    /**
+     * create a scaled forward backward manipulator for the first length symbols of observations
+     * @param hmm the HMMRepresentation bound to the manipulator
+     * @param observations the observation ids array, e.g. a buffer filled by HMMCorpusFile
+     * @param length the length of the observation sequence
+     * @param workspace the workspace, it should not be used by another manipulator at the same time
+     */
+    public HMMScaledForwardBackwardManipulator(HMMRepresentation hmm, int observations[], int length, HMMWorkspace workspace) {
+        super(hmm, observations, length, workspace);
+    }
+
+    /**
+     * calculate the scaled alpha and the scaling coefficients from the observation sequence
+     */
+    @Override
+    public void calculateAlpha() {
+        int N = hmm.stateCount;
+        this.scale = workspace.scale;
+        //initial
+        for (int i = 0; i < N; ++i) {
+            alpha[i] = hmm.pi[i];
+        }
+        logLikelihood = normalize(0);
+        //induction
+        for (int t = 1; t <= endTime; ++t) {
+            HMMKernels.forward(hmm, o[t - 1], alpha, (t - 1) * N, alpha, t * N);
+            logLikelihood += normalize(t);
+        }
+    }
+
+    /**
+     * calculate the scaled beta, alpha should have been prepared
+     */
+    @Override
+    public void calculateBeta() {
+        int N = hmm.stateCount;
+        for (int i = 0; i < N; ++i) beta[endTime * N + i] = 1;
+        //induction
+        for (int t = endTime - 1; t >= 0; --t) {
+            double c = scale[t + 1];
+            int cur = t * N;
+            HMMKernels.backward(hmm, o[t], beta, (t + 1) * N, beta, cur);
+            for (int i = 0; i < N; ++i) {
+                beta[cur + i] = c > 0 ? beta[cur + i] / c : 0;
+            }
+        }
+    }
+
+    @Override
+    public double getLogLikelihood() {
+        return logLikelihood;
+    }
+
+    /**
+     * normalize alpha[t] to sum 1 and record the coefficient
+     * @return log of the coefficient, -Infinity if the observation is impossible
+     */
+    private double normalize(int t) {
+        int N = hmm.stateCount;
+        scale[t] = HMMKernels.normalize(alpha, t * N, N);
+        return Math.log(scale[t]);
+    }
+}
@@ -0,0 +1,352 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package com.sweetdum.hmm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HMMShardedTrainer runs Baum-Welch over a corpus file with the E-step spread over
+ * worker processes, a local stand-in for the machines of a cluster. The corpus is cut
+ * into one shard per worker holding about the same count of symbols. Every iteration
+ * the driver writes the current model with HMMModelFile, each worker runs the E-step of
+ * its shard on its own threads and sends its HMMSufficientStatistics back in binary form,
+ * and the driver merges them and applies one M-step. The merge is associative and
+ * commutative, so the update is the batch EM update of the whole corpus.
+ *
+ * Workers are started on the first iteration with the java runtime and class path of
+ * the driver and talk over their standard streams: the driver sends ITERATE and the
+ * path of the model file on stdin, the worker answers with the statistics on stdout.
+ * Standard error is inherited. It is not thread-safe.
+ */
+public class HMMShardedTrainer implements AutoCloseable {
+    private final double EPS=1e-15;
+    /**
+     * the commands of the driver, an int on the stdin of a worker
+     */
+    static final int QUIT=0, ITERATE=1;
+
+    /**
+     * the hmm representation to train, updated in place by every iteration
+     */
+    final HMMRepresentation hmm;
+    final Path corpusPath;
+    /**
+     * worker w runs the sequences [shards[w],shards[w+1])
+     */
+    final int shards[];
+    /**
+     * the count of E-step threads of every worker
+     */
+    int threadsPerWorker;
+    boolean checkpointed;
+    List<String> jvmOptions;
+    /**
+     * holds the model files, created with the workers
+     */
+    private Path directory;
+    private Process workers[];
+    private DataOutputStream commands[];
+    private InputStream results[];
+    private long iteration;
+
+    /**
+     * create a trainer, the workers are started by the first iteration
+     * @param hmm the hmm representation to train
+     * @param corpus the corpus file, which every worker maps
+     * @param workerCount the count of worker processes and shards
+     */
+    public HMMShardedTrainer(HMMRepresentation hmm,Path corpus,int workerCount) throws IOException {
+        if (workerCount<1) throw new IllegalArgumentException("workerCount must be positive");
+        hmm.requireWritable();
+        HMMCorpusFile file=HMMCorpusFile.open(corpus);
+        if (file.observationCount>hmm.observationCount) throw new IllegalArgumentException("corpus has more symbols than the model");
+        this.hmm=hmm;
+        this.corpusPath=corpus.toAbsolutePath();
+        this.shards=split(file,workerCount);
+        this.threadsPerWorker=Math.max(1,Runtime.getRuntime().availableProcessors()/workerCount);
+        this.jvmOptions=defaultJvmOptions();
+    }
+
+    /**
+     * cut the corpus at the sequences closest to equal shares of the symbols
+     */
+    static int[] split(HMMCorpusFile corpus,int count){
+        int ret[]=new int[count+1];
+        int sequences=corpus.getSequenceCount();
+        long symbols=corpus.getSymbolCount();
+        for (int w=1;w<count;++w){
+            long share=symbols*w/count;
+            //the first sequence starting at or after the share
+            int lo=ret[w-1], hi=sequences;
+            while (lo<hi){
+                int mid=(lo+hi)>>>1;
+                if (corpus.symbolOffset(mid)<share) lo=mid+1;
+                else hi=mid;
+            }
+            ret[w]=lo;
+        }
+        ret[count]=sequences;
+        return ret;
+    }
+
+    /**
+     * pass the vector module and its switch on to the workers when the driver uses them
+     */
+    private static List<String> defaultJvmOptions(){
+        List<String> ret=new ArrayList<String>();
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()){
+            ret.add("--add-modules");
+            ret.add("jdk.incubator.vector");
+        }
+        String vector=System.getProperty("com.sweetdum.hmm.vector");
+        if (vector!=null) ret.add("-Dcom.sweetdum.hmm.vector="+vector);
+        return ret;
+    }
+
+    /**
+     * @param threadsPerWorker the count of E-step threads of every worker, by default
+     *                         the cores of the machine shared by the workers
+     */
+    public void setThreadsPerWorker(int threadsPerWorker) {
+        if (threadsPerWorker<1) throw new IllegalArgumentException("threadsPerWorker must be positive");
+        requireNotStarted();
+        this.threadsPerWorker = threadsPerWorker;
+    }
+
+    /**
+     * @see HMMBaumWelchTrainer#setCheckpointed(boolean)
+     */
+    public void setCheckpointed(boolean checkpointed) {
+        requireNotStarted();
+        this.checkpointed = checkpointed;
+    }
+
+    /**
+     * @param jvmOptions the options of the worker JVMs, e.g. -Xmx
+     */
+    public void setJvmOptions(List<String> jvmOptions) {
+        requireNotStarted();
+        this.jvmOptions = new ArrayList<String>(jvmOptions);
+    }
+
+    private void requireNotStarted(){
+        if (workers!=null) throw new IllegalStateException("workers are already running");
+    }
+
+    /**
+     * @return the first sequence of every shard, and the count of sequences last
+     */
+    public List<Integer> getShardBoundaries(){
+        List<Integer> ret=new ArrayList<Integer>(shards.length);
+        for (int n:shards) ret.add(n);
+        return Collections.unmodifiableList(ret);
+    }
+
+    private void start() throws IOException {
+        directory=Files.createTempDirectory("hmm-shards");
+        String java=Paths.get(System.getProperty("java.home"),"bin","java").toString();
+        int count=shards.length-1;
+        workers=new Process[count];
+        commands=new DataOutputStream[count];
+        results=new InputStream[count];
+        for (int w=0;w<count;++w){
+            List<String> command=new ArrayList<String>();
+            command.add(java);
+            command.addAll(jvmOptions);
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(HMMShardedTrainer.class.getName());
+            command.add(corpusPath.toString());
+            command.add(Integer.toString(shards[w]));
+            command.add(Integer.toString(shards[w+1]));
+            command.add(Integer.toString(threadsPerWorker));
+            command.add(Boolean.toString(checkpointed));
+            workers[w]=new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            commands[w]=new DataOutputStream(new BufferedOutputStream(workers[w].getOutputStream()));
+            results[w]=new BufferedInputStream(workers[w].getInputStream());
+        }
+    }
+
+    /**
+     * run the E-step of all the shards with the current parameters
+     * @return the merged statistics of the whole corpus
+     * @throws IOException when a worker can not be started or fails
+     */
+    public HMMSufficientStatistics expectation() throws IOException {
+        if (workers==null) start();
+        //a new file per iteration, as a worker may still map the previous one
+        Path model=directory.resolve("model-"+(iteration++)+".hmm");
+        HMMModelFile.write(hmm,model);
+        try {
+            for (int w=0;w<workers.length;++w){
+                commands[w].writeInt(ITERATE);
+                commands[w].writeUTF(model.toString());
+                commands[w].flush();
+            }
+            HMMSufficientStatistics ret=null;
+            for (int w=0;w<workers.length;++w){
+                HMMSufficientStatistics part;
+                try {
+                    part=HMMSufficientStatistics.readFrom(results[w]);
+                } catch (IOException e) {
+                    throw new IOException("worker "+w+" failed"+(workers[w].isAlive()?"":" with exit code "+workers[w].exitValue()),e);
+                }
+                if (ret==null) ret=part;
+                else ret.merge(part);
+            }
+            return ret;
+        } finally {
+            try {
+                Files.deleteIfExists(model);
+            } catch (IOException e) {
+                //still mapped on some platforms, removed with the directory by close()
+            }
+        }
+    }
+
+    /**
+     * run one EM iteration over the corpus
+     * @return the log-likelihood of the corpus under the parameters before the update
+     */
+    public double iterate() throws IOException {
+        HMMIterationEvent event=HMMIterationEvent.start(hmm);
+        HMMSufficientStatistics statistics=expectation();
+        statistics.maximize(hmm,EPS);
+        event.finish("sharded",iteration,hmm,statistics);
+        return statistics.logLikelihood;
+    }
+
+    /**
+     * iterate until the log-likelihood stops improving
+     * @param maxIterations the maximum count of iterations
+     * @param tolerance stop when the relative improvement is below it
+     * @return the count of iterations run
+     */
+    public int train(int maxIterations,double tolerance) throws IOException {
+        double last=Double.NEGATIVE_INFINITY;
+        for (int iter=1;iter<=maxIterations;++iter){
+            double now=iterate();
+            if (now-last<=tolerance*Math.abs(now)) return iter;
+            last=now;
+        }
+        return maxIterations;
+    }
+
+    /**
+     * stop the workers and remove the model files
+     */
+    @Override
+    public void close(){
+        if (workers==null) return;
+        for (int w=0;w<workers.length;++w){
+            try {
+                commands[w].writeInt(QUIT);
+                commands[w].close();
+            } catch (IOException e) {
+                //the worker is gone already
+            }
+        }
+        for (Process worker:workers){
+            try {
+                if (!worker.waitFor(10,TimeUnit.SECONDS)) worker.destroyForcibly();
+            } catch (InterruptedException e) {
+                worker.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            try (DirectoryStream<Path> files=Files.newDirectoryStream(directory)){
+                for (Path file:files) Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(directory);
+        } catch (IOException e) {
+            //left for the temporary directory cleanup of the system
+        }
+        workers=null;
+    }
+
+    /**
+     * the worker process: corpus path, first and last sequence of the shard,
+     * count of threads, whether the E-step is checkpointed
+     */
+    public static void main(String args[]) throws IOException {
+        HMMCorpusFile corpus=HMMCorpusFile.open(Paths.get(args[0]));
+        int first=Integer.parseInt(args[1]);
+        int last=Integer.parseInt(args[2]);
+        int threads=Integer.parseInt(args[3]);
+        boolean checkpointed=Boolean.parseBoolean(args[4]);
+        //stdout carries the statistics only, anything printed goes to stderr
+        OutputStream out=new BufferedOutputStream(new FileOutputStream(FileDescriptor.out));
+        System.setOut(System.err);
+        DataInputStream in=new DataInputStream(new BufferedInputStream(System.in));
+        ForkJoinPool pool=new ForkJoinPool(threads);
+        //one model and trainer for the life of the worker, so the per-thread workspaces
+        //survive the iterations and only the parameters are read each time
+        HMMRepresentation hmm=null;
+        HMMBaumWelchTrainer trainer=null;
+        try {
+            while (true){
+                int command;
+                try {
+                    command=in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (command==QUIT) return;
+                if (command!=ITERATE) throw new IOException("unknown command "+command);
+                HMMRepresentation model=HMMModelFile.map(Paths.get(in.readUTF()));
+                if (trainer==null){
+                    hmm=(HMMRepresentation)model.clone();
+                    trainer=new HMMBaumWelchTrainer(hmm,pool);
+                    trainer.setTaskCount(threads*4);
+                    trainer.setCheckpointed(checkpointed);
+                } else {
+                    hmm.copyParameters(model);
+                }
+                trainer.expectation(corpus,first,last).writeTo(out);
+                out.flush();
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
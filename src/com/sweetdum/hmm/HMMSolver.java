@@ -22,6 +22,8 @@ SOFTWARE.
 
 package com.sweetdum.hmm;
 
+import java.util.Arrays;
+
 /**
  * HMMSolver provider the method to solve the three center questions of HMM
  * It need a hmm representation and an observations sequence as input
@@ -31,12 +33,73 @@ package com.sweetdum.hmm;
 public class HMMSolver {
     private final double EPS=1e-15;
     HMMRepresentation hmm;
+    /**
+     * the forward-backward engine, created and run on first use after the observations change
+     */
     HMMForwardBackwardManipulator fbManipulator;
+    private boolean fbReady;
+    /**
+     * answers the probability of the sequence when set, see setRunLengthForward
+     */
+    HMMRunLengthForward runLength;
+    private double runLengthLogLikelihood;
+    private boolean runLengthReady;
+    /**
+     * the buffers shared by the manipulator, Viterbi and the re-estimation
+     */
+    HMMWorkspace workspace;
     int o[];
+    /**
+     * the length of the observation sequence, o may be a longer buffer
+     */
+    int length;
+    /**
+     * whether the solver uses the scaled forward-backward engine and log-space Viterbi
+     */
+    boolean scaled;
     public HMMSolver(HMMRepresentation hmm,int observations[]){
+        this(hmm,observations,false);
+    }
+
+    /**
+     * create a solver
+     * @param hmm the hmm representation
+     * @param observations the observation ids array
+     * @param scaled use the scaled engine, which is required for long sequences
+     *               because the plain alpha/beta underflow after a few hundred symbols;
+     *               it computes in single precision for a float model
+     */
+    public HMMSolver(HMMRepresentation hmm,int observations[],boolean scaled){
+        this(hmm,observations,scaled,new HMMWorkspace(hmm));
+    }
+
+    /**
+     * create a solver working in the given workspace.
+     * Solvers which are used one after another on the same thread can share a workspace,
+     * so the arrays are only allocated once for the longest sequence.
+     * @param hmm the hmm representation
+     * @param observations the observation ids array
+     * @param scaled use the scaled engine
+     * @param workspace the workspace
+     */
+    public HMMSolver(HMMRepresentation hmm,int observations[],boolean scaled,HMMWorkspace workspace){
+        this(hmm,observations,observations.length,scaled,workspace);
+    }
+
+    /**
+     * create a solver for the first length symbols of observations
+     * @param hmm the hmm representation
+     * @param observations the observation ids array, e.g. a buffer filled by HMMCorpusFile
+     * @param length the length of the observation sequence
+     * @param scaled use the scaled engine
+     * @param workspace the workspace
+     */
+    public HMMSolver(HMMRepresentation hmm,int observations[],int length,boolean scaled,HMMWorkspace workspace){
+        if (!workspace.fits(hmm)) throw new IllegalArgumentException("workspace does not match the model size");
         this.hmm=hmm;
-        o=observations;
-        this.fbManipulator=new HMMForwardBackwardManipulator(hmm,observations);
+        this.scaled=scaled;
+        this.workspace=workspace;
+        readNewObservation(observations,length);
     }
 
     /**
@@ -44,8 +107,52 @@ public class HMMSolver {
      * @param observations
      */
     public void readNewObservation(int observations[]){
+        readNewObservation(observations,observations.length);
+    }
+
+    /**
+     * input the first length symbols of observations into the solver
+     * @param observations the observation ids array
+     * @param length the length of the observation sequence
+     */
+    public void readNewObservation(int observations[],int length){
+        if (length<0||length>observations.length) throw new IllegalArgumentException("invalid length "+length);
         o=observations;
-        this.fbManipulator=new HMMForwardBackwardManipulator(hmm,observations);
+        this.length=length;
+        fbReady=false;
+        runLengthReady=false;
+    }
+
+    /**
+     * Answer getObservationProbability() and getLogObservationProbability() with
+     * HMMRunLengthForward: every run of at least minRunLength repeated symbols is advanced
+     * by cached powers of its kernel matrix instead of one step per symbol, in double
+     * precision. The forward-backward tables are then only computed for estimateParameter().
+     * @param minRunLength the shortest run advanced by powers, 0 to answer with the
+     *                     forward-backward engine again
+     */
+    public void setRunLengthForward(int minRunLength){
+        if (minRunLength<0) throw new IllegalArgumentException("minRunLength must not be negative");
+        runLengthReady=false;
+        if (minRunLength==0){
+            runLength=null;
+            return;
+        }
+        if (runLength==null) runLength=new HMMRunLengthForward(hmm);
+        runLength.setMinRunLength(minRunLength);
+    }
+
+    /**
+     * @return the forward-backward engine, run for the current observations
+     */
+    private HMMForwardBackwardManipulator manipulator(){
+        if (fbManipulator==null){
+            fbManipulator=HMMForwardBackwardManipulator.create(hmm,o,length,workspace,scaled);
+        } else if (!fbReady){
+            fbManipulator.readNewObservation(o,length);
+        }
+        fbReady=true;
+        return fbManipulator;
     }
 
     /**
@@ -53,18 +160,33 @@ public class HMMSolver {
      * @return the probability
      */
     public double getObservationProbability(){
+        if (scaled||runLength!=null) return Math.exp(getLogObservationProbability());
+        HMMForwardBackwardManipulator fb=manipulator();
         double ret=0;
-        int time=o.length;
+        int time=length;
         int N=hmm.stateCount;
         for (int t=0;t<=time;++t){
             for (int i=0;i<N;++i){
-                ret+=fbManipulator.alpha[t][i]*fbManipulator.beta[t][i];
+                ret+=fb.alpha[t*N+i]*fb.beta[t*N+i];
             }
         }
         ret/=time;
         return ret;
     }
 
+    /**
+     * get the log probability of the observation sequence with the HMM
+     * @return log P(O | model)
+     */
+    public double getLogObservationProbability(){
+        if (runLength==null) return manipulator().getLogLikelihood();
+        if (!runLengthReady){
+            runLengthLogLikelihood=runLength.getLogObservationProbability(o,length);
+            runLengthReady=true;
+        }
+        return runLengthLogLikelihood;
+    }
+
     /**
      * Get the state sequence which explain the observations in the largest
      * probability way
@@ -73,109 +195,171 @@ public class HMMSolver {
      * @return the state ids sequence
      */
     public int[] getBestStateSequence(){
-        int endTime=o.length;
+        return getBestStateSequence(new int[length+1]);
+    }
+
+    /**
+     * Get the best state sequence into a caller provided array, so that repeated
+     * decoding does not allocate
+     * @param ret the array to fill, its length should be at least the sequence length + 1
+     * @return ret
+     */
+    public int[] getBestStateSequence(int ret[]){
+        if (scaled) return getBestStateSequenceInLogSpace(ret);
+        int endTime=length;
         int N=hmm.stateCount;
-        double delta[][]=new double[endTime+1][N];
-        int phi[][]=new int[endTime+1][N];
+        workspace.ensurePathCapacity(endTime);
+        double delta[]=workspace.delta;
+        double next[]=workspace.nextDelta;
+        int phi[]=workspace.phi;
+        long begin=HMMMetrics.begin(HMMMetrics.Phase.VITERBI);
 
-        for (int i=0;i<N;++i) delta[0][i]=hmm.pi[i];
+        for (int i=0;i<N;++i) delta[i]=hmm.pi[i];
         for (int t=1;t<=endTime;++t) {
-            for (int i = 0; i < N; ++i) {
-                for (int j = 0; j < N; ++j) {
+            double m[]=hmm.kernel(o[t-1]);
+            int slab=hmm.kernelOffset(o[t-1]);
+            int cur=t*N;
+            Arrays.fill(next,0);
+            Arrays.fill(phi,cur,cur+N,0);
+            for (int j = 0; j < N; ++j) {
+                for (int x = hmm.rowStart[j]; x < hmm.rowStart[j + 1]; ++x) {
                     //transfer from j to i
-                    double tmp = delta[t - 1][j] * hmm.a[j][i] * hmm.b[j][i][o[t - 1]];
-                    if (tmp > delta[t][i]) {
-                        delta[t][i] = tmp;
-                        phi[t][i] = j;
+                    int i = hmm.arcTarget[x];
+                    double tmp = delta[j] * m[slab + x];
+                    if (tmp > next[i]) {
+                        next[i] = tmp;
+                        phi[cur + i] = j;
                     }
                 }
             }
+            double swap[]=delta;delta=next;next=swap;
         }
+        traceBack(N,endTime,delta,phi,ret);
+        HMMMetrics.end(HMMMetrics.Phase.VITERBI,begin,endTime);
+        return ret;
+    }
 
-        int ret[]=new int[endTime+1];
-        for (int i=0;i<N;++i) {
-            if (delta[endTime][i]>delta[endTime][ret[endTime]]) ret[endTime]= i;
-        }
-        for (int t=endTime-1;t>=0;--t){
-            ret[t]=phi[t+1][ret[t+1]];
+    /**
+     * Viterbi algorithm working on log probabilities, only two rows of delta are kept
+     * @return the state ids sequence
+     */
+    private int[] getBestStateSequenceInLogSpace(int ret[]){
+        return decode(hmm,null,o,length,workspace,ret);
+    }
+
+    /**
+     * log-space Viterbi which needs no forward-backward pass, for decode-only callers
+     * @param logKernels a private table filled by HMMKernels.logKernels,
+     *                   null to read the current kernels of the model
+     * @param o the observation ids array
+     * @param workspace the workspace providing delta and the back pointers
+     * @param ret the array to fill, its length should be at least o.length + 1
+     * @return ret
+     */
+    static int[] decode(HMMRepresentation hmm,double logKernels[],int o[],HMMWorkspace workspace,int ret[]){
+        return decode(hmm,logKernels,o,o.length,workspace,ret);
+    }
+
+    /**
+     * log-space Viterbi over the first length symbols of o, in single precision for a
+     * float model read without a private table
+     */
+    static int[] decode(HMMRepresentation hmm,double logKernels[],int o[],int length,HMMWorkspace workspace,int ret[]){
+        if (logKernels==null&&hmm.floatPrecision) return decodeFloat(hmm,o,length,workspace,ret);
+        return decodeDouble(hmm,logKernels,o,length,workspace,ret);
+    }
+
+    /**
+     * log-space Viterbi in double precision whatever the precision of the model
+     */
+    static int[] decodeDouble(HMMRepresentation hmm,double logKernels[],int o[],int length,HMMWorkspace workspace,int ret[]){
+        int endTime=length;
+        int N=hmm.stateCount;
+        workspace.ensurePathCapacity(endTime);
+        double delta[]=workspace.delta;
+        double next[]=workspace.nextDelta;
+        int phi[]=workspace.phi;
+        long begin=HMMMetrics.begin(HMMMetrics.Phase.VITERBI);
+
+        for (int i=0;i<N;++i) delta[i]=Math.log(hmm.pi[i]);
+        for (int t=1;t<=endTime;++t) {
+            if (logKernels==null) HMMKernels.viterbi(hmm,o[t-1],delta,next,phi,t*N);
+            else HMMKernels.viterbi(hmm,logKernels,o[t-1],delta,next,phi,t*N);
+            double swap[]=delta;delta=next;next=swap;
         }
+        traceBack(N,endTime,delta,phi,ret);
+        HMMMetrics.end(HMMMetrics.Phase.VITERBI,begin,endTime);
         return ret;
     }
 
     /**
-     * re-estimate the hmm parameter with forward-backward algorithm
+     * log-space Viterbi in single precision on the float log kernels. Every row of delta
+     * is shifted by its maximum, which keeps the scores near 0 where float tells the paths
+     * apart as finely at the end of a long sequence as at its start
      */
-    public void estimateParameter(){
-        int endTime=o.length;
+    static int[] decodeFloat(HMMRepresentation hmm,int o[],int length,HMMWorkspace workspace,int ret[]){
+        int endTime=length;
         int N=hmm.stateCount;
-        double p[][][]=new double[endTime][N][N];
-        for (int t=0;t<endTime;++t){
-            double count=EPS;
-            for (int i=0;i<N;++i){
-                for (int j=0;j<N;++j){
-                    p[t][i][j]=fbManipulator.alpha[t][i]*hmm.a[i][j]*hmm.b[i][j][o[t]]*fbManipulator.beta[t+1][j];
-                    count +=p[t][j][j];
-                }
-            }
-            for (int i=0;i<N;++i){
-                for (int j=0;j<N;++j){
-                    p[t][i][j]/=count;
-                }
-            }
-        }
-        double pSumThroughTime[][]=new double[N][N];
-        for (int i=0;i<N;++i){
-            for (int j=0;j<N;++j){
-                pSumThroughTime[i][j]=EPS;
-            }
-        }
-        for (int t=0;t<endTime;++t){
-            for (int i=0;i<N;++i){
-                for (int j=0;j<N;++j){
-                    pSumThroughTime[i][j]+=p[t][i][j];
-                }
-            }
-        }
+        workspace.ensurePathCapacity(endTime);
+        float delta[]=workspace.floatDelta;
+        float next[]=workspace.floatNextDelta;
+        int phi[]=workspace.phi;
+        long begin=HMMMetrics.begin(HMMMetrics.Phase.VITERBI);
 
-        //rebuild gamma
-        for (int t=0;t<endTime;++t){
-            for (int i=0;i<N;++i) fbManipulator.gamma[t][i]=0;
-            for (int i=0;i<N;++i){
-                for (int j=0;j<N;++j){
-                    fbManipulator.gamma[t][i]+=p[t][i][j];
-                }
+        for (int i=0;i<N;++i) delta[i]=(float)Math.log(hmm.pi[i]);
+        for (int t=1;t<=endTime;++t) {
+            HMMKernels.viterbi(hmm,o[t-1],delta,next,phi,t*N);
+            float max=Float.NEGATIVE_INFINITY;
+            for (int i=0;i<N;++i) max=Math.max(max,next[i]);
+            if (max!=Float.NEGATIVE_INFINITY){
+                for (int i=0;i<N;++i) next[i]-=max;
             }
+            float swap[]=delta;delta=next;next=swap;
         }
-
-        double gammaCount=EPS;
-        //maximum parameter
-        for (int i=0;i<N;++i){
-            gammaCount+=fbManipulator.gamma[0][i];
-            hmm.pi[i]=fbManipulator.gamma[0][i];
-        }
-        for (int i=0;i<N;++i){
-            hmm.pi[i]/=gammaCount;
+        ret[endTime]=0;
+        for (int i=0;i<N;++i) {
+            if (delta[i]>delta[ret[endTime]]) ret[endTime]= i;
         }
+        followBack(N,endTime,phi,ret);
+        HMMMetrics.end(HMMMetrics.Phase.VITERBI,begin,endTime);
+        return ret;
+    }
 
+    /**
+     * pick the best final state and follow the back pointers
+     * @param last delta of the last timestep
+     */
+    private static int[] traceBack(int N,int endTime,double last[],int phi[],int ret[]){
+        ret[endTime]=0;
         for (int i=0;i<N;++i) {
-            gammaCount = EPS;
-            for (int t = 0; t < endTime; ++t) gammaCount += fbManipulator.gamma[t][i];
-            for (int j = 0; j < N; ++j) {
-                hmm.a[i][j] = pSumThroughTime[i][j] / gammaCount;
-            }
+            if (last[i]>last[ret[endTime]]) ret[endTime]= i;
         }
-        for (int i=0;i<N;i++){
-            for (int j=0;j<N;++j){
-                double tmp[]=new double[hmm.observationCount];
-                for (int t=0;t<endTime;++t){
-                    tmp[o[t]]+=p[t][i][j];
-                }
-                for (int k=0;k<hmm.observationCount;++k){
-                    hmm.b[i][j][k]=(tmp[k]+1e-8)/pSumThroughTime[i][j];
-                }
-            }
+        return followBack(N,endTime,phi,ret);
+    }
+
+    /**
+     * fill ret[0,endTime) from the back pointers, ret[endTime] holding the final state
+     */
+    private static int[] followBack(int N,int endTime,int phi[],int ret[]){
+        for (int t=endTime-1;t>=0;--t){
+            ret[t]=phi[(t+1)*N+ret[t+1]];
         }
-        //rebuild fbManipulator
-        fbManipulator=new HMMForwardBackwardManipulator(hmm,o);
+        return ret;
+    }
+
+    /**
+     * re-estimate the hmm parameter with forward-backward algorithm
+     */
+    public void estimateParameter(){
+        //E-step, streamed into the statistics of the workspace
+        long begin=HMMMetrics.begin(HMMMetrics.Phase.E_STEP);
+        HMMSufficientStatistics statistics=workspace.clearedStatistics();
+        manipulator().accumulateStatistics(statistics,EPS);
+        HMMMetrics.end(HMMMetrics.Phase.E_STEP,begin,statistics.symbolCount);
+        //maximum parameter
+        statistics.maximize(hmm,EPS);
+        //the tables and the probability are recomputed for the new parameters on next use
+        fbReady=false;
+        runLengthReady=false;
     }
 }
@@ -0,0 +1,348 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package com.sweetdum.hmm;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * HMMSufficientStatistics holds the expected counts produced by the E-step of
+ * Baum-Welch over any number of observation sequences.
+ * Statistics of disjoint parts of a corpus can be merged in any order, and one
+ * M-step on the merged result re-estimates the model from the whole corpus.
+ *
+ * writeTo() and readFrom() move them between processes in a binary form,
+ * all values little-endian:
+ * <pre>
+ * header, 48 bytes:
+ *   int magic "HMMS", int version, int stateCount, int observationCount, int arcCount,
+ *   int reserved, long sequenceCount, long symbolCount, double logLikelihood
+ * body:
+ *   double initial[stateCount], double transition[arcCount],
+ *   double emission[observationCount*arcCount]
+ * trailer:
+ *   long CRC32C of the header and the body
+ * </pre>
+ */
+public class HMMSufficientStatistics {
+    /**
+     * "HMMS" read as a little-endian int
+     */
+    static final int MAGIC=0x534D4D48;
+    static final int VERSION=1;
+    static final int HEADER_SIZE=48;
+    /**
+     * the pseudo-count added to every emission of an arc
+     */
+    static final double EMISSION_SMOOTHING=1e-8;
+    /**
+     * the count of state symbols
+     */
+    final int stateCount;
+    /**
+     * the count of observation symbols
+     */
+    final int observationCount;
+    /**
+     * the count of arcs of the model, N*N for a dense model
+     */
+    final int arcCount;
+    /**
+     * initial[i] := expected count of X[0]=s[i]
+     */
+    final double initial[];
+    /**
+     * transition[x] := expected count of transfers along arc x, transition[i*N+j] for a dense model
+     */
+    final double transition[];
+    /**
+     * emission[k*arcCount+x] := expected count of transfers along arc x emitting o[k],
+     * in the layout of HMMRepresentation.b
+     */
+    final double emission[];
+    /**
+     * sigma(log P(O | model)) of the accumulated sequences
+     */
+    double logLikelihood;
+    /**
+     * the count of accumulated sequences
+     */
+    long sequenceCount;
+    /**
+     * the count of accumulated observation symbols
+     */
+    long symbolCount;
+
+    /**
+     * create empty statistics for dense models of the given size
+     */
+    public HMMSufficientStatistics(int stateCount,int observationCount){
+        this(stateCount,observationCount,stateCount*stateCount);
+    }
+
+    /**
+     * create empty statistics for the given model
+     */
+    public HMMSufficientStatistics(HMMRepresentation hmm){
+        this(hmm.stateCount,hmm.observationCount,hmm.arcCount);
+    }
+
+    HMMSufficientStatistics(int stateCount,int observationCount,int arcCount){
+        this.stateCount=stateCount;
+        this.observationCount=observationCount;
+        this.arcCount=arcCount;
+        initial=new double[stateCount];
+        transition=new double[arcCount];
+        emission=new double[observationCount*arcCount];
+    }
+
+    public int getStateCount() {
+        return stateCount;
+    }
+
+    public int getObservationCount() {
+        return observationCount;
+    }
+
+    public double getLogLikelihood() {
+        return logLikelihood;
+    }
+
+    public long getSequenceCount() {
+        return sequenceCount;
+    }
+
+    public long getSymbolCount() {
+        return symbolCount;
+    }
+
+    /**
+     * reset all counts to zero
+     */
+    public void clear(){
+        Arrays.fill(initial,0);
+        Arrays.fill(transition,0);
+        Arrays.fill(emission,0);
+        logLikelihood=0;
+        sequenceCount=0;
+        symbolCount=0;
+    }
+
+    /**
+     * add the counts of another statistics object into this one
+     * @param other statistics of the same model size
+     */
+    public void merge(HMMSufficientStatistics other){
+        if (other.stateCount!=stateCount||other.observationCount!=observationCount||other.arcCount!=arcCount){
+            throw new IllegalArgumentException("statistics of different model sizes can not be merged");
+        }
+        for (int i=0;i<initial.length;++i) initial[i]+=other.initial[i];
+        for (int i=0;i<transition.length;++i) transition[i]+=other.transition[i];
+        for (int i=0;i<emission.length;++i) emission[i]+=other.emission[i];
+        logLikelihood+=other.logLikelihood;
+        sequenceCount+=other.sequenceCount;
+        symbolCount+=other.symbolCount;
+    }
+
+    /**
+     * write the statistics to a stream, the stream is not flushed nor closed
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        ByteBuffer buffer=ByteBuffer.allocate(1<<16).order(ByteOrder.LITTLE_ENDIAN);
+        CRC32C crc=new CRC32C();
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(stateCount).putInt(observationCount).putInt(arcCount).putInt(0);
+        buffer.putLong(sequenceCount).putLong(symbolCount).putDouble(logLikelihood);
+        double tables[][]={initial,transition,emission};
+        for (double table[]:tables){
+            for (double v:table){
+                if (buffer.remaining()<8) flush(buffer,crc,out);
+                buffer.putDouble(v);
+            }
+        }
+        flush(buffer,crc,out);
+        buffer.putLong(crc.getValue());
+        out.write(buffer.array(),0,buffer.position());
+    }
+
+    private static void flush(ByteBuffer buffer,CRC32C crc,OutputStream out) throws IOException {
+        crc.update(buffer.array(),0,buffer.position());
+        out.write(buffer.array(),0,buffer.position());
+        buffer.clear();
+    }
+
+    /**
+     * read statistics written by writeTo(), consuming exactly their bytes from the stream
+     * @throws IOException on a truncated or corrupted input
+     */
+    public static HMMSufficientStatistics readFrom(InputStream in) throws IOException {
+        DataInputStream data=new DataInputStream(in);
+        byte bytes[]=new byte[1<<16];
+        CRC32C crc=new CRC32C();
+        ByteBuffer header=fill(data,bytes,HEADER_SIZE,crc);
+        if (header.getInt()!=MAGIC) throw new IOException("not a statistics stream");
+        int version=header.getInt();
+        if (version!=VERSION) throw new IOException("unsupported statistics version "+version);
+        int N=header.getInt(), M=header.getInt(), arcCount=header.getInt();
+        header.getInt();
+        if (N<=0||M<=0||arcCount<=0||arcCount>(long)N*N||(long)M*arcCount>Integer.MAX_VALUE){
+            throw new IOException("invalid statistics size "+N+"x"+M+" with "+arcCount+" arcs");
+        }
+        HMMSufficientStatistics ret=new HMMSufficientStatistics(N,M,arcCount);
+        ret.sequenceCount=header.getLong();
+        ret.symbolCount=header.getLong();
+        ret.logLikelihood=header.getDouble();
+        double tables[][]={ret.initial,ret.transition,ret.emission};
+        for (double table[]:tables){
+            for (int from=0;from<table.length;){
+                int count=Math.min(table.length-from,bytes.length/8);
+                fill(data,bytes,count*8,crc).asDoubleBuffer().get(table,from,count);
+                from+=count;
+            }
+        }
+        long expected=crc.getValue();
+        if (fill(data,bytes,8,null).getLong()!=expected) throw new IOException("statistics checksum mismatch");
+        return ret;
+    }
+
+    /**
+     * read exactly length bytes into bytes
+     */
+    private static ByteBuffer fill(DataInputStream in,byte bytes[],int length,CRC32C crc) throws IOException {
+        try {
+            in.readFully(bytes,0,length);
+        } catch (EOFException e) {
+            throw new IOException("truncated statistics stream",e);
+        }
+        if (crc!=null) crc.update(bytes,0,length);
+        return ByteBuffer.wrap(bytes,0,length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * add the expected transfers of one timestep: xi[x] of arc x from s[i] to s[j] emitting o[k]
+     * is alpha[t][i]*M[k][x]*beta[t+1][j], normalized over all arcs, M being the kernel a*b
+     * @param alpha alpha[t] at alphaOff
+     * @param beta beta[t+1] at betaOff
+     * @param xi a buffer of one value per arc
+     * @param eps added to the normalizer to avoid dividing by zero
+     * @param first whether t is 0, whose transfers also count for the initial states
+     */
+    void addTransitions(HMMRepresentation hmm,int k,double alpha[],int alphaOff,double beta[],int betaOff,
+                        double xi[],double eps,boolean first){
+        int N=stateCount;
+        int rowStart[]=hmm.rowStart, target[]=hmm.arcTarget;
+        double m[]=hmm.kernel(k);
+        int mOff=hmm.kernelOffset(k);
+        double count=eps;
+        for (int i=0;i<N;++i){
+            double from=alpha[alphaOff+i];
+            for (int x=rowStart[i];x<rowStart[i+1];++x){
+                xi[x]=from*m[mOff+x]*beta[betaOff+target[x]];
+                count+=xi[x];
+            }
+        }
+        addXi(hmm,k,xi,count,first);
+    }
+
+    /**
+     * addTransitions on the float tables and kernels of a float model, xi is computed
+     * and summed in double
+     */
+    void addTransitions(HMMRepresentation hmm,int k,float alpha[],int alphaOff,float beta[],int betaOff,
+                        double xi[],double eps,boolean first){
+        int N=stateCount;
+        int rowStart[]=hmm.rowStart, target[]=hmm.arcTarget;
+        float m[]=hmm.floatKernel(k);
+        int mOff=hmm.kernelOffset(k);
+        double count=eps;
+        for (int i=0;i<N;++i){
+            double from=alpha[alphaOff+i];
+            for (int x=rowStart[i];x<rowStart[i+1];++x){
+                xi[x]=from*m[mOff+x]*beta[betaOff+target[x]];
+                count+=xi[x];
+            }
+        }
+        addXi(hmm,k,xi,count,first);
+    }
+
+    /**
+     * normalize the unnormalized xi of one timestep by count and add it to the expected counts,
+     * shared by the double and the float addTransitions
+     */
+    private void addXi(HMMRepresentation hmm,int k,double xi[],double count,boolean first){
+        int slab=k*arcCount;
+        for (int x=0;x<arcCount;++x){
+            xi[x]/=count;
+            transition[x]+=xi[x];
+            emission[slab+x]+=xi[x];
+        }
+        if (first){
+            int rowStart[]=hmm.rowStart;
+            for (int i=0;i<stateCount;++i){
+                for (int x=rowStart[i];x<rowStart[i+1];++x) initial[i]+=xi[x];
+            }
+        }
+    }
+
+    /**
+     * M-step: write the maximum likelihood parameters into the hmm
+     * @param hmm the hmm representation to update, of the same size
+     * @param eps the smoothing added to every transfer
+     */
+    public void maximize(HMMRepresentation hmm,double eps){
+        if (hmm.stateCount!=stateCount||hmm.observationCount!=observationCount||hmm.arcCount!=arcCount){
+            throw new IllegalArgumentException("statistics do not match the model size");
+        }
+        hmm.requireWritable();
+        long start=HMMMetrics.begin(HMMMetrics.Phase.M_STEP);
+        int N=stateCount;
+        double count=eps;
+        for (int i=0;i<N;++i) count+=initial[i];
+        for (int i=0;i<N;++i) hmm.pi[i]=initial[i]/count;
+
+        //absent arcs are not stored, so zero transfers stay zero. Every arc is smoothed by eps and its row
+        //by eps per arc, so a state that is (almost) never visited still gets a normalized row
+        for (int i=0;i<N;++i){
+            int begin=hmm.rowStart[i], end=hmm.rowStart[i+1];
+            count=(end-begin)*eps;
+            for (int x=begin;x<end;++x) count+=transition[x];
+            for (int x=begin;x<end;++x){
+                hmm.a[x]=(transition[x]+eps)/count;
+            }
+        }
+        for (int k=0;k<observationCount;++k){
+            int slab=k*arcCount;
+            for (int x=0;x<arcCount;++x){
+                hmm.b[slab+x]=(emission[slab+x]+EMISSION_SMOOTHING)/(transition[x]+observationCount*EMISSION_SMOOTHING);
+            }
+        }
+        hmm.modified();
+        HMMMetrics.end(HMMMetrics.Phase.M_STEP,start,symbolCount);
+    }
+}
@@ -0,0 +1,195 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package com.sweetdum.hmm;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * HMMVectorKernels implements the dense row loops of HMMKernels with the Vector API,
+ * using the widest vectors of the platform (8 doubles or 16 floats with AVX-512).
+ * It is only loaded when the jdk.incubator.vector module is present.
+ */
+final class HMMVectorKernels implements HMMKernels.RowKernels {
+    private static final VectorSpecies<Double> D=DoubleVector.SPECIES_PREFERRED;
+    /**
+     * int vectors with as many lanes as D, for the back pointers
+     */
+    private static final VectorSpecies<Integer> I=
+            VectorSpecies.of(int.class,VectorShape.forBitSize(D.vectorBitSize()/2));
+    private static final VectorSpecies<Float> F=FloatVector.SPECIES_PREFERRED;
+    /**
+     * int vectors with as many lanes as F
+     */
+    private static final VectorSpecies<Integer> FI=
+            VectorSpecies.of(int.class,VectorShape.forBitSize(F.vectorBitSize()));
+
+    @Override
+    public void multiplyAdd(double from,double m[],int mOff,double dst[],int dstOff,int n){
+        int i=0;
+        int bound=D.loopBound(n);
+        DoubleVector f=DoubleVector.broadcast(D,from);
+        for (;i<bound;i+=D.length()){
+            DoubleVector vm=DoubleVector.fromArray(D,m,mOff+i);
+            DoubleVector vd=DoubleVector.fromArray(D,dst,dstOff+i);
+            vm.fma(f,vd).intoArray(dst,dstOff+i);
+        }
+        for (;i<n;++i){
+            dst[dstOff+i]+=from*m[mOff+i];
+        }
+    }
+
+    @Override
+    public void multiplyAddLanes(double v[],int vOff,double m[],int mOff,double dst[],int dstOff,int n){
+        int i=0;
+        int bound=D.loopBound(n);
+        for (;i<bound;i+=D.length()){
+            DoubleVector vv=DoubleVector.fromArray(D,v,vOff+i);
+            DoubleVector vm=DoubleVector.fromArray(D,m,mOff+i);
+            DoubleVector vd=DoubleVector.fromArray(D,dst,dstOff+i);
+            vm.fma(vv,vd).intoArray(dst,dstOff+i);
+        }
+        for (;i<n;++i){
+            dst[dstOff+i]+=v[vOff+i]*m[mOff+i];
+        }
+    }
+
+    @Override
+    public void dotLanes(double v[],int vOff,double m[],int mOff,double dst[],int dstOff,int lanes,int count){
+        int bound=D.loopBound(lanes);
+        //the sums stay in a register along the arcs
+        for (int l=0;l<bound;l+=D.length()){
+            DoubleVector acc=DoubleVector.zero(D);
+            for (int c=0;c<count;++c){
+                int at=c*lanes+l;
+                acc=DoubleVector.fromArray(D,m,mOff+at).fma(DoubleVector.fromArray(D,v,vOff+at),acc);
+            }
+            acc.intoArray(dst,dstOff+l);
+        }
+        for (int l=bound;l<lanes;++l){
+            double sum=0;
+            for (int c=0;c<count;++c) sum+=v[vOff+c*lanes+l]*m[mOff+c*lanes+l];
+            dst[dstOff+l]=sum;
+        }
+    }
+
+    @Override
+    public double dot(double m[],int mOff,double v[],int vOff,int n){
+        int i=0;
+        int bound=D.loopBound(n);
+        DoubleVector acc=DoubleVector.zero(D);
+        for (;i<bound;i+=D.length()){
+            DoubleVector vm=DoubleVector.fromArray(D,m,mOff+i);
+            DoubleVector vv=DoubleVector.fromArray(D,v,vOff+i);
+            acc=vm.fma(vv,acc);
+        }
+        double sum=acc.reduceLanes(VectorOperators.ADD);
+        for (;i<n;++i){
+            sum+=m[mOff+i]*v[vOff+i];
+        }
+        return sum;
+    }
+
+    @Override
+    public void relax(double from,double w[],int wOff,double dst[],int phi[],int phiOff,int j,int n){
+        int i=0;
+        int bound=D.loopBound(n);
+        DoubleVector f=DoubleVector.broadcast(D,from);
+        IntVector source=IntVector.broadcast(I,j);
+        for (;i<bound;i+=D.length()){
+            DoubleVector cand=DoubleVector.fromArray(D,w,wOff+i).add(f);
+            DoubleVector cur=DoubleVector.fromArray(D,dst,i);
+            VectorMask<Double> better=cand.compare(VectorOperators.GT,cur);
+            if (!better.anyTrue()) continue;
+            cur.blend(cand,better).intoArray(dst,i);
+            IntVector.fromArray(I,phi,phiOff+i).blend(source,better.cast(I)).intoArray(phi,phiOff+i);
+        }
+        for (;i<n;++i){
+            double tmp=from+w[wOff+i];
+            if (tmp>dst[i]){
+                dst[i]=tmp;
+                phi[phiOff+i]=j;
+            }
+        }
+    }
+
+    @Override
+    public void multiplyAdd(float from,float m[],int mOff,float dst[],int dstOff,int n){
+        int i=0;
+        int bound=F.loopBound(n);
+        FloatVector f=FloatVector.broadcast(F,from);
+        for (;i<bound;i+=F.length()){
+            FloatVector vm=FloatVector.fromArray(F,m,mOff+i);
+            FloatVector vd=FloatVector.fromArray(F,dst,dstOff+i);
+            vm.fma(f,vd).intoArray(dst,dstOff+i);
+        }
+        for (;i<n;++i){
+            dst[dstOff+i]+=from*m[mOff+i];
+        }
+    }
+
+    @Override
+    public float dot(float m[],int mOff,float v[],int vOff,int n){
+        int i=0;
+        int bound=F.loopBound(n);
+        FloatVector acc=FloatVector.zero(F);
+        for (;i<bound;i+=F.length()){
+            FloatVector vm=FloatVector.fromArray(F,m,mOff+i);
+            FloatVector vv=FloatVector.fromArray(F,v,vOff+i);
+            acc=vm.fma(vv,acc);
+        }
+        float sum=acc.reduceLanes(VectorOperators.ADD);
+        for (;i<n;++i){
+            sum+=m[mOff+i]*v[vOff+i];
+        }
+        return sum;
+    }
+
+    @Override
+    public void relax(float from,float w[],int wOff,float dst[],int phi[],int phiOff,int j,int n){
+        int i=0;
+        int bound=F.loopBound(n);
+        FloatVector f=FloatVector.broadcast(F,from);
+        IntVector source=IntVector.broadcast(FI,j);
+        for (;i<bound;i+=F.length()){
+            FloatVector cand=FloatVector.fromArray(F,w,wOff+i).add(f);
+            FloatVector cur=FloatVector.fromArray(F,dst,i);
+            VectorMask<Float> better=cand.compare(VectorOperators.GT,cur);
+            if (!better.anyTrue()) continue;
+            cur.blend(cand,better).intoArray(dst,i);
+            IntVector.fromArray(FI,phi,phiOff+i).blend(source,better.cast(FI)).intoArray(phi,phiOff+i);
+        }
+        for (;i<n;++i){
+            float tmp=from+w[wOff+i];
+            if (tmp>dst[i]){
+                dst[i]=tmp;
+                phi[phiOff+i]=j;
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+package com.sweetdum.hmm;
+
+/**
+ * HMMWorkspace owns every buffer the solving algorithms need, so that decoding
+ * and training reuse the same memory call after call.
+ * The time-indexed tables are sized to the longest sequence seen so far and only
+ * grow when a longer one arrives; everything else depends on the model size only.
+ *
+ * A workspace is not thread-safe, use one per thread.
+ */
+public class HMMWorkspace {
+    /**
+     * the count of state symbols
+     */
+    final int stateCount;
+    /**
+     * the count of observation symbols
+     */
+    final int observationCount;
+    /**
+     * the count of arcs of the models served, N*N for dense models
+     */
+    final int arcCount;
+    /**
+     * the longest sequence the forward-backward tables can hold
+     */
+    int capacity;
+    /**
+     * the longest sequence the Viterbi back-pointer table can hold
+     */
+    int pathCapacity;
+    /**
+     * the longest sequence the single precision tables can hold
+     */
+    int floatCapacity;
+    /**
+     * alpha[t*N+i], beta[t*N+i] for t in [0,capacity], gamma[t*N+i] for t in [0,capacity)
+     */
+    double alpha[], beta[], gamma[];
+    /**
+     * scaling coefficients of the scaled engine, t in [0,capacity]
+     */
+    double scale[];
+    /**
+     * Viterbi back pointers phi[t*N+i], t in [0,pathCapacity]
+     */
+    int phi[];
+    /**
+     * two rows of Viterbi delta
+     */
+    double delta[], nextDelta[];
+    /**
+     * the tables of a float model, see HMMRepresentation.setFloatPrecision:
+     * alpha, beta in [0,floatCapacity], gamma in [0,floatCapacity), the scaling
+     * coefficients stay double
+     */
+    float floatAlpha[], floatBeta[], floatGamma[];
+    double floatScale[];
+    /**
+     * two rows of Viterbi delta of a float model
+     */
+    float floatDelta[], floatNextDelta[];
+    /**
+     * the symbols of a sequence read from a corpus file
+     */
+    int symbols[];
+    /**
+     * xi of one timestep, one value per arc
+     */
+    double xi[];
+    /**
+     * expected counts accumulated by the E-step of HMMSolver
+     */
+    HMMSufficientStatistics statistics;
+
+    /**
+     * create a workspace for dense models of the given size
+     * @param stateCount the count of state symbols
+     * @param observationCount the count of observation symbols
+     */
+    public HMMWorkspace(int stateCount,int observationCount){
+        this(stateCount,observationCount,stateCount*stateCount);
+    }
+
+    /**
+     * create a workspace for the given model, and any model of the same size and arc count
+     * @param hmm the hmm representation
+     */
+    public HMMWorkspace(HMMRepresentation hmm){
+        this(hmm.stateCount,hmm.observationCount,hmm.arcCount);
+    }
+
+    private HMMWorkspace(int stateCount,int observationCount,int arcCount){
+        this.stateCount=stateCount;
+        this.observationCount=observationCount;
+        this.arcCount=arcCount;
+        delta=new double[stateCount];
+        nextDelta=new double[stateCount];
+        floatDelta=new float[stateCount];
+        floatNextDelta=new float[stateCount];
+    }
+
+    /**
+     * check whether the workspace can serve the given model
+     */
+    boolean fits(HMMRepresentation hmm){
+        return hmm.stateCount==stateCount&&hmm.observationCount==observationCount&&hmm.arcCount==arcCount;
+    }
+
+    /**
+     * make sure alpha/beta/gamma/scale can hold a sequence of the given length
+     * @param length the length of the observation sequence
+     */
+    public void ensureCapacity(int length){
+        if (length<=capacity&&alpha!=null) return;
+        int c=grow(capacity,length);
+        alpha=new double[(c+1)*stateCount];
+        beta=new double[(c+1)*stateCount];
+        gamma=new double[c*stateCount];
+        scale=new double[c+1];
+        capacity=c;
+    }
+
+    /**
+     * make sure the single precision tables can hold a sequence of the given length
+     * @param length the length of the observation sequence
+     */
+    public void ensureFloatCapacity(int length){
+        if (length<=floatCapacity&&floatAlpha!=null) return;
+        int c=grow(floatCapacity,length);
+        floatAlpha=new float[(c+1)*stateCount];
+        floatBeta=new float[(c+1)*stateCount];
+        floatGamma=new float[c*stateCount];
+        floatScale=new double[c+1];
+        floatCapacity=c;
+    }
+
+    /**
+     * make sure the Viterbi back-pointer table can hold a sequence of the given length
+     * @param length the length of the observation sequence
+     */
+    public void ensurePathCapacity(int length){
+        if (length<=pathCapacity&&phi!=null) return;
+        int c=grow(pathCapacity,length);
+        phi=new int[(c+1)*stateCount];
+        pathCapacity=c;
+    }
+
+    /**
+     * a buffer of at least length symbols to decode a stored sequence into
+     */
+    int[] symbols(int length){
+        if (symbols==null||symbols.length<length) symbols=new int[grow(symbols==null?0:symbols.length,length)];
+        return symbols;
+    }
+
+    double[] xi(){
+        if (xi==null) xi=new double[arcCount];
+        return xi;
+    }
+
+    /**
+     * the statistics owned by the workspace, cleared to zero
+     */
+    HMMSufficientStatistics clearedStatistics(){
+        if (statistics==null) statistics=new HMMSufficientStatistics(stateCount,observationCount,arcCount);
+        else statistics.clear();
+        return statistics;
+    }
+
+    /**
+     * grow by at least half of the current capacity to keep re-allocations rare
+     */
+    private static int grow(int capacity,int length){
+        return Math.max(length,capacity+(capacity>>1));
+    }
+}
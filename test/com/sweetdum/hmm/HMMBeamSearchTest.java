@@ -0,0 +1,87 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package com.sweetdum.hmm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class HMMBeamSearchTest {
+    /**
+     * states 0..2 are interchangeable, so their scores tie at every step, while
+     * state 3 starts best and is the only one emitting symbol 0 with a high probability
+     */
+    private static HMMRepresentation tiedModel(){
+        int N=4;
+        HMMRepresentation hmm=new HMMRepresentation(N,2);
+        for (int i=0;i<N;++i){
+            hmm.setPi(i,i==3?0.7:0.1);
+            for (int j=0;j<N;++j){
+                hmm.setA(i,j,i<3?0.25:(j==3?0.7:0.1));
+                hmm.setB(i,j,0,j==3?0.9:0.5);
+                hmm.setB(i,j,1,j==3?0.1:0.5);
+            }
+        }
+        return hmm;
+    }
+
+    @Test
+    void tiesDoNotPushTheBestStateOutOfTheBeam() {
+        HMMRepresentation hmm=tiedModel();
+        int o[]=new int[20];
+        int exact[]=new HMMSolver(hmm,o,true).getBestStateSequence();
+        int all3[]=new int[o.length+1];
+        Arrays.fill(all3,3);
+        assertArrayEquals(all3,exact);
+        assertArrayEquals(exact,new HMMBeamSearch(hmm,hmm.stateCount,Double.POSITIVE_INFINITY).getBestStateSequence(o));
+        HMMBeamSearch beam=new HMMBeamSearch(hmm,2,Double.POSITIVE_INFINITY);
+        assertArrayEquals(exact,beam.getBestStateSequence(o));
+        for (int t=0;t<beam.getStepCount();++t) assertEquals(2,beam.getActiveCounts()[t]);
+    }
+
+    @Test
+    void tiedForwardKeepsTheBestState() {
+        HMMRepresentation hmm=tiedModel();
+        int o[]={0};
+        //state 3 and one of the tied states carry 0.8 of the initial mass
+        double expected=Math.log(0.7*(0.1*0.5*3+0.7*0.9)+0.1*(0.25*0.5*3+0.25*0.9));
+        assertEquals(expected,new HMMBeamSearch(hmm,2,Double.POSITIVE_INFINITY).getLogObservationProbability(o),1e-12);
+    }
+
+    @Test
+    void wideBeamMatchesExactViterbi() {
+        Random random=new Random(60);
+        for (HMMRepresentation hmm:new HMMRepresentation[]{TestModels.dense(6,5,61),TestModels.sparse(8,5,62)}){
+            int o[]=TestModels.sequence(80,hmm.observationCount,random);
+            assertArrayEquals(new HMMSolver(hmm,o,true).getBestStateSequence(),
+                    new HMMBeamSearch(hmm,hmm.stateCount,Double.POSITIVE_INFINITY).getBestStateSequence(o));
+            assertEquals(new HMMSolver(hmm,o,true).getLogObservationProbability(),
+                    new HMMBeamSearch(hmm,hmm.stateCount,Double.POSITIVE_INFINITY).getLogObservationProbability(o),1e-9);
+        }
+    }
+}
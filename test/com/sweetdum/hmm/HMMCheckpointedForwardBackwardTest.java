@@ -0,0 +1,67 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package com.sweetdum.hmm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class HMMCheckpointedForwardBackwardTest {
+    private static final double EPS=1e-15;
+
+    @Test
+    void statisticsMatchTheFullTables() {
+        Random random=new Random(11);
+        for (HMMRepresentation hmm:new HMMRepresentation[]{TestModels.dense(5,6,12),TestModels.sparse(7,4,13)}){
+            HMMCheckpointedForwardBackward engine=new HMMCheckpointedForwardBackward(hmm);
+            for (int length:new int[]{1,2,7,100,1000}){
+                int o[]=TestModels.sequence(length,hmm.observationCount,random);
+                HMMSufficientStatistics full=new HMMSufficientStatistics(hmm);
+                new HMMScaledForwardBackwardManipulator(hmm,o).accumulateStatistics(full,EPS);
+                HMMSufficientStatistics checkpointed=new HMMSufficientStatistics(hmm);
+                engine.accumulateStatistics(o,length,checkpointed,EPS);
+
+                assertEquals(full.logLikelihood,checkpointed.logLikelihood,1e-9*Math.abs(full.logLikelihood));
+                assertArrayEquals(full.initial,checkpointed.initial,1e-9);
+                assertArrayEquals(full.transition,checkpointed.transition,1e-9*length);
+                assertArrayEquals(full.emission,checkpointed.emission,1e-9*length);
+                assertEquals(full.symbolCount,checkpointed.symbolCount);
+            }
+        }
+    }
+
+    @Test
+    void viterbiMatchesTheFullTable() {
+        Random random=new Random(14);
+        HMMRepresentation hmm=TestModels.dense(6,5,15);
+        HMMCheckpointedForwardBackward engine=new HMMCheckpointedForwardBackward(hmm);
+        for (int length:new int[]{1,5,99,2000}){
+            int o[]=TestModels.sequence(length,5,random);
+            assertArrayEquals(new HMMSolver(hmm,o,true).getBestStateSequence(),engine.getBestStateSequence(o));
+        }
+    }
+}
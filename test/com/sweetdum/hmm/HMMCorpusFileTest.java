@@ -0,0 +1,109 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package com.sweetdum.hmm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class HMMCorpusFileTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void roundTripOfEverySymbolWidth() throws IOException {
+        Random random=new Random(41);
+        for (int observationCount:new int[]{2,256,257,65536,65537}){
+            int sequences[][]=new int[20][];
+            for (int n=0;n<sequences.length;++n){
+                sequences[n]=TestModels.sequence(n%5==0?0:random.nextInt(300),observationCount,random);
+            }
+            sequences[1]=new int[]{observationCount-1};
+            Path path=dir.resolve("corpus-"+observationCount+".hmc");
+            HMMCorpusFile.write(path,observationCount,sequences);
+            HMMCorpusFile corpus=HMMCorpusFile.open(path);
+            assertEquals(sequences.length,corpus.getSequenceCount());
+            assertEquals(observationCount,corpus.getObservationCount());
+            int buffer[]=new int[corpus.getMaxLength()];
+            long symbols=0;
+            for (int n=0;n<sequences.length;++n){
+                assertArrayEquals(sequences[n],corpus.read(n));
+                assertEquals(sequences[n].length,corpus.read(n,buffer));
+                symbols+=sequences[n].length;
+            }
+            assertEquals(symbols,corpus.getSymbolCount());
+        }
+    }
+
+    @Test
+    void appendsASliceOfABuffer() throws IOException {
+        Path path=dir.resolve("corpus.hmc");
+        int flat[]={0,1,2,3,4,5,6};
+        try (HMMCorpusFile.Writer writer=HMMCorpusFile.create(path,7)){
+            writer.append(flat,2,3);
+            writer.append(flat,0,0);
+            writer.append(flat,5,2);
+        }
+        HMMCorpusFile corpus=HMMCorpusFile.open(path);
+        assertArrayEquals(new int[]{2,3,4},corpus.read(0));
+        assertArrayEquals(new int[0],corpus.read(1));
+        assertArrayEquals(new int[]{5,6},corpus.read(2));
+    }
+
+    @Test
+    void aRejectedSequenceLeavesTheFileIntact() throws IOException {
+        Path path=dir.resolve("corpus.hmc");
+        try (HMMCorpusFile.Writer writer=HMMCorpusFile.create(path,10)){
+            writer.append(new int[]{1,2,3});
+            assertThrows(IllegalArgumentException.class,()->writer.append(new int[]{1,2,99}));
+            assertThrows(IllegalArgumentException.class,()->writer.append(new int[]{-1}));
+            assertThrows(IndexOutOfBoundsException.class,()->writer.append(new int[]{1,2},1,2));
+            writer.append(new int[]{4,4});
+        }
+        HMMCorpusFile corpus=HMMCorpusFile.open(path);
+        assertEquals(2,corpus.getSequenceCount());
+        assertEquals(5,corpus.getSymbolCount());
+        assertArrayEquals(new int[]{1,2,3},corpus.read(0));
+        assertArrayEquals(new int[]{4,4},corpus.read(1));
+    }
+
+    @Test
+    void rejectsATruncatedFile() throws IOException {
+        Path path=dir.resolve("corpus.hmc");
+        HMMCorpusFile.write(path,10,new int[][]{{1,2,3},{4,5}});
+        try (FileChannel channel=FileChannel.open(path,StandardOpenOption.WRITE)){
+            channel.truncate(channel.size()-8);
+        }
+        assertThrows(IOException.class,()->HMMCorpusFile.open(path));
+    }
+}
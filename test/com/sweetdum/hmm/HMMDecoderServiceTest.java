@@ -0,0 +1,112 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package com.sweetdum.hmm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HMMDecoderServiceTest {
+    @Test
+    void decodesLikeTheSolver() throws Exception {
+        HMMRepresentation hmm=TestModels.sparse(6,4,90);
+        Random random=new Random(91);
+        int batch[][]=new int[20][];
+        for (int n=0;n<batch.length;++n) batch[n]=TestModels.sequence(50+n,4,random);
+        try (HMMDecoderService service=HMMDecoderService.withPlatformThreads(hmm,3,4)){
+            int states[][]=service.submitAll(batch).get(10,TimeUnit.SECONDS);
+            for (int n=0;n<batch.length;++n){
+                assertArrayEquals(new HMMSolver(hmm,batch[n],true).getBestStateSequence(),states[n]);
+            }
+        }
+    }
+
+    @Test
+    void aFullServiceHoldsProducersBack() throws Exception {
+        HMMRepresentation hmm=TestModels.dense(3,4,92);
+        int o[]=TestModels.sequence(20,4,new Random(93));
+        ExecutorService executor=Executors.newSingleThreadExecutor();
+        CountDownLatch release=new CountDownLatch(1);
+        try {
+            //the only thread waits, so accepted requests stay queued
+            executor.execute(() -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            HMMDecoderService service=new HMMDecoderService(hmm,executor,2);
+            CompletableFuture<int[]> first=service.submit(o), second=service.submit(o);
+            assertEquals(2,service.getInFlightCount());
+            assertNull(service.offer(o,10,TimeUnit.MILLISECONDS));
+            release.countDown();
+            first.get(10,TimeUnit.SECONDS);
+            second.get(10,TimeUnit.SECONDS);
+            CompletableFuture<int[]> third=service.offer(o,10,TimeUnit.SECONDS);
+            assertNotNull(third);
+            third.get(10,TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void closeRejectsRequestsAndKeepsACallerExecutor() throws Exception {
+        HMMRepresentation hmm=TestModels.dense(3,4,94);
+        int o[]=TestModels.sequence(20,4,new Random(95));
+        ExecutorService executor=Executors.newSingleThreadExecutor();
+        try {
+            HMMDecoderService service=new HMMDecoderService(hmm,executor,4);
+            CompletableFuture<int[]> accepted=service.submit(o);
+            service.close();
+            assertTrue(service.isClosed());
+            assertThrows(RejectedExecutionException.class,()->service.submit(o));
+            assertThrows(RejectedExecutionException.class,()->service.submitVersioned(o));
+            assertThrows(RejectedExecutionException.class,()->service.offer(o,1,TimeUnit.MILLISECONDS));
+            assertEquals(o.length+1,accepted.get(10,TimeUnit.SECONDS).length);
+            assertFalse(executor.isShutdown());
+        } finally {
+            executor.shutdownNow();
+        }
+        HMMDecoderService owning=HMMDecoderService.withPlatformThreads(hmm,1,4);
+        owning.close();
+        assertTrue(owning.executor.isShutdown());
+        assertThrows(RejectedExecutionException.class,()->owning.submit(o));
+    }
+}
@@ -0,0 +1,82 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package com.sweetdum.hmm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class HMMFilterTest {
+    private static final double TOLERANCE=1e-9;
+
+    @Test
+    void followsTheForwardPass() {
+        HMMRepresentation hmm=TestModels.sparse(6,4,120);
+        int N=hmm.stateCount;
+        int o[]=TestModels.sequence(60,4,new Random(121));
+        HMMForwardBackwardManipulator plain=new HMMForwardBackwardManipulator(hmm,o);
+        HMMFilter filter=new HMMFilter(hmm);
+        double distribution[]=new double[N];
+        for (int t=1;t<=o.length;++t){
+            filter.push(o[t-1]);
+            double sum=0;
+            for (int i=0;i<N;++i) sum+=plain.alpha[t*N+i];
+            filter.getStateDistribution(distribution);
+            for (int i=0;i<N;++i) assertEquals(plain.alpha[t*N+i]/sum,distribution[i],TOLERANCE);
+            double expected=new HMMSolver(hmm,o,t,true,new HMMWorkspace(hmm)).getLogObservationProbability();
+            assertEquals(expected,filter.getLogLikelihood(),TOLERANCE*Math.abs(expected));
+        }
+        assertEquals(o.length,filter.getTime());
+    }
+
+    @Test
+    void aRunMatchesRepeatedPushes() {
+        HMMRepresentation hmm=TestModels.dense(5,3,122);
+        HMMFilter stepped=new HMMFilter(hmm), runs=new HMMFilter(hmm);
+        stepped.push(1);
+        runs.push(1);
+        double expected=0;
+        for (int t=0;t<1000;++t) expected+=stepped.push(2);
+        assertEquals(expected,runs.push(2,1000),TOLERANCE*Math.abs(expected));
+        assertArrayEquals(stepped.getStateDistribution(new double[5]),runs.getStateDistribution(new double[5]),TOLERANCE);
+        assertEquals(stepped.getTime(),runs.getTime());
+        assertEquals(stepped.getMostLikelyState(),runs.getMostLikelyState());
+    }
+
+    @Test
+    void resetRestartsTheStream() {
+        HMMRepresentation hmm=TestModels.dense(4,3,123);
+        int o[]=TestModels.sequence(30,3,new Random(124));
+        HMMFilter filter=new HMMFilter(hmm);
+        for (int symbol:o) filter.push(symbol);
+        double first=filter.getLogLikelihood();
+        filter.reset();
+        assertEquals(0,filter.getTime());
+        for (int symbol:o) filter.push(symbol);
+        assertEquals(first,filter.getLogLikelihood(),0);
+    }
+}
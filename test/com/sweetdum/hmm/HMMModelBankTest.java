@@ -0,0 +1,108 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package com.sweetdum.hmm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HMMModelBankTest {
+    private static HMMRepresentation[] models(int count,boolean dense,long seed){
+        HMMRepresentation ret[]=new HMMRepresentation[count];
+        for (int n=0;n<count;++n) ret[n]=dense?TestModels.dense(5,4,seed+n):TestModels.sparse(6,4,seed+n);
+        return ret;
+    }
+
+    private static double solve(HMMRepresentation hmm,int o[]){
+        return new HMMSolver(hmm,o,true).getLogObservationProbability();
+    }
+
+    @Test
+    void everyModelGetsTheLikelihoodOfTheSolver() {
+        //more models than one block of lanes, so the last block is partial
+        int count=HMMModelBank.LANES+5;
+        int o[]=TestModels.sequence(300,4,new Random(160));
+        int prefix[]=Arrays.copyOf(o,70);
+        for (boolean dense:new boolean[]{true,false}){
+            HMMRepresentation models[]=models(count,dense,161);
+            HMMModelBank bank=new HMMModelBank(models);
+            assertEquals(count,bank.getModelCount());
+            double scores[]=bank.score(o);
+            double prefixScores[]=bank.score(o,prefix.length,new double[count]);
+            for (int n=0;n<count;++n){
+                double expected=solve(models[n],o);
+                assertEquals(expected,scores[n],1e-9*Math.abs(expected));
+                expected=solve(models[n],prefix);
+                assertEquals(expected,prefixScores[n],1e-9*Math.abs(expected));
+            }
+        }
+    }
+
+    @Test
+    void pruningKeepsTheBestModelAndExactScores() {
+        int count=40;
+        HMMRepresentation models[]=models(count,false,170);
+        int o[]=new HMMSampler(models[23]).sample(new SplittableRandom(171),400);
+        HMMModelBank bank=new HMMModelBank(models);
+        double exact[]=new double[count];
+        int best=0;
+        for (int n=0;n<count;++n){
+            exact[n]=solve(models[n],o);
+            if (exact[n]>exact[best]) best=n;
+        }
+
+        double scores[]=bank.score(o,o.length,3,5,new double[count]);
+        int kept=0;
+        for (int n=0;n<count;++n){
+            if (scores[n]==Double.NEGATIVE_INFINITY) continue;
+            ++kept;
+            assertEquals(exact[n],scores[n],1e-9*Math.abs(exact[n]));
+        }
+        assertEquals(kept,bank.getActiveCount());
+        assertTrue(kept>=3&&kept<count);
+        assertEquals(best,bank.best(o,3,5)[0]);
+        assertEquals(best,bank.best(o,1,Double.POSITIVE_INFINITY)[0]);
+        assertEquals(count,bank.getActiveCount());
+    }
+
+    @Test
+    void theBankCopiesItsModels() {
+        HMMRepresentation models[]=models(3,true,180);
+        int o[]=TestModels.sequence(100,4,new Random(181));
+        HMMModelBank bank=new HMMModelBank(models);
+        double before=bank.score(o)[1];
+        new HMMSolver(models[1],o,true).estimateParameter();
+        assertEquals(before,bank.score(o)[1],0);
+
+        HMMRepresentation mixed[]={TestModels.sparse(6,4,182),TestModels.dense(6,4,183)};
+        assertThrows(IllegalArgumentException.class,()->new HMMModelBank(mixed));
+        assertThrows(IllegalArgumentException.class,()->new HMMModelBank(new HMMRepresentation[0]));
+    }
+}
@@ -0,0 +1,152 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package com.sweetdum.hmm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HMMModelFileTest {
+    @TempDir
+    Path dir;
+
+    private static void assertSameParameters(HMMRepresentation expected,HMMRepresentation actual){
+        assertEquals(expected.stateCount,actual.stateCount);
+        assertEquals(expected.observationCount,actual.observationCount);
+        for (int i=0;i<expected.stateCount;++i){
+            assertEquals(expected.getPi(i),actual.getPi(i),0);
+            for (int j=0;j<expected.stateCount;++j){
+                assertEquals(expected.getA(i,j),actual.getA(i,j),0);
+                for (int k=0;k<expected.observationCount;++k){
+                    assertEquals(expected.getB(i,j,k),actual.getB(i,j,k),0);
+                }
+            }
+        }
+    }
+
+    @Test
+    void roundTrip() throws IOException {
+        int o[]=TestModels.sequence(300,5,new Random(31));
+        for (HMMRepresentation hmm:new HMMRepresentation[]{TestModels.dense(4,5,32),TestModels.sparse(7,5,33)}){
+            Path path=dir.resolve("model.hmm");
+            HMMModelFile.write(hmm,path);
+            HMMRepresentation mapped=HMMModelFile.map(path);
+            HMMRepresentation read=HMMModelFile.read(path);
+            assertTrue(mapped.isMapped());
+            assertFalse(read.isMapped());
+            assertSameParameters(hmm,mapped);
+            assertSameParameters(hmm,read);
+            double expected=new HMMSolver(hmm,o,true).getLogObservationProbability();
+            assertEquals(expected,new HMMSolver(mapped,o,true).getLogObservationProbability(),0);
+            assertEquals(expected,new HMMSolver(read,o,true).getLogObservationProbability(),0);
+        }
+    }
+
+    @Test
+    void rejectsACorruptedBody() throws IOException {
+        Path path=dir.resolve("model.hmm");
+        HMMModelFile.write(TestModels.dense(3,4,34),path);
+        try (FileChannel channel=FileChannel.open(path,StandardOpenOption.WRITE)){
+            channel.write(ByteBuffer.wrap(new byte[]{0x7F}),HMMModelFile.HEADER_SIZE+5);
+        }
+        IOException e=assertThrows(IOException.class,()->HMMModelFile.map(path));
+        assertTrue(e.getMessage().contains("checksum"),e.getMessage());
+    }
+
+    @Test
+    void rejectsATruncatedFile() throws IOException {
+        Path path=dir.resolve("model.hmm");
+        HMMModelFile.write(TestModels.dense(3,4,35),path);
+        try (FileChannel channel=FileChannel.open(path,StandardOpenOption.WRITE)){
+            channel.truncate(channel.size()-8);
+        }
+        assertThrows(IOException.class,()->HMMModelFile.map(path));
+        try (FileChannel channel=FileChannel.open(path,StandardOpenOption.WRITE)){
+            channel.truncate(10);
+        }
+        assertThrows(IOException.class,()->HMMModelFile.map(path));
+    }
+
+    @Test
+    void rewritingLeavesExistingMappingsIntact() throws IOException {
+        Path path=dir.resolve("model.hmm");
+        HMMRepresentation first=TestModels.dense(3,4,36), second=TestModels.dense(3,4,37);
+        HMMModelFile.write(first,path);
+        HMMRepresentation old=HMMModelFile.map(path);
+        HMMModelFile.write(second,path);
+        assertSameParameters(first,old);
+        assertSameParameters(second,HMMModelFile.map(path));
+        try (Stream<Path> files=Files.list(dir)){
+            assertEquals(1,files.count());
+        }
+    }
+
+    @Test
+    void logEmissionsMatchTheLogKernels() throws IOException {
+        int o[]=TestModels.sequence(300,5,new Random(38));
+        for (HMMRepresentation hmm:new HMMRepresentation[]{TestModels.dense(4,5,39),TestModels.sparse(7,5,40)}){
+            Path plain=dir.resolve("plain.hmm"), logs=dir.resolve("logs.hmm");
+            HMMModelFile.write(hmm,plain);
+            HMMModelFile.write(hmm,logs,true);
+            HMMRepresentation mapped=HMMModelFile.map(logs);
+            assertSameParameters(hmm,mapped);
+            for (int k=0;k<hmm.observationCount;++k){
+                double expected[]=hmm.logKernel(k), actual[]=mapped.logKernel(k);
+                int offset=hmm.kernelOffset(k), mappedOffset=mapped.kernelOffset(k);
+                for (int x=0;x<hmm.arcCount;++x){
+                    assertEquals(expected[offset+x],actual[mappedOffset+x],1e-12);
+                }
+            }
+            int path[]=new HMMSolver(hmm,o).getBestStateSequence();
+            assertArrayEquals(path,new HMMSolver(mapped,o).getBestStateSequence());
+            assertArrayEquals(path,new HMMSolver(HMMModelFile.map(plain),o).getBestStateSequence());
+            assertArrayEquals(path,new HMMSolver(mapped.snapshot(),o).getBestStateSequence());
+        }
+    }
+
+    @Test
+    void mappedLogKernelsFollowTheTransitions() throws IOException {
+        Path path=dir.resolve("model.hmm");
+        HMMRepresentation hmm=TestModels.dense(3,4,41);
+        HMMModelFile.write(hmm,path,true);
+        HMMRepresentation mapped=HMMModelFile.map(path);
+        double before=mapped.logKernel(2)[mapped.kernelOffset(2)+4];
+        mapped.setA(1,1,hmm.getA(1,1)/2);
+        assertEquals(before-Math.log(2),mapped.logKernel(2)[mapped.kernelOffset(2)+4],1e-12);
+    }
+}
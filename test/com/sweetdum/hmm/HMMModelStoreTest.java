@@ -0,0 +1,105 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package com.sweetdum.hmm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HMMModelStoreTest {
+    private static void assertSameParameters(HMMRepresentation expected,HMMRepresentation actual){
+        for (int i=0;i<expected.stateCount;++i){
+            assertEquals(expected.getPi(i),actual.getPi(i),0);
+            for (int j=0;j<expected.stateCount;++j){
+                assertEquals(expected.getA(i,j),actual.getA(i,j),0);
+                for (int k=0;k<expected.observationCount;++k){
+                    assertEquals(expected.getB(i,j,k),actual.getB(i,j,k),0);
+                }
+            }
+        }
+    }
+
+    @Test
+    void snapshotsRejectEveryChange() {
+        HMMModelStore store=new HMMModelStore(TestModels.dense(3,4,140));
+        HMMRepresentation snapshot=store.current();
+        assertTrue(snapshot.isFrozen());
+        assertSame(snapshot,snapshot.snapshot());
+        assertThrows(IllegalStateException.class,()->snapshot.setPi(0,0.5));
+        assertThrows(IllegalStateException.class,()->snapshot.setA(0,1,0.5));
+        assertThrows(IllegalStateException.class,()->snapshot.setB(0,1,2,0.5));
+        assertThrows(IllegalStateException.class,()->snapshot.setFloatPrecision(true));
+        int o[]=TestModels.sequence(50,4,new Random(141));
+        assertThrows(IllegalStateException.class,()->new HMMSolver(snapshot,o,true).estimateParameter());
+
+        //a checkout trains freely without touching the served snapshot
+        HMMRepresentation copy=store.checkout();
+        assertFalse(copy.isFrozen());
+        double pi=snapshot.getPi(0);
+        new HMMSolver(copy,o,true).estimateParameter();
+        assertEquals(pi,snapshot.getPi(0),0);
+        assertSame(snapshot,store.current());
+    }
+
+    @Test
+    void everyPublishGetsALargerVersion() {
+        HMMRepresentation hmm=TestModels.sparse(5,4,142);
+        HMMModelStore store=new HMMModelStore(hmm);
+        HMMRepresentation first=store.current();
+        HMMRepresentation expected=(HMMRepresentation)first.clone();
+        int corpus[][]=new int[6][];
+        Random random=new Random(143);
+        for (int n=0;n<corpus.length;++n) corpus[n]=TestModels.sequence(60,4,random);
+        double firstLikelihood=new HMMSolver(first,corpus[0],true).getLogObservationProbability();
+
+        HMMBaumWelchTrainer trainer=new HMMBaumWelchTrainer(hmm,ForkJoinPool.commonPool());
+        trainer.setModelStore(store);
+        long version=store.getVersion();
+        for (int iteration=0;iteration<3;++iteration){
+            trainer.iterate(corpus);
+            assertTrue(store.getVersion()>version);
+            version=store.getVersion();
+            assertNotSame(hmm,store.current());
+            assertTrue(store.current().isFrozen());
+            assertSameParameters(hmm,store.current());
+        }
+        //readers holding the first snapshot still decode with the parameters they pinned
+        assertSameParameters(expected,first);
+        assertEquals(firstLikelihood,new HMMSolver(first,corpus[0],true).getLogObservationProbability(),0);
+
+        //a fresh model of a lower version still moves the store forward
+        HMMRepresentation fresh=TestModels.sparse(5,4,144);
+        assertTrue(fresh.getVersion()<version);
+        assertEquals(version+1,store.publish(fresh).getVersion());
+        assertThrows(IllegalArgumentException.class,()->store.publish(TestModels.sparse(6,4,145)));
+    }
+}
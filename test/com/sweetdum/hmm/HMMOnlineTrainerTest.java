@@ -0,0 +1,55 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package com.sweetdum.hmm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HMMOnlineTrainerTest {
+    @Test
+    void anEmptyBatchLeavesTheTrainerUnchanged() {
+        HMMRepresentation hmm=TestModels.dense(3,4,50);
+        HMMOnlineTrainer trainer=new HMMOnlineTrainer(hmm);
+        long version=hmm.getVersion();
+        assertTrue(Double.isNaN(trainer.update(new int[0][])));
+        assertTrue(Double.isNaN(trainer.update(new int[][]{{},{}})));
+        assertEquals(0,trainer.getBatchCount());
+        assertEquals(version,hmm.getVersion());
+    }
+
+    @Test
+    void updateReturnsTheLikelihoodPerSymbolBeforeTheUpdate() {
+        HMMRepresentation hmm=TestModels.sparse(5,4,51);
+        int o[]=TestModels.sequence(80,4,new Random(52));
+        double expected=new HMMSolver((HMMRepresentation)hmm.clone(),o,true).getLogObservationProbability()/o.length;
+        HMMOnlineTrainer trainer=new HMMOnlineTrainer(hmm);
+        assertEquals(expected,trainer.update(o),1e-9);
+        assertEquals(1,trainer.getBatchCount());
+        assertEquals(o.length,trainer.getSymbolCount());
+    }
+}
@@ -0,0 +1,108 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package com.sweetdum.hmm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HMMOnlineViterbiTest {
+    /**
+     * collects the committed states, checking that they arrive in time order
+     */
+    private static final class Collector implements HMMOnlineViterbi.StateListener {
+        final List<Integer> states=new ArrayList<>();
+
+        @Override
+        public void onState(long time,int state) {
+            assertEquals(states.size(),time);
+            states.add(state);
+        }
+
+        int[] toArray(){
+            int ret[]=new int[states.size()];
+            for (int t=0;t<ret.length;++t) ret[t]=states.get(t);
+            return ret;
+        }
+    }
+
+    @Test
+    void matchesOfflineViterbi() {
+        Random random=new Random(80);
+        for (HMMRepresentation hmm:new HMMRepresentation[]{TestModels.dense(5,4,81),TestModels.sparse(7,4,82)}){
+            int o[]=TestModels.sequence(300,hmm.observationCount,random);
+            Collector collector=new Collector();
+            HMMOnlineViterbi decoder=new HMMOnlineViterbi(hmm,o.length+1,collector);
+            for (int symbol:o) decoder.push(symbol);
+            decoder.flush();
+            assertArrayEquals(new HMMSolver(hmm,o,true).getBestStateSequence(),collector.toArray());
+        }
+    }
+
+    @Test
+    void pendingStatesStayWithinTheLag() {
+        HMMRepresentation hmm=TestModels.dense(6,4,83);
+        int o[]=TestModels.sequence(500,4,new Random(84));
+        int maxLag=3;
+        Collector collector=new Collector();
+        HMMOnlineViterbi decoder=new HMMOnlineViterbi(hmm,maxLag,collector);
+        for (int symbol:o){
+            decoder.push(symbol);
+            assertTrue(decoder.getPendingCount()<=maxLag,"pending "+decoder.getPendingCount());
+            assertEquals(decoder.getTime()+1,collector.states.size()+decoder.getPendingCount());
+        }
+        decoder.flush();
+        assertEquals(o.length+1,collector.states.size());
+        assertEquals(0,decoder.getPendingCount());
+    }
+
+    @Test
+    void aSingleReachableStateCommitsAtOnce() {
+        //every symbol is emitted by arcs into one state only, so one state survives each step
+        int N=3;
+        HMMRepresentation hmm=new HMMRepresentation(N,N);
+        for (int i=0;i<N;++i){
+            hmm.setPi(i,1.0/N);
+            for (int j=0;j<N;++j){
+                hmm.setA(i,j,1.0/N);
+                for (int k=0;k<N;++k) hmm.setB(i,j,k,j==k?1:0);
+            }
+        }
+        int o[]=TestModels.sequence(50,N,new Random(85));
+        Collector collector=new Collector();
+        HMMOnlineViterbi decoder=new HMMOnlineViterbi(hmm,100,collector);
+        for (int t=0;t<o.length;++t){
+            assertEquals(t==0?2:1,decoder.push(o[t]));
+            assertEquals(0,decoder.getPendingCount());
+        }
+        assertEquals(0,decoder.flush());
+        assertArrayEquals(new HMMSolver(hmm,o,true).getBestStateSequence(),collector.toArray());
+    }
+}
@@ -0,0 +1,113 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package com.sweetdum.hmm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HMMPrefixForwardTest {
+    private static void assertScore(HMMRepresentation hmm,int o[],double actual){
+        double expected=new HMMSolver(hmm,o,true).getLogObservationProbability();
+        assertEquals(expected,actual,1e-9*Math.abs(expected));
+    }
+
+    @Test
+    void sharedPrefixesResumeFromTheCache() {
+        HMMRepresentation hmm=TestModels.dense(4,5,190);
+        Random random=new Random(191);
+        int first[]=TestModels.sequence(200,5,random);
+        int second[]=Arrays.copyOf(first,230);
+        second[150]=(first[150]+1)%5;
+        for (int t=151;t<second.length;++t) second[t]=random.nextInt(5);
+        HMMPrefixForward cache=new HMMPrefixForward(hmm);
+        cache.setInterval(16);
+
+        assertScore(hmm,first,cache.getLogObservationProbability(first));
+        assertEquals(1,cache.getMissCount());
+        assertEquals(200,cache.getComputedSymbolCount());
+
+        //the cached prefixes end every 16 symbols, the last one before the fork is at 144
+        assertScore(hmm,second,cache.getLogObservationProbability(second));
+        assertEquals(1,cache.getHitCount());
+        assertEquals(144,cache.getReusedSymbolCount());
+        assertEquals(200+230-144,cache.getComputedSymbolCount());
+
+        long computed=cache.getComputedSymbolCount();
+        assertScore(hmm,first,cache.getLogObservationProbability(first));
+        int prefix[]=Arrays.copyOf(first,64);
+        assertScore(hmm,prefix,cache.getLogObservationProbability(first,64));
+        assertEquals(2,cache.getExactHitCount());
+        assertEquals(computed,cache.getComputedSymbolCount());
+    }
+
+    @Test
+    void newParametersDropTheCache() {
+        HMMRepresentation hmm=TestModels.sparse(5,4,192);
+        int o[]=TestModels.sequence(120,4,new Random(193));
+        HMMPrefixForward cache=new HMMPrefixForward(hmm);
+        cache.getLogObservationProbability(o);
+        new HMMSolver(hmm,o,true).estimateParameter();
+        assertScore(hmm,o,cache.getLogObservationProbability(o));
+        assertEquals(0,cache.getHitCount());
+        assertEquals(2,cache.getMissCount());
+
+        HMMModelStore store=new HMMModelStore(hmm);
+        HMMPrefixForward reader=new HMMPrefixForward(store);
+        reader.getLogObservationProbability(o);
+        assertScore(hmm,o,reader.getLogObservationProbability(o));
+        assertEquals(1,reader.getExactHitCount());
+        new HMMSolver(hmm,o,true).estimateParameter();
+        store.publish(hmm);
+        assertScore(hmm,o,reader.getLogObservationProbability(o));
+        assertEquals(1,reader.getHitCount());
+        assertEquals(2,reader.getMissCount());
+    }
+
+    @Test
+    void theCacheStaysWithinItsBudget() {
+        HMMRepresentation hmm=TestModels.dense(4,5,194);
+        Random random=new Random(195);
+        HMMPrefixForward cache=new HMMPrefixForward(hmm);
+        cache.setInterval(16);
+        long nodeBytes=HMMPrefixForward.NODE_OVERHEAD+8*4+4*16;
+        cache.setMaxCacheBytes(3*nodeBytes);
+        int o[]=null;
+        for (int n=0;n<4;++n){
+            o=TestModels.sequence(64,5,random);
+            assertScore(hmm,o,cache.getLogObservationProbability(o));
+            assertTrue(cache.getCacheBytes()<=3*nodeBytes);
+        }
+        assertEquals(3,cache.getEntryCount());
+        assertTrue(cache.getEvictionCount()>0);
+        //the latest sequence kept the first three of its prefixes
+        assertScore(hmm,o,cache.getLogObservationProbability(o));
+        assertEquals(1,cache.getHitCount());
+        assertEquals(48,cache.getReusedSymbolCount());
+    }
+}
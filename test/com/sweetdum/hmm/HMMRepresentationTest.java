@@ -0,0 +1,111 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package com.sweetdum.hmm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class HMMRepresentationTest {
+    private static final double TOLERANCE=1e-9;
+
+    /**
+     * the dense model with the parameters of a sparse one, every missing transfer is 0
+     */
+    private static HMMRepresentation densify(HMMRepresentation sparse){
+        int N=sparse.stateCount, M=sparse.observationCount;
+        HMMRepresentation ret=new HMMRepresentation(N,M);
+        for (int i=0;i<N;++i){
+            ret.setPi(i,sparse.getPi(i));
+            for (int j=0;j<N;++j){
+                ret.setA(i,j,sparse.getA(i,j));
+                for (int k=0;k<M;++k) ret.setB(i,j,k,sparse.getB(i,j,k));
+            }
+        }
+        return ret;
+    }
+
+    @Test
+    void missingTransfersStayZeroThroughReestimation() {
+        for (boolean scaled:new boolean[]{false,true}){
+            HMMRepresentation hmm=TestModels.sparse(7,4,130);
+            int o[]=TestModels.sequence(scaled?400:60,4,new Random(131));
+            HMMSolver solver=new HMMSolver(hmm,o,scaled);
+            for (int iteration=0;iteration<3;++iteration) solver.estimateParameter();
+            assertEquals(3*7,hmm.getArcCount());
+            for (int i=0;i<hmm.stateCount;++i){
+                double row=0;
+                for (int j=0;j<hmm.stateCount;++j){
+                    boolean arc=j==i||j==(i+1)%7||j==(i+3)%7;
+                    if (!arc){
+                        assertEquals(0,hmm.getA(i,j),0);
+                        for (int k=0;k<hmm.observationCount;++k) assertEquals(0,hmm.getB(i,j,k),0);
+                    }
+                    row+=hmm.getA(i,j);
+                }
+                assertEquals(1,row,1e-6);
+            }
+        }
+    }
+
+    @Test
+    void sparseModelMatchesItsDenseEquivalent() {
+        HMMRepresentation sparse=TestModels.sparse(6,4,132);
+        HMMRepresentation dense=densify(sparse);
+        int o[]=TestModels.sequence(200,4,new Random(133));
+        HMMSolver sparseSolver=new HMMSolver(sparse,o,true), denseSolver=new HMMSolver(dense,o,true);
+        double expected=denseSolver.getLogObservationProbability();
+        assertEquals(expected,sparseSolver.getLogObservationProbability(),TOLERANCE*Math.abs(expected));
+        assertArrayEquals(denseSolver.getBestStateSequence(),sparseSolver.getBestStateSequence());
+        sparseSolver.estimateParameter();
+        denseSolver.estimateParameter();
+        for (int i=0;i<6;++i){
+            assertEquals(dense.getPi(i),sparse.getPi(i),TOLERANCE);
+            for (int j=0;j<6;++j){
+                assertEquals(dense.getA(i,j),sparse.getA(i,j),TOLERANCE);
+                //the emissions of a missing transfer are never used by the dense model
+                if (sparse.getA(i,j)==0) continue;
+                for (int k=0;k<4;++k) assertEquals(dense.getB(i,j,k),sparse.getB(i,j,k),TOLERANCE);
+            }
+        }
+    }
+
+    @Test
+    void onlyArcsTakeNonZeroValues() {
+        HMMRepresentation hmm=new HMMRepresentation(3,2,new int[][]{{0,1},{1,2},{2,0,2}});
+        assertEquals(6,hmm.getArcCount());
+        hmm.setA(0,2,0);
+        hmm.setB(0,2,1,0);
+        assertEquals(0,hmm.getA(0,2),0);
+        assertThrows(IllegalArgumentException.class,()->hmm.setA(0,2,0.5));
+        assertThrows(IllegalArgumentException.class,()->hmm.setB(1,0,0,0.5));
+        assertThrows(IllegalArgumentException.class,()->new HMMRepresentation(2,2,new int[][]{{0,2},{1}}));
+        hmm.setA(2,0,0.25);
+        assertEquals(0.25,hmm.getA(2,0),0);
+    }
+}
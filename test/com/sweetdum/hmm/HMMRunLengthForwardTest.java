@@ -0,0 +1,91 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package com.sweetdum.hmm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HMMRunLengthForwardTest {
+    private static final double TOLERANCE=1e-9;
+
+    /**
+     * runs of random symbols with lengths up to maxRun
+     */
+    private static int[] runs(int length,int M,int maxRun,Random random){
+        int ret[]=new int[length];
+        for (int t=0;t<length;){
+            int k=random.nextInt(M), end=Math.min(length,t+1+random.nextInt(maxRun));
+            while (t<end) ret[t++]=k;
+        }
+        return ret;
+    }
+
+    @Test
+    void runsMatchTheStepwiseForward() {
+        Random random=new Random(70);
+        for (HMMRepresentation hmm:new HMMRepresentation[]{TestModels.dense(5,3,71),TestModels.sparse(7,3,72)}){
+            int o[]=runs(3000,3,200,random);
+            double expected=new HMMSolver(hmm,o,true).getLogObservationProbability();
+            HMMRunLengthForward forward=new HMMRunLengthForward(hmm);
+            assertEquals(expected,forward.getLogObservationProbability(o),TOLERANCE*Math.abs(expected));
+            assertTrue(forward.getRunCount()>0);
+            //the second pass reads the cached squares
+            assertEquals(expected,forward.getLogObservationProbability(o),TOLERANCE*Math.abs(expected));
+        }
+    }
+
+    @Test
+    void symbolsBeyondTheBudgetAreSteppedThrough() {
+        HMMRepresentation hmm=TestModels.dense(6,2,73);
+        int o[]=runs(2000,2,500,new Random(74));
+        HMMRunLengthForward forward=new HMMRunLengthForward(hmm);
+        //one square of one symbol fits, the log2(500) squares of a run do not
+        forward.setMaxCacheBytes(8L*6*6);
+        double expected=new HMMSolver(hmm,o,true).getLogObservationProbability();
+        assertEquals(expected,forward.getLogObservationProbability(o),TOLERANCE*Math.abs(expected));
+        assertEquals(0,forward.getRunCount());
+        assertEquals(o.length,forward.getStepCount());
+    }
+
+    @Test
+    void solverAnswersWithRunLengths() {
+        HMMRepresentation hmm=TestModels.sparse(6,3,75);
+        int o[]=runs(2000,3,300,new Random(76));
+        HMMSolver solver=new HMMSolver(hmm,o,true);
+        double expected=solver.getLogObservationProbability();
+        solver.setRunLengthForward(8);
+        assertEquals(expected,solver.getLogObservationProbability(),TOLERANCE*Math.abs(expected));
+        assertTrue(solver.runLength.getRunCount()>0);
+        //re-estimation still runs the forward-backward engine, the probability follows the new parameters
+        solver.estimateParameter();
+        double updated=new HMMSolver(hmm,o,true).getLogObservationProbability();
+        assertEquals(updated,solver.getLogObservationProbability(),TOLERANCE*Math.abs(updated));
+        solver.setRunLengthForward(0);
+        assertEquals(updated,solver.getLogObservationProbability(),TOLERANCE*Math.abs(updated));
+    }
+}
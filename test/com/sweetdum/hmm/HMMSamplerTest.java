@@ -0,0 +1,130 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package com.sweetdum.hmm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HMMSamplerTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void aliasTablesHoldTheirWeightsExactly() {
+        double w[]={9,0.5,0,3,0.25,1,2.25};
+        int from=1, n=5;
+        double prob[]=new double[n+2], scaled[]=new double[n];
+        int alias[]=new int[n+2], work[]=new int[n];
+        HMMSampler.build(w,from,n,prob,alias,2,scaled,work);
+        double sum=0;
+        for (int x=0;x<n;++x) sum+=w[from+x];
+        //entry x is drawn by its own column with prob[x] and by every column aliasing it with the rest
+        double mass[]=new double[n];
+        for (int x=0;x<n;++x){
+            mass[x]+=prob[2+x]/n;
+            if (prob[2+x]<1) mass[alias[2+x]]+=(1-prob[2+x])/n;
+        }
+        for (int x=0;x<n;++x) assertEquals(w[from+x]/sum,mass[x],1e-12);
+
+        HMMSampler.build(new double[]{0,0,0},0,3,prob,alias,0,scaled,work);
+        assertTrue(Double.isNaN(prob[0]));
+    }
+
+    @Test
+    void drawsFollowTheModel() {
+        HMMRepresentation hmm=TestModels.sparse(4,3,150);
+        HMMSampler sampler=new HMMSampler(hmm);
+        SplittableRandom random=new SplittableRandom(151);
+        int N=4, M=3, length=50, count=4000;
+        double initial[]=new double[N], transfer[][]=new double[N][N], emission[][][]=new double[N][N][M];
+        int o[]=new int[length], states[]=new int[length+1];
+        for (int n=0;n<count;++n){
+            sampler.sample(random,o,0,length,states);
+            initial[states[0]]++;
+            for (int t=0;t<length;++t){
+                transfer[states[t]][states[t+1]]++;
+                emission[states[t]][states[t+1]][o[t]]++;
+            }
+        }
+        for (int i=0;i<N;++i){
+            assertEquals(hmm.getPi(i),initial[i]/count,0.03);
+            double visits=0;
+            for (int j=0;j<N;++j) visits+=transfer[i][j];
+            for (int j=0;j<N;++j){
+                assertEquals(hmm.getA(i,j),transfer[i][j]/visits,0.01);
+                if (hmm.getA(i,j)==0){
+                    assertEquals(0,transfer[i][j],0);
+                    continue;
+                }
+                for (int k=0;k<M;++k) assertEquals(hmm.getB(i,j,k),emission[i][j][k]/transfer[i][j],0.02);
+            }
+        }
+    }
+
+    @Test
+    void theSeedFixesTheSequencesWhateverTheOutput() throws IOException {
+        HMMRepresentation hmm=TestModels.dense(3,5,152);
+        int count=40, length=25;
+        int expected[][]=new HMMSampler(hmm).generate(153,count,length);
+        ExecutorService single=Executors.newSingleThreadExecutor();
+        try {
+            HMMSampler sampler=new HMMSampler(hmm,single);
+            assertArrayEquals(expected,sampler.generate(153,count,length));
+            int buffer[]=sampler.generate(153,count,length,new int[count*length]);
+            for (int n=0;n<count;++n){
+                assertArrayEquals(expected[n],Arrays.copyOfRange(buffer,n*length,(n+1)*length));
+            }
+            Path path=dir.resolve("sampled.hmc");
+            sampler.generate(path,153,count,length);
+            HMMCorpusFile corpus=HMMCorpusFile.open(path);
+            assertEquals(count,corpus.getSequenceCount());
+            for (int n=0;n<count;++n) assertArrayEquals(expected[n],corpus.read(n));
+            assertFalse(Arrays.deepEquals(expected,sampler.generate(154,count,length)));
+        } finally {
+            single.shutdown();
+        }
+    }
+
+    @Test
+    void aRowWithoutMassFailsToDraw() {
+        HMMRepresentation hmm=TestModels.dense(2,2,155);
+        hmm.setPi(0,0);
+        hmm.setPi(1,0);
+        HMMSampler sampler=new HMMSampler(hmm);
+        assertThrows(IllegalStateException.class,()->sampler.sampleInitialState(new SplittableRandom(156)));
+    }
+}
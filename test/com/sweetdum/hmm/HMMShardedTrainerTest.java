@@ -0,0 +1,70 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package com.sweetdum.hmm;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class HMMShardedTrainerTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void workersFollowTheBatchTrainerAcrossIterations() throws IOException {
+        Random random=new Random(110);
+        int corpus[][]=new int[24][];
+        for (int n=0;n<corpus.length;++n) corpus[n]=TestModels.sequence(30+random.nextInt(50),4,random);
+        Path path=dir.resolve("corpus.hmc");
+        try (HMMCorpusFile.Writer writer=HMMCorpusFile.create(path,4)){
+            for (int o[]:corpus) writer.append(o);
+        }
+        HMMRepresentation batch=TestModels.sparse(5,4,111);
+        HMMRepresentation sharded=(HMMRepresentation)batch.clone();
+        HMMBaumWelchTrainer trainer=new HMMBaumWelchTrainer(batch,ForkJoinPool.commonPool());
+        try (HMMShardedTrainer shards=new HMMShardedTrainer(sharded,path,2)){
+            shards.setThreadsPerWorker(1);
+            //the workers keep their model and trainer, every iteration only sends new parameters
+            for (int iteration=0;iteration<3;++iteration){
+                double expected=trainer.iterate(corpus);
+                assertEquals(expected,shards.iterate(),1e-9*Math.abs(expected));
+            }
+        }
+        for (int i=0;i<batch.stateCount;++i){
+            assertEquals(batch.getPi(i),sharded.getPi(i),1e-9);
+            for (int j=0;j<batch.stateCount;++j){
+                assertEquals(batch.getA(i,j),sharded.getA(i,j),1e-9);
+                for (int k=0;k<batch.observationCount;++k){
+                    assertEquals(batch.getB(i,j,k),sharded.getB(i,j,k),1e-9);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package com.sweetdum.hmm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class HMMSolverTest {
+    private static final double TOLERANCE=1e-9;
+
+    @Test
+    void scaledLikelihoodMatchesPlainOnShortSequences() {
+        Random random=new Random(1);
+        for (HMMRepresentation hmm:new HMMRepresentation[]{TestModels.dense(5,7,2),TestModels.sparse(6,4,3)}){
+            for (int length:new int[]{0,1,2,17,60}){
+                int o[]=TestModels.sequence(length,hmm.observationCount,random);
+                double plain=new HMMSolver(hmm,o,false).getLogObservationProbability();
+                double scaled=new HMMSolver(hmm,o,true).getLogObservationProbability();
+                assertEquals(plain,scaled,TOLERANCE*Math.max(1,Math.abs(plain)),"length "+length);
+            }
+        }
+    }
+
+    @Test
+    void scaledGammaMatchesPlain() {
+        HMMRepresentation hmm=TestModels.dense(4,5,4);
+        int o[]=TestModels.sequence(40,5,new Random(5));
+        HMMForwardBackwardManipulator plain=new HMMForwardBackwardManipulator(hmm,o);
+        HMMForwardBackwardManipulator scaled=new HMMScaledForwardBackwardManipulator(hmm,o);
+        for (int x=0;x<o.length*hmm.stateCount;++x){
+            assertEquals(plain.gamma[x],scaled.gamma[x],TOLERANCE);
+        }
+    }
+
+    @Test
+    void logSpaceViterbiMatchesPlain() {
+        Random random=new Random(6);
+        for (HMMRepresentation hmm:new HMMRepresentation[]{TestModels.dense(6,5,7),TestModels.sparse(8,5,8)}){
+            int o[]=TestModels.sequence(50,hmm.observationCount,random);
+            assertArrayEquals(new HMMSolver(hmm,o,false).getBestStateSequence(),
+                    new HMMSolver(hmm,o,true).getBestStateSequence());
+        }
+    }
+
+    @Test
+    void reestimationKeepsDistributionsNormalized() {
+        HMMRepresentation hmm=TestModels.sparse(5,6,9);
+        int o[]=TestModels.sequence(200,6,new Random(10));
+        new HMMSolver(hmm,o,true).estimateParameter();
+        double pi=0;
+        for (int i=0;i<hmm.stateCount;++i){
+            pi+=hmm.getPi(i);
+            double a=0;
+            for (int j=0;j<hmm.stateCount;++j) a+=hmm.getA(i,j);
+            assertEquals(1,a,1e-6);
+        }
+        assertEquals(1,pi,1e-6);
+    }
+
+    @Test
+    void floatReestimationMatchesDouble() {
+        for (HMMRepresentation hmm:new HMMRepresentation[]{TestModels.dense(4,5,11),TestModels.sparse(6,5,12)}){
+            int o[]=TestModels.sequence(150,5,new Random(13));
+            HMMRepresentation single=(HMMRepresentation)hmm.clone();
+            single.setFloatPrecision(true);
+            new HMMSolver(hmm,o,true).estimateParameter();
+            new HMMSolver(single,o,true).estimateParameter();
+            for (int i=0;i<hmm.stateCount;++i){
+                assertEquals(hmm.getPi(i),single.getPi(i),1e-4);
+                for (int j=0;j<hmm.stateCount;++j){
+                    assertEquals(hmm.getA(i,j),single.getA(i,j),1e-4);
+                    for (int k=0;k<hmm.observationCount;++k){
+                        assertEquals(hmm.getB(i,j,k),single.getB(i,j,k),1e-4);
+                    }
+                }
+            }
+        }
+    }
+}
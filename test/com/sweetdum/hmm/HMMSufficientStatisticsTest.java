@@ -0,0 +1,110 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package com.sweetdum.hmm;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HMMSufficientStatisticsTest {
+    private static int[][] corpus(int count,int M,Random random){
+        int ret[][]=new int[count][];
+        for (int n=0;n<count;++n) ret[n]=TestModels.sequence(20+random.nextInt(60),M,random);
+        return ret;
+    }
+
+    private static HMMSufficientStatistics expectation(HMMRepresentation hmm,int corpus[][]){
+        HMMBaumWelchTrainer trainer=new HMMBaumWelchTrainer(hmm,ForkJoinPool.commonPool());
+        trainer.setTaskCount(1);
+        return trainer.expectation(corpus);
+    }
+
+    private static byte[] bytes(HMMSufficientStatistics statistics) throws IOException {
+        ByteArrayOutputStream out=new ByteArrayOutputStream();
+        statistics.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private static void assertSameCounts(HMMSufficientStatistics expected,HMMSufficientStatistics actual,double tolerance){
+        assertEquals(expected.sequenceCount,actual.sequenceCount);
+        assertEquals(expected.symbolCount,actual.symbolCount);
+        assertEquals(expected.logLikelihood,actual.logLikelihood,tolerance*Math.abs(expected.logLikelihood));
+        assertArrayEquals(expected.initial,actual.initial,tolerance);
+        assertArrayEquals(expected.transition,actual.transition,tolerance*expected.symbolCount);
+        assertArrayEquals(expected.emission,actual.emission,tolerance*expected.symbolCount);
+    }
+
+    @Test
+    void wireFormatRoundTrip() throws IOException {
+        HMMRepresentation hmm=TestModels.sparse(6,4,100);
+        HMMSufficientStatistics statistics=expectation(hmm,corpus(10,4,new Random(101)));
+        byte wire[]=bytes(statistics);
+        //two records back to back, each read consumes exactly its own bytes
+        byte twice[]=Arrays.copyOf(wire,2*wire.length);
+        System.arraycopy(wire,0,twice,wire.length,wire.length);
+        ByteArrayInputStream in=new ByteArrayInputStream(twice);
+        assertSameCounts(statistics,HMMSufficientStatistics.readFrom(in),0);
+        assertSameCounts(statistics,HMMSufficientStatistics.readFrom(in),0);
+        assertEquals(0,in.available());
+    }
+
+    @Test
+    void mergedShardsMatchTheWholeCorpus() throws IOException {
+        HMMRepresentation hmm=TestModels.dense(4,5,102);
+        int corpus[][]=corpus(30,5,new Random(103));
+        HMMSufficientStatistics whole=expectation(hmm,corpus);
+        HMMSufficientStatistics merged=null;
+        for (int from=0;from<corpus.length;from+=7){
+            HMMSufficientStatistics shard=expectation(hmm,Arrays.copyOfRange(corpus,from,Math.min(corpus.length,from+7)));
+            shard=HMMSufficientStatistics.readFrom(new ByteArrayInputStream(bytes(shard)));
+            if (merged==null) merged=shard;
+            else merged.merge(shard);
+        }
+        assertSameCounts(whole,merged,1e-12);
+    }
+
+    @Test
+    void rejectsDamagedStreams() throws IOException {
+        byte wire[]=bytes(expectation(TestModels.dense(3,4,104),corpus(3,4,new Random(105))));
+        byte corrupted[]=wire.clone();
+        corrupted[HMMSufficientStatistics.HEADER_SIZE+3]^=0x10;
+        IOException e=assertThrows(IOException.class,()->HMMSufficientStatistics.readFrom(new ByteArrayInputStream(corrupted)));
+        assertTrue(e.getMessage().contains("checksum"),e.getMessage());
+        assertThrows(IOException.class,()->HMMSufficientStatistics.readFrom(
+                new ByteArrayInputStream(Arrays.copyOf(wire,wire.length-1))));
+        HMMSufficientStatistics other=new HMMSufficientStatistics(TestModels.dense(4,4,106));
+        HMMSufficientStatistics statistics=HMMSufficientStatistics.readFrom(new ByteArrayInputStream(wire));
+        assertThrows(IllegalArgumentException.class,()->statistics.merge(other));
+    }
+}
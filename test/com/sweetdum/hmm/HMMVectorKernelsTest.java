@@ -0,0 +1,139 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package com.sweetdum.hmm;
+
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * the SIMD row kernels against plain loops, on lengths with and without a scalar tail
+ */
+class HMMVectorKernelsTest {
+    private static final int LENGTHS[]={1,3,8,15,16,17,64,67};
+    private static HMMKernels.RowKernels vector;
+    private final Random random=new Random(21);
+
+    @BeforeAll
+    static void load() {
+        Assumptions.assumeTrue(ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent(),
+                "jdk.incubator.vector is not enabled");
+        vector=new HMMVectorKernels();
+    }
+
+    private double[] doubles(int n){
+        double ret[]=new double[n];
+        for (int i=0;i<n;++i) ret[i]=random.nextDouble();
+        return ret;
+    }
+
+    private float[] floats(int n){
+        float ret[]=new float[n];
+        for (int i=0;i<n;++i) ret[i]=random.nextFloat();
+        return ret;
+    }
+
+    @Test
+    void multiplyAdd() {
+        for (int n:LENGTHS){
+            double m[]=doubles(n+3), dst[]=doubles(n+2), expected[]=dst.clone();
+            for (int i=0;i<n;++i) expected[2+i]+=0.7*m[3+i];
+            vector.multiplyAdd(0.7,m,3,dst,2,n);
+            assertArrayEquals(expected,dst,1e-15);
+
+            float fm[]=floats(n+3), fdst[]=floats(n+2), fexpected[]=fdst.clone();
+            for (int i=0;i<n;++i) fexpected[2+i]+=0.7f*fm[3+i];
+            vector.multiplyAdd(0.7f,fm,3,fdst,2,n);
+            assertArrayEquals(fexpected,fdst,1e-6f);
+        }
+    }
+
+    @Test
+    void dot() {
+        for (int n:LENGTHS){
+            double m[]=doubles(n+1), v[]=doubles(n+2);
+            double expected=0;
+            for (int i=0;i<n;++i) expected+=m[1+i]*v[2+i];
+            assertEquals(expected,vector.dot(m,1,v,2,n),1e-12);
+
+            float fm[]=floats(n+1), fv[]=floats(n+2);
+            float fexpected=0;
+            for (int i=0;i<n;++i) fexpected+=fm[1+i]*fv[2+i];
+            assertEquals(fexpected,vector.dot(fm,1,fv,2,n),1e-4f);
+        }
+    }
+
+    @Test
+    void lanes() {
+        for (int lanes:LENGTHS){
+            int count=5;
+            double v[]=doubles(count*lanes+1), m[]=doubles(count*lanes+2), dst[]=new double[lanes+1];
+            double expected[]=new double[lanes+1];
+            for (int c=0;c<count;++c){
+                for (int l=0;l<lanes;++l) expected[1+l]+=v[1+c*lanes+l]*m[2+c*lanes+l];
+            }
+            vector.dotLanes(v,1,m,2,dst,1,lanes,count);
+            assertArrayEquals(expected,dst,1e-12);
+
+            double acc[]=doubles(lanes), accExpected[]=acc.clone();
+            for (int l=0;l<lanes;++l) accExpected[l]+=v[1+l]*m[2+l];
+            vector.multiplyAddLanes(v,1,m,2,acc,0,lanes);
+            assertArrayEquals(accExpected,acc,1e-15);
+        }
+    }
+
+    @Test
+    void relax() {
+        for (int n:LENGTHS){
+            double w[]=doubles(n+1), dst[]=doubles(n), expected[]=dst.clone();
+            int phi[]=new int[n+4], expectedPhi[]=new int[n+4];
+            for (int i=0;i<n;++i){
+                if (-0.5+w[1+i]>expected[i]){
+                    expected[i]=-0.5+w[1+i];
+                    expectedPhi[4+i]=9;
+                }
+            }
+            vector.relax(-0.5,w,1,dst,phi,4,9,n);
+            assertArrayEquals(expected,dst,0);
+            assertArrayEquals(expectedPhi,phi);
+
+            float fw[]=floats(n+1), fdst[]=floats(n), fexpected[]=fdst.clone();
+            int fphi[]=new int[n+4], fexpectedPhi[]=new int[n+4];
+            for (int i=0;i<n;++i){
+                if (-0.5f+fw[1+i]>fexpected[i]){
+                    fexpected[i]=-0.5f+fw[1+i];
+                    fexpectedPhi[4+i]=9;
+                }
+            }
+            vector.relax(-0.5f,fw,1,fdst,fphi,4,9,n);
+            assertArrayEquals(fexpected,fdst,0);
+            assertArrayEquals(fexpectedPhi,fphi);
+        }
+    }
+}
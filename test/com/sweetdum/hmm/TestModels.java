@@ -0,0 +1,78 @@
+/*
+Copyright (c) 2015 Mengxiao Lin
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+*/
+
+
+package com.sweetdum.hmm;
+
+import java.util.Random;
+
+/**
+ * seeded models and sequences, so every run of the tests sees the same numbers
+ */
+final class TestModels {
+    private TestModels(){
+    }
+
+    static HMMRepresentation dense(int stateCount,int observationCount,long seed){
+        return fill(new HMMRepresentation(stateCount,observationCount),new Random(seed));
+    }
+
+    /**
+     * a sparse model where s[i] goes to s[i], s[i+1] and s[i+3]
+     */
+    static HMMRepresentation sparse(int stateCount,int observationCount,long seed){
+        int successors[][]=new int[stateCount][];
+        for (int i=0;i<stateCount;++i){
+            successors[i]=new int[]{i,(i+1)%stateCount,(i+3)%stateCount};
+        }
+        return fill(new HMMRepresentation(stateCount,observationCount,successors),new Random(seed));
+    }
+
+    private static HMMRepresentation fill(HMMRepresentation hmm,Random random){
+        normalize(hmm.pi,0,hmm.stateCount,random);
+        for (int i=0;i<hmm.stateCount;++i){
+            normalize(hmm.a,hmm.rowStart[i],hmm.rowStart[i+1]-hmm.rowStart[i],random);
+        }
+        double column[]=new double[hmm.observationCount];
+        for (int x=0;x<hmm.arcCount;++x){
+            normalize(column,0,column.length,random);
+            for (int k=0;k<hmm.observationCount;++k) hmm.b[k*hmm.arcCount+x]=column[k];
+        }
+        hmm.modified();
+        return hmm;
+    }
+
+    private static void normalize(double v[],int off,int n,Random random){
+        double sum=0;
+        for (int i=0;i<n;++i){
+            v[off+i]=0.05+random.nextDouble();
+            sum+=v[off+i];
+        }
+        for (int i=0;i<n;++i) v[off+i]/=sum;
+    }
+
+    static int[] sequence(int length,int observationCount,Random random){
+        int ret[]=new int[length];
+        for (int t=0;t<length;++t) ret[t]=random.nextInt(observationCount);
+        return ret;
+    }
+}